@@ -1,6 +1,7 @@
-import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
@@ -9,10 +10,14 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Properties;
-import java.util.UUID;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import com.google.gson.stream.JsonWriter;
 
+import protocol.IBodyWriter;
+
 /**
  * A helper class to connect to and manage the Ghostbusters database. Modified
  * from
@@ -23,6 +28,7 @@ import com.google.gson.stream.JsonWriter;
  *
  */
 public class DBHelper {
+	private static final Logger LOGGER = LogManager.getLogger(DBHelper.class);
 	public static final String GHOSTS_TABLE_NAME = "GHOSTS";
 	public static final String HAUNTS_TABLE_NAME = "HAUNTS";
 
@@ -67,60 +73,77 @@ public class DBHelper {
 		return false;
 	}
 
-	public File executeQuery(String command, String rootDirectory) throws SQLException, IOException {
-		Statement stmt = null;
-		if (this.conn != null) {
-			final String fileName = UUID.randomUUID().toString();
-			final File file = File.createTempFile(fileName, ".json");
-			try {
-				stmt = this.conn.createStatement();
-				ResultSet results = stmt.executeQuery(command);
-				ResultSetMetaData rsmd = results.getMetaData();
-
-				// Borrowed from http://stackoverflow.com/questions/18960446/how-to-convert-a-java-resultset-into-json
-				JsonWriter writer = new JsonWriter(new PrintWriter(file));
-				int count = 0;
-				int numRows = 0;
-				boolean hasRows = results.last();
-				if (hasRows) {
-					numRows = results.getRow();
-				} 
-				results.beforeFirst();
-				
-				writer.beginObject();
-				writer.name("elements");
-				writer.beginArray();
-				
-				while (results.next()) {
-					writer.beginObject();
-					for (int idx = 1; idx <= rsmd.getColumnCount(); idx++) {
-						writer.name(rsmd.getColumnLabel(idx));
-						writer.value(results.getString(idx));
+	/**
+	 * Returns a writer that runs a query and sends its rows as JSON, in the
+	 * form <tt>{"elements": [{"COLUMN": "value", ...}, ...]}</tt>. The query
+	 * only runs once the response is being sent, so nothing is held open for
+	 * a response that is never written; the rows go out as they are read,
+	 * with no file in between, and the statement is closed once they have.
+	 * A query that fails before any of the body is sent is answered with a
+	 * 500 by the server.
+	 * 
+	 * @param command
+	 *            The query.
+	 * @return the writer of the response body
+	 * @throws SQLException
+	 *             if there is no connection
+	 */
+	public IBodyWriter executeQuery(final String command) throws SQLException {
+		final Connection conn = this.conn;
+		if (conn == null) {
+			throw new SQLException("Not connected to the database");
+		}
+		return new IBodyWriter() {
+			@Override
+			public void writeBody(OutputStream out) throws IOException {
+				Statement stmt = null;
+				try {
+					stmt = conn.createStatement();
+					writeJson(stmt.executeQuery(command), out);
+				} catch (SQLException e) {
+					throw new IOException(e);
+				} finally {
+					if (stmt != null) {
+						try {
+							stmt.close();
+						} catch (SQLException e) {
+							LOGGER.error("Could not close the statement for " + command, e);
+						}
 					}
-					writer.endObject();
-					count++;
-				}
-				if (count == 0) {
-					writer.beginObject();
-					writer.endObject();
 				}
-				writer.endArray();
-				writer.endObject();
-				
-				writer.flush();
-				writer.close();
-				return file;
+			}
+		};
+	}
 
-			} catch (SQLException e) {
-				e.printStackTrace();
-				return null;
-			} finally {
-				if (stmt != null) {
-					stmt.close();
-				}
+	private static void writeJson(ResultSet results, OutputStream out) throws SQLException, IOException {
+		ResultSetMetaData rsmd = results.getMetaData();
+
+		// Borrowed from http://stackoverflow.com/questions/18960446/how-to-convert-a-java-resultset-into-json
+		JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		int count = 0;
+		
+		writer.beginObject();
+		writer.name("elements");
+		writer.beginArray();
+		
+		while (results.next()) {
+			writer.beginObject();
+			for (int idx = 1; idx <= rsmd.getColumnCount(); idx++) {
+				writer.name(rsmd.getColumnLabel(idx));
+				writer.value(results.getString(idx));
 			}
+			writer.endObject();
+			count++;
+		}
+		if (count == 0) {
+			writer.beginObject();
+			writer.endObject();
 		}
-		return null;
+		writer.endArray();
+		writer.endObject();
+		
+		// The server ends the body, so the writer is only flushed
+		writer.flush();
 	}
 
 	public void start() {
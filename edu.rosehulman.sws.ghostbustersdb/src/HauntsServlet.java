@@ -1,20 +1,26 @@
-import java.io.File;
-import java.io.IOException;
 import java.sql.SQLException;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
+import protocol.HttpHeader;
 import protocol.HttpRequest;
 import protocol.HttpResponse;
 import protocol.HttpResponseFactory;
+import protocol.IBodyWriter;
 import protocol.IServlet;
 import protocol.Protocol;
 
 public class HauntsServlet implements IServlet {
-	// indices of "/" characters in the expected URI
-	private static final int SLASH_BEFORE_HAUNTS = 18;
-	private static final int SLASH_AFTER_HAUNTS = 25;
+	private static final Logger LOGGER = LogManager.getLogger(HauntsServlet.class);
+
+	// the path segment naming this collection in the expected URI,
+	// /v1/GhostbustersDB/haunts/ID
+	private static final String COLLECTION = "haunts";
 	
 	private static final String METHODS = 
 			Protocol.GET + ", " + 
@@ -48,29 +54,23 @@ public class HauntsServlet implements IServlet {
 	
 	@Override
 	public HttpResponse doGet(HttpRequest request, String rootDirectory) {
-		String uri = request.getUri();
-		int index = uri.lastIndexOf("/");
-		if (index == SLASH_BEFORE_HAUNTS || index + 1 == uri.length()) {
+		String id = getId(request);
+		if ("".equals(id)) {
 			try {
-				File file = this.dbHelper.executeQuery(GET_ALL_COMMAND, rootDirectory);
-				HttpResponse response = HttpResponseFactory.create200OK(file, Protocol.CLOSE);
-				response.put(Protocol.CONTENT_TYPE, Protocol.APPLICATION_JSON);
-				file.deleteOnExit();
-				return response;
-			} catch (SQLException | IOException e) {
-				e.printStackTrace();
+				IBodyWriter rows = this.dbHelper.executeQuery(GET_ALL_COMMAND);
+				return HttpResponseFactory.create200Streaming(request, Protocol.APPLICATION_JSON, rows,
+						Protocol.CLOSE);
+			} catch (SQLException e) {
+				LOGGER.error("Could not query all haunts", e);
 				return HttpResponseFactory.create500InternalServerError(Protocol.CLOSE);
 			}
-		} else if (index == SLASH_AFTER_HAUNTS) {
-			String id = uri.substring(index + 1);
+		} else if (id != null) {
 			try {
-				File file = dbHelper.executeQuery(GET_ONE_COMMAND + id, rootDirectory);
-				HttpResponse response = HttpResponseFactory.create200OK(file, Protocol.CLOSE);
-				response.put(Protocol.CONTENT_TYPE, Protocol.APPLICATION_JSON);
-				file.deleteOnExit();
-				return response;
-			} catch (SQLException | IOException e) {
-				e.printStackTrace();
+				IBodyWriter rows = dbHelper.executeQuery(GET_ONE_COMMAND + id);
+				return HttpResponseFactory.create200Streaming(request, Protocol.APPLICATION_JSON, rows,
+						Protocol.CLOSE);
+			} catch (SQLException e) {
+				LOGGER.error("Could not query haunt " + id, e);
 				return HttpResponseFactory.create500InternalServerError(Protocol.CLOSE);
 			}
 		}
@@ -79,10 +79,8 @@ public class HauntsServlet implements IServlet {
 
 	@Override
 	public HttpResponse doPut(HttpRequest request, String rootDirectory) {
-		String uri = request.getUri();
-		int index = uri.lastIndexOf("/");
-		if (index == SLASH_AFTER_HAUNTS && index + 1 < uri.length()) {
-			String id = uri.substring(index + 1);
+		String id = getId(request);
+		if (id != null && !id.isEmpty()) {
 			try {
 				JsonParser parser = new JsonParser();
 				JsonObject o = (JsonObject) parser.parse(new String(request.getBody()));
@@ -102,9 +100,7 @@ public class HauntsServlet implements IServlet {
 
 	@Override
 	public HttpResponse doPost(HttpRequest request, String rootDirectory) {
-		String uri = request.getUri();
-		int index = uri.lastIndexOf("/");
-		if (index == SLASH_BEFORE_HAUNTS || index + 1 == uri.length()) {
+		if ("".equals(getId(request))) {
 			try {
 				JsonParser parser = new JsonParser();
 				JsonObject o = (JsonObject) parser.parse(new String(request.getBody()));
@@ -124,10 +120,8 @@ public class HauntsServlet implements IServlet {
 
 	@Override
 	public HttpResponse doDelete(HttpRequest request, String rootDirectory) {
-		String uri = request.getUri();
-		int index = uri.lastIndexOf("/");
-		if (index == SLASH_AFTER_HAUNTS && index + 1 < uri.length()) {
-			String id = uri.substring(index + 1);
+		String id = getId(request);
+		if (id != null && !id.isEmpty()) {
 			try {
 				String command = DELETE_COMMAND + id;
 				boolean dbResponse = dbHelper.executeUpdate(command);
@@ -146,12 +140,37 @@ public class HauntsServlet implements IServlet {
 	@Override
 	public HttpResponse doOptions(HttpRequest request, String rootDirectory) {
 		HttpResponse response = HttpResponseFactory.create204NoContent(Protocol.CLOSE);
-		response.put(Protocol.ACCESS_CONTROL_ALLOW_ORIGIN, request.getHeader().get("origin"));
+		response.put(Protocol.ACCESS_CONTROL_ALLOW_ORIGIN, request.getHeader(HttpHeader.ORIGIN));
 		response.put(Protocol.ACCESS_CONTROL_ALLOW_METHODS, METHODS);
-		response.put(Protocol.ACCESS_CONTROL_ALLOW_HEADERS, request.getHeader().get("access-control-request-headers"));
+		response.put(Protocol.ACCESS_CONTROL_ALLOW_HEADERS, request.getHeader(HttpHeader.ACCESS_CONTROL_REQUEST_HEADERS));
 		return response;
 	}
 
+	/**
+	 * Finds the ID after the collection in the request path. Only digits are
+	 * accepted, since the ID ends up in an SQL command.
+	 * 
+	 * @return the ID, an empty string if the path ends with the collection,
+	 *         or null if the path does not name the collection or an ID in it
+	 */
+	private static String getId(HttpRequest request) {
+		List<String> segments = request.getPathSegments();
+		int index = segments.lastIndexOf(COLLECTION);
+		if (index < 0 || index + 2 < segments.size()) {
+			return null;
+		}
+		if (index + 1 == segments.size()) {
+			return "";
+		}
+		String id = segments.get(index + 1);
+		for (int i = 0; i < id.length(); i++) {
+			if (!Character.isDigit(id.charAt(i))) {
+				return null;
+			}
+		}
+		return id;
+	}
+	
 	// Unused
 	@Override
 	public String getFilePath() {
@@ -23,28 +23,22 @@ public class BasicServlet implements IServlet {
 	@Override
 	public HttpResponse doGet(HttpRequest request, String rootDirectory) {
 		HttpResponse response;
-		// Map<String, String> header = request.getHeader();
-		// String date = header.get("if-modified-since");
-		// String hostName = header.get("host");
-		//
 		// Handling GET request here
 		String path = getFilePath();
 
 		File file = new File(rootDirectory + path);
 
-		System.out.println(file);
-
 		if (file.exists()) {
 			if (file.isDirectory()) {
 				String location = rootDirectory + Protocol.SYSTEM_SEPARATOR + Protocol.DEFAULT_FILE;
 				file = new File(location);
 				if (file.exists()) {
-					response = HttpResponseFactory.create200OK(file, Protocol.CLOSE);
+					response = HttpResponseFactory.createFileResponse(request, file, Protocol.CLOSE);
 				} else {
 					response = HttpResponseFactory.create404NotFound(Protocol.CLOSE);
 				}
 			} else {
-				response = HttpResponseFactory.create200OK(file, Protocol.CLOSE);
+				response = HttpResponseFactory.createFileResponse(request, file, Protocol.CLOSE);
 			}
 		} else {
 			response = HttpResponseFactory.create404NotFound(Protocol.CLOSE);
@@ -54,7 +54,9 @@ import javax.swing.WindowConstants;
 
 import protocol.Protocol;
 import protocol.plugin.AbstractPlugin;
+import server.ConcurrencyLimit;
 import server.JarClassLoader;
+import server.LatencyHistogram;
 import server.Server;
 
 /**
@@ -79,6 +81,10 @@ public class WebServer extends JFrame {
 	private JButton butStopServer;
 	private JLabel lblServiceRate;
 	private JTextField txtServiceRate;
+	private JLabel lblDispatchLatency;
+	private JTextField txtDispatchLatency;
+	private JLabel lblConcurrencyLimit;
+	private JTextField txtConcurrencyLimit;
 
 	private Server server;
 	private ServiceRateUpdater rateUpdater;
@@ -102,6 +108,16 @@ public class WebServer extends JFrame {
 						WebServer.this.txtServiceRate.setText("Unknown");
 					else
 						WebServer.this.txtServiceRate.setText(Double.toString(rate));
+
+					LatencyHistogram latency = server.getDispatchLatency();
+					if (latency.getCount() == 0)
+						WebServer.this.txtDispatchLatency.setText("Unknown");
+					else
+						WebServer.this.txtDispatchLatency.setText(latency.getPercentile(0.5) / 1000.0 + " / "
+								+ latency.getPercentile(0.99) / 1000.0);
+
+					ConcurrencyLimit limit = server.getConcurrencyLimit();
+					WebServer.this.txtConcurrencyLimit.setText(limit.getLimit() + " / " + limit.getRtt() / 1000000.0);
 				}
 
 				// Poll at an interval of 500 milliseconds
@@ -153,6 +169,10 @@ public class WebServer extends JFrame {
 		this.butStopServer.setEnabled(false);
 		this.lblServiceRate = new JLabel("Service Rate (Connections Serviced/Second)");
 		this.txtServiceRate = new JTextField("Unknown");
+		this.lblDispatchLatency = new JLabel("Dispatch Latency p50 / p99 (Milliseconds)");
+		this.txtDispatchLatency = new JTextField("Unknown");
+		this.lblConcurrencyLimit = new JLabel("Concurrency Limit / Last Request (Milliseconds)");
+		this.txtConcurrencyLimit = new JTextField("Unknown");
 
 		// panelRunServer uses FlowLayout by default
 		this.panelRunServer.setBorder(BorderFactory.createTitledBorder("Run Server"));
@@ -161,9 +181,13 @@ public class WebServer extends JFrame {
 		this.panelRunServer.add(this.butStopServer);
 		this.panelRunServer.add(this.lblServiceRate);
 		this.panelRunServer.add(this.txtServiceRate);
+		this.panelRunServer.add(this.lblDispatchLatency);
+		this.panelRunServer.add(this.txtDispatchLatency);
+		this.panelRunServer.add(this.lblConcurrencyLimit);
+		this.panelRunServer.add(this.txtConcurrencyLimit);
 
 		// Compact the grid
-		SpringUtilities.makeCompactGrid(this.panelRunServer, 2, 2, 5, 5, 5, 5);
+		SpringUtilities.makeCompactGrid(this.panelRunServer, 4, 2, 5, 5, 5, 5);
 
 		JPanel contentPane = (JPanel) this.getContentPane();
 		contentPane.add(this.panelInput, BorderLayout.CENTER);
@@ -0,0 +1,143 @@
+package protocol;
+
+import java.util.Arrays;
+
+/**
+ * Parses the <tt>Range</tt> header field of a request, such as
+ * <tt>bytes=0-499, 1000-, -200</tt>, against the length of a file. Ranges
+ * past the end of the file are dropped and the rest are clipped to it. The
+ * ranges are then sorted, and ranges that overlap or lie close together are
+ * merged, so a client cannot make the server send the same bytes many times
+ * over or split a file into tiny parts.
+ */
+class ByteRanges {
+	/**
+	 * The most ranges a request may ask for; the whole file is sent to a
+	 * request asking for more.
+	 */
+	static final int MAX_RANGES = 16;
+
+	/**
+	 * Ranges closer together than this are sent as one, as a part header
+	 * costs about as many bytes.
+	 */
+	private static final long COALESCE_GAP = 80;
+
+	private static final String UNIT = "bytes=";
+
+	private ByteRanges() {
+	}
+
+	/**
+	 * Parses a <tt>Range</tt> field.
+	 *
+	 * @param value
+	 *            The field value.
+	 * @param length
+	 *            The length of the file.
+	 * @return the first and last byte of each range, in pairs, an empty array
+	 *         if no range can be satisfied, or null if the field should be
+	 *         ignored and the whole file sent
+	 */
+	static long[] parse(String value, long length) {
+		value = value.trim();
+		if (!value.regionMatches(true, 0, UNIT, 0, UNIT.length())) {
+			// Bytes are the only unit there is
+			return null;
+		}
+
+		String[] specs = value.substring(UNIT.length()).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+		long[] ranges = new long[specs.length * 2];
+		int count = 0;
+		for (String spec : specs) {
+			spec = spec.trim();
+			if (spec.isEmpty()) {
+				continue;
+			}
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+			long first;
+			long last;
+			if (dash == 0) {
+				// A suffix range asks for the last so many bytes
+				long suffix = parseNumber(spec.substring(1));
+				if (suffix < 0) {
+					return null;
+				}
+				if (suffix == 0 || length == 0) {
+					continue;
+				}
+				first = Math.max(0, length - suffix);
+				last = length - 1;
+			} else {
+				first = parseNumber(spec.substring(0, dash));
+				last = dash == spec.length() - 1 ? Long.MAX_VALUE : parseNumber(spec.substring(dash + 1));
+				if (first < 0 || last < first) {
+					return null;
+				}
+				if (first >= length) {
+					continue;
+				}
+				last = Math.min(last, length - 1);
+			}
+			ranges[count++] = first;
+			ranges[count++] = last;
+		}
+		if (count == 0) {
+			return new long[0];
+		}
+		return coalesce(ranges, count);
+	}
+
+	private static long[] coalesce(long[] ranges, int count) {
+		// Lets sort the pairs by their first byte; there are only a few
+		for (int i = 2; i < count; i += 2) {
+			long first = ranges[i];
+			long last = ranges[i + 1];
+			int j = i;
+			while (j > 0 && ranges[j - 2] > first) {
+				ranges[j] = ranges[j - 2];
+				ranges[j + 1] = ranges[j - 1];
+				j -= 2;
+			}
+			ranges[j] = first;
+			ranges[j + 1] = last;
+		}
+
+		int merged = 2;
+		for (int i = 2; i < count; i += 2) {
+			if (ranges[i] <= ranges[merged - 1] + 1 + COALESCE_GAP) {
+				ranges[merged - 1] = Math.max(ranges[merged - 1], ranges[i + 1]);
+			} else {
+				ranges[merged++] = ranges[i];
+				ranges[merged++] = ranges[i + 1];
+			}
+		}
+		return Arrays.copyOf(ranges, merged);
+	}
+
+	/**
+	 * @return the number, or -1 if the text is not a number that fits in a
+	 *         long
+	 */
+	private static long parseNumber(String text) {
+		text = text.trim();
+		if (text.isEmpty() || text.length() > 18) {
+			return -1;
+		}
+		long number = 0;
+		for (int i = 0; i < text.length(); i++) {
+			int digit = Character.digit(text.charAt(i), 10);
+			if (digit < 0) {
+				return -1;
+			}
+			number = number * 10 + digit;
+		}
+		return number;
+	}
+}
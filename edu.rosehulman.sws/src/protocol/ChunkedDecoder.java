@@ -0,0 +1,247 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes a body sent with <tt>Transfer-Encoding: chunked</tt>. Like the
+ * {@link HttpRequestParser} it works a byte at a time and can stop wherever
+ * the input runs out, so the blocking reader can stream the body to a servlet
+ * while the client is still sending it, and the non-blocking transport can
+ * collect it as bytes arrive. The size of each chunk and of the whole body are
+ * limited, and trailer fields are added to the request. A decoder is reused
+ * for each chunked body through {@link #reset}.
+ */
+class ChunkedDecoder {
+	private enum State {
+		SIZE, EXTENSION, SIZE_LF, DATA, DATA_CR, DATA_LF, TRAILER, TRAILER_LF, DONE
+	}
+
+	/**
+	 * The most bytes a chunk size line, or all trailer fields together, may
+	 * take.
+	 */
+	private static final int MAX_LINE_SIZE = 8 * 1024;
+
+	private long maxChunkSize;
+	private long maxBodySize;
+	private HttpRequest request;
+	private State state;
+	private boolean sizeDigits;
+	private long chunkSize;
+	private long chunkRemaining;
+	private long bodySize;
+	private int lineSize;
+	private int trailerSize;
+	private byte[] line;
+	private int lineLength;
+
+	ChunkedDecoder() {
+		this.line = new byte[64];
+	}
+
+	/**
+	 * Gets the decoder ready for the next body.
+	 *
+	 * @param maxChunkSize
+	 *            The largest chunk allowed.
+	 * @param maxBodySize
+	 *            The most bytes all chunks together may hold.
+	 * @param request
+	 *            The request trailer fields are added to.
+	 */
+	void reset(long maxChunkSize, long maxBodySize, HttpRequest request) {
+		this.maxChunkSize = maxChunkSize;
+		this.maxBodySize = maxBodySize;
+		this.request = request;
+		this.startChunk();
+		this.chunkRemaining = 0;
+		this.bodySize = 0;
+		this.trailerSize = 0;
+		this.lineLength = 0;
+	}
+
+	/**
+	 * @return whether the last chunk and the trailer have been read
+	 */
+	boolean isDone() {
+		return this.state == State.DONE;
+	}
+
+	/**
+	 * Consumes encoded bytes from the buffer and copies the data they carry
+	 * into the array, until the array is full, the buffer runs out or the body
+	 * ends. Bytes after the end of the body are left in the buffer.
+	 *
+	 * @param in
+	 *            The encoded bytes. Its position is moved past the bytes
+	 *            consumed.
+	 * @param out
+	 *            The array to copy data into.
+	 * @param off
+	 *            Where in the array to start.
+	 * @param len
+	 *            The most data bytes to copy.
+	 * @return the number of data bytes copied, which may be 0
+	 * @throws ProtocolException
+	 *             if the encoding is broken, or a limit is exceeded
+	 */
+	int decode(ByteBuffer in, byte[] out, int off, int len) throws ProtocolException {
+		int copied = 0;
+		while (this.state != State.DONE && in.hasRemaining()) {
+			if (this.state == State.DATA) {
+				if (copied == len) {
+					break;
+				}
+				int count = (int) Math.min(Math.min(len - copied, in.remaining()), this.chunkRemaining);
+				in.get(out, off + copied, count);
+				copied += count;
+				this.chunkRemaining -= count;
+				if (this.chunkRemaining == 0) {
+					this.state = State.DATA_CR;
+				}
+				continue;
+			}
+			this.consume(in.get());
+		}
+		return copied;
+	}
+
+	private void consume(byte b) throws ProtocolException {
+		switch (this.state) {
+		case SIZE:
+			this.countLine();
+			int digit = Character.digit(b, 16);
+			if (digit >= 0) {
+				this.sizeDigits = true;
+				if (this.chunkSize > (this.maxChunkSize - digit) / 16) {
+					throw new ProtocolException(RequestLimit.CHUNK_SIZE);
+				}
+				this.chunkSize = this.chunkSize * 16 + digit;
+			} else if (!this.sizeDigits) {
+				throw badRequest();
+			} else if (b == ';' || b == Protocol.SPACE || b == '\t') {
+				// Chunk extensions are allowed but none are understood
+				this.state = State.EXTENSION;
+			} else if (b == Protocol.CR) {
+				this.state = State.SIZE_LF;
+			} else if (b == Protocol.LF) {
+				this.endSizeLine();
+			} else {
+				throw badRequest();
+			}
+			break;
+
+		case EXTENSION:
+			this.countLine();
+			if (b == Protocol.CR) {
+				this.state = State.SIZE_LF;
+			} else if (b == Protocol.LF) {
+				this.endSizeLine();
+			}
+			break;
+
+		case SIZE_LF:
+			if (b != Protocol.LF) {
+				throw badRequest();
+			}
+			this.endSizeLine();
+			break;
+
+		case DATA_CR:
+			if (b == Protocol.CR) {
+				this.state = State.DATA_LF;
+			} else if (b == Protocol.LF) {
+				this.startChunk();
+			} else {
+				throw badRequest();
+			}
+			break;
+
+		case DATA_LF:
+			if (b != Protocol.LF) {
+				throw badRequest();
+			}
+			this.startChunk();
+			break;
+
+		case TRAILER:
+			if (b == Protocol.CR) {
+				this.state = State.TRAILER_LF;
+			} else if (b == Protocol.LF) {
+				this.endTrailerLine();
+			} else {
+				if (++this.trailerSize > MAX_LINE_SIZE) {
+					throw badRequest();
+				}
+				if (this.lineLength == this.line.length) {
+					byte[] grown = new byte[this.line.length * 2];
+					System.arraycopy(this.line, 0, grown, 0, this.lineLength);
+					this.line = grown;
+				}
+				this.line[this.lineLength++] = b;
+			}
+			break;
+
+		case TRAILER_LF:
+			if (b != Protocol.LF) {
+				throw badRequest();
+			}
+			this.endTrailerLine();
+			break;
+
+		default:
+			throw new IllegalStateException(this.state.toString());
+		}
+	}
+
+	private void countLine() throws ProtocolException {
+		if (++this.lineSize > MAX_LINE_SIZE) {
+			throw badRequest();
+		}
+	}
+
+	private void endSizeLine() throws ProtocolException {
+		if (this.chunkSize == 0) {
+			// The last chunk is followed by the trailer
+			this.state = State.TRAILER;
+			return;
+		}
+		this.bodySize += this.chunkSize;
+		if (this.bodySize > this.maxBodySize) {
+			throw new ProtocolException(RequestLimit.BODY_SIZE);
+		}
+		this.chunkRemaining = this.chunkSize;
+		this.state = State.DATA;
+	}
+
+	private void startChunk() {
+		this.state = State.SIZE;
+		this.sizeDigits = false;
+		this.chunkSize = 0;
+		this.lineSize = 0;
+	}
+
+	private void endTrailerLine() throws ProtocolException {
+		if (this.lineLength == 0) {
+			this.state = State.DONE;
+			return;
+		}
+
+		String field = new String(this.line, 0, this.lineLength, StandardCharsets.ISO_8859_1);
+		this.lineLength = 0;
+		this.state = State.TRAILER;
+		int colon = field.indexOf(Protocol.SEPERATOR);
+		if (colon <= 0 || Character.isWhitespace(field.charAt(0))
+				|| Character.isWhitespace(field.charAt(colon - 1))) {
+			throw badRequest();
+		}
+		String name = field.substring(0, colon).toLowerCase();
+		String value = field.substring(colon + 1).trim();
+		this.request.addTrailer(name, value);
+	}
+
+	private static ProtocolException badRequest() {
+		return new ProtocolException(Protocol.BAD_REQUEST_CODE, Protocol.BAD_REQUEST_TEXT);
+	}
+}
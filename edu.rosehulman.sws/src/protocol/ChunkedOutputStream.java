@@ -0,0 +1,115 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes a body with <tt>Transfer-Encoding: chunked</tt> as it is written,
+ * the counterpart of the {@link ChunkedDecoder}. Bytes are gathered until a
+ * chunk is full or the stream is flushed; each chunk then goes to the
+ * underlying stream in a single write, size line and all, and the underlying
+ * stream is flushed so the client gets the chunk right away. Closing the
+ * stream sends the last chunk but leaves the underlying stream open, as the
+ * connection may carry more responses.
+ */
+class ChunkedOutputStream extends OutputStream {
+	/**
+	 * The most bytes of data in a chunk.
+	 */
+	static final int CHUNK_SIZE = 8 * 1024;
+
+	/**
+	 * Room before the data for the size line: the hex digits of the size and
+	 * a CRLF.
+	 */
+	private static final int SIZE_ROOM = 10;
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] LAST_CHUNK = ("0" + Protocol.CRLF + Protocol.CRLF).getBytes(StandardCharsets.US_ASCII);
+
+	private final OutputStream out;
+	private final byte[] chunk;
+	private int length;
+	private boolean closed;
+
+	ChunkedOutputStream(OutputStream out) {
+		this.out = out;
+		this.chunk = new byte[SIZE_ROOM + CHUNK_SIZE + 2];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		if (this.length == CHUNK_SIZE) {
+			sendChunk();
+			this.out.flush();
+		}
+		this.chunk[SIZE_ROOM + this.length++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		while (len > 0) {
+			if (this.length == CHUNK_SIZE) {
+				sendChunk();
+				this.out.flush();
+			}
+			int count = Math.min(CHUNK_SIZE - this.length, len);
+			System.arraycopy(b, off, this.chunk, SIZE_ROOM + this.length, count);
+			this.length += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		sendChunk();
+		this.out.flush();
+	}
+
+	/**
+	 * Sends what is left and the last chunk, which ends the body.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		sendChunk();
+		this.out.write(LAST_CHUNK);
+		this.out.flush();
+	}
+
+	/**
+	 * Writes the gathered data as a chunk, unless there is none; an empty
+	 * chunk would end the body.
+	 */
+	private void sendChunk() throws IOException {
+		if (this.length == 0) {
+			return;
+		}
+		// Lets write the size line right before the data
+		int start = SIZE_ROOM - 2;
+		this.chunk[start] = '\r';
+		this.chunk[start + 1] = '\n';
+		for (int size = this.length; size != 0; size >>>= 4) {
+			this.chunk[--start] = HEX[size & 0xf];
+		}
+		int end = SIZE_ROOM + this.length;
+		this.chunk[end] = '\r';
+		this.chunk[end + 1] = '\n';
+		this.out.write(this.chunk, start, end + 2 - start);
+		this.length = 0;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (this.closed) {
+			throw new IOException("The body has already ended");
+		}
+	}
+}
@@ -0,0 +1,385 @@
+package protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decides which files are worth compressing and keeps their compressed
+ * variants in memory. A variant is keyed by the entity tag of the file and
+ * the coding, so each version of a file is compressed once per coding. A
+ * variant is only kept if the file read is still the version the tag was
+ * computed for. Files below a minimum size gain little, files above a maximum size
+ * are better sent straight from disk, and types that are compressed already,
+ * such as images and archives, are left alone. The least recently used
+ * variants are dropped once their total size passes the cache size.
+ */
+public class Compression {
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+
+	/**
+	 * The smallest file compressed unless configured otherwise.
+	 */
+	public static final int DEFAULT_MIN_SIZE = 1024;
+
+	/**
+	 * The largest file compressed unless configured otherwise.
+	 */
+	public static final long DEFAULT_MAX_SIZE = 4L << 20;
+
+	/**
+	 * The bytes of compressed variants kept unless configured otherwise.
+	 */
+	public static final long DEFAULT_CACHE_SIZE = 32L << 20;
+
+	private static final Compression SHARED = new Compression(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_CACHE_SIZE);
+
+	private final LinkedHashMap<String, FutureTask<byte[]>> variants;
+	private long minSize;
+	private long maxSize;
+	private long cacheSize;
+	private long cachedBytes;
+	private long hits;
+	private long misses;
+
+	public Compression(long minSize, long maxSize, long cacheSize) {
+		this.minSize = Math.max(0, minSize);
+		this.maxSize = Math.max(0, maxSize);
+		this.cacheSize = Math.max(0, cacheSize);
+		this.variants = new LinkedHashMap<String, FutureTask<byte[]>>(16, 0.75f, true);
+	}
+
+	/**
+	 * @return the compression settings and cache shared by every response of
+	 *         this process
+	 */
+	public static Compression getShared() {
+		return SHARED;
+	}
+
+	/**
+	 * Picks the coding to send a response in from an <tt>Accept-Encoding</tt>
+	 * field, such as <tt>gzip;q=1.0, deflate;q=0.5</tt>. The coding with the
+	 * highest quality wins, gzip on a tie; <tt>*</tt> stands for any coding
+	 * not listed.
+	 *
+	 * @param acceptEncoding
+	 *            The field value, or null if it was not sent.
+	 * @return {@link #GZIP}, {@link #DEFLATE}, or null to send the response
+	 *         as it is
+	 */
+	public static String selectCoding(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		float gzip = -1;
+		float deflate = -1;
+		float any = -1;
+		for (String item : acceptEncoding.split(",")) {
+			int semicolon = item.indexOf(';');
+			String coding = (semicolon < 0 ? item : item.substring(0, semicolon)).trim();
+			float quality = semicolon < 0 ? 1 : parseQuality(item.substring(semicolon + 1));
+			if (coding.equalsIgnoreCase(GZIP) || coding.equalsIgnoreCase("x-gzip")) {
+				gzip = Math.max(gzip, quality);
+			} else if (coding.equalsIgnoreCase(DEFLATE)) {
+				deflate = Math.max(deflate, quality);
+			} else if (coding.equals("*")) {
+				any = quality;
+			}
+		}
+		if (gzip < 0) {
+			gzip = any;
+		}
+		if (deflate < 0) {
+			deflate = any;
+		}
+		if (gzip > 0 && gzip >= deflate) {
+			return GZIP;
+		}
+		if (deflate > 0) {
+			return DEFLATE;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the quality in a parameter list such as <tt>q=0.5</tt>, 1 if
+	 *         there is none, or 0 if it cannot be read
+	 */
+	private static float parseQuality(String parameters) {
+		for (String parameter : parameters.split(";")) {
+			parameter = parameter.trim();
+			if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+				try {
+					return Float.parseFloat(parameter.substring(2).trim());
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * Decides whether a file is worth compressing.
+	 *
+	 * @param mime
+	 *            The MIME type of the file, or null if it is not known.
+	 * @param length
+	 *            The length of the file.
+	 * @return whether the file is text of a size worth compressing
+	 */
+	public boolean isCompressible(String mime, long length) {
+		synchronized (this) {
+			if (length < this.minSize || length > this.maxSize) {
+				return false;
+			}
+		}
+		return isTextType(mime);
+	}
+
+	/**
+	 * Decides whether a body made while it is sent is worth compressing. Its
+	 * size is not known, so it is compressed as it is written, unless
+	 * compression is turned off.
+	 *
+	 * @param mime
+	 *            The MIME type of the body, or null if it is not known.
+	 * @return whether the body is text and compression is on
+	 */
+	public boolean isCompressible(String mime) {
+		synchronized (this) {
+			if (this.maxSize == 0) {
+				return false;
+			}
+		}
+		return isTextType(mime);
+	}
+
+	private static boolean isTextType(String mime) {
+		if (mime == null) {
+			return false;
+		}
+		int semicolon = mime.indexOf(';');
+		String type = (semicolon < 0 ? mime : mime.substring(0, semicolon)).trim().toLowerCase();
+		return type.startsWith("text/") || type.endsWith("+json") || type.endsWith("+xml")
+				|| type.equals(Protocol.APPLICATION_JSON) || type.equals("application/javascript")
+				|| type.equals("application/x-javascript") || type.equals("application/xml");
+	}
+
+	/**
+	 * Makes the tag of a compressed variant from the tag of the file, so the
+	 * two are never confused: <tt>"abc"</tt> becomes <tt>"abc-gzip"</tt>.
+	 *
+	 * @param tag
+	 *            The tag of the file, including its quotes.
+	 * @param coding
+	 *            The coding of the variant.
+	 * @return the tag of the variant
+	 */
+	public static String variantTag(String tag, String coding) {
+		return tag.substring(0, tag.length() - 1) + "-" + coding + "\"";
+	}
+
+	/**
+	 * Gets the compressed content of a file, compressing it if it is not
+	 * cached. Requests for a variant being compressed wait for it rather than
+	 * compressing the file again.
+	 *
+	 * @param file
+	 *            The file.
+	 * @param tag
+	 *            The current tag of the file, from the {@link EntityTagCache}.
+	 * @param coding
+	 *            {@link #GZIP} or {@link #DEFLATE}.
+	 * @return the compressed bytes, or null if the file changed since the tag
+	 *         was computed, in which case nothing is cached
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public byte[] getVariant(final File file, final String tag, final String coding) throws IOException {
+		String key = variantTag(tag, coding);
+		FutureTask<byte[]> variant;
+		boolean compressing = false;
+		synchronized (this) {
+			variant = this.variants.get(key);
+			if (variant != null) {
+				this.hits++;
+			} else {
+				this.misses++;
+				variant = new FutureTask<byte[]>(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws IOException {
+						return compressVersion(file, tag, coding);
+					}
+				});
+				this.variants.put(key, variant);
+				compressing = true;
+			}
+		}
+
+		if (compressing) {
+			variant.run();
+		}
+		byte[] bytes;
+		try {
+			bytes = variant.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + file + " to be compressed");
+		} catch (ExecutionException e) {
+			// Lets not remember failures, the file may be readable later
+			this.remove(key, variant);
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+		if (bytes == null) {
+			// The bytes read do not belong to the tag, so they are not kept
+			// under it
+			this.remove(key, variant);
+		} else if (compressing) {
+			this.account(key, variant, bytes.length);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Compresses the file if it is still the version the tag belongs to. The
+	 * tag is looked up again once the file has been read, and the file must
+	 * not have changed while it was read.
+	 *
+	 * @return the compressed bytes, or null if the file is another version
+	 */
+	private static byte[] compressVersion(File file, String tag, String coding) throws IOException {
+		Path path = file.toPath();
+		BasicFileAttributes before = Files.readAttributes(path, BasicFileAttributes.class);
+		byte[] content = Files.readAllBytes(path);
+		if (!tag.equals(EntityTagCache.getShared().getTag(file))) {
+			return null;
+		}
+		BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+		if (before.size() != content.length || after.size() != before.size()
+				|| !after.lastModifiedTime().equals(before.lastModifiedTime())) {
+			return null;
+		}
+		return compress(content, coding);
+	}
+
+	/**
+	 * Counts a new variant against the cache size, dropping the least
+	 * recently used ones to make room. A variant larger than the whole cache
+	 * is not kept.
+	 */
+	private synchronized void account(String key, FutureTask<byte[]> variant, int length) {
+		if (this.variants.get(key) != variant) {
+			return;
+		}
+		this.cachedBytes += length;
+		Iterator<Map.Entry<String, FutureTask<byte[]>>> eldest = this.variants.entrySet().iterator();
+		while (this.cachedBytes > this.cacheSize && eldest.hasNext()) {
+			Map.Entry<String, FutureTask<byte[]>> entry = eldest.next();
+			if (!entry.getValue().isDone()) {
+				// Still being compressed, so not counted yet
+				continue;
+			}
+			this.cachedBytes -= sizeOf(entry.getValue());
+			eldest.remove();
+		}
+	}
+
+	private synchronized void remove(String key, FutureTask<byte[]> variant) {
+		if (this.variants.get(key) == variant) {
+			this.variants.remove(key);
+		}
+	}
+
+	private static int sizeOf(FutureTask<byte[]> variant) {
+		try {
+			return variant.get().length;
+		} catch (Exception e) {
+			// Failed variants are removed before they are counted
+			return 0;
+		}
+	}
+
+	private static byte[] compress(byte[] content, String coding) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4 + 64);
+		// Variants are made once and sent many times, so they are worth the
+		// smallest output
+		OutputStream compressor;
+		if (GZIP.equals(coding)) {
+			compressor = new GZIPOutputStream(out) {
+				{
+					this.def.setLevel(Deflater.BEST_COMPRESSION);
+				}
+			};
+		} else {
+			compressor = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_COMPRESSION));
+		}
+		compressor.write(content);
+		compressor.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * @param minSize
+	 *            the smallest file compressed
+	 */
+	public synchronized void setMinSize(long minSize) {
+		this.minSize = Math.max(0, minSize);
+	}
+
+	/**
+	 * @param maxSize
+	 *            the largest file compressed, 0 to compress none
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = Math.max(0, maxSize);
+	}
+
+	/**
+	 * @param cacheSize
+	 *            the most bytes of compressed variants kept
+	 */
+	public synchronized void setCacheSize(long cacheSize) {
+		this.cacheSize = Math.max(0, cacheSize);
+	}
+
+	/**
+	 * @return the bytes of compressed variants kept now
+	 */
+	public synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+
+	/**
+	 * @return the number of variants sent without compressing
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of variants that had to be compressed
+	 */
+	public synchronized long getMisses() {
+		return misses;
+		}
+}
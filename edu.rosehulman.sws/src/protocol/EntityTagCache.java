@@ -0,0 +1,240 @@
+package protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Remembers the entity tag of each file served, so a file is hashed once per
+ * version rather than once per response. An entry is keyed by the file's
+ * path and belongs to one version of the file, identified by its size,
+ * modification time and file key (the inode, where the platform has one).
+ * Looking a file up costs one <tt>stat</tt>; a file that changed since it was
+ * hashed is hashed again. The first request for a version computes the
+ * digest, and requests for the same version that arrive meanwhile wait for
+ * it instead of hashing the file too. The least recently used entries are
+ * dropped once the cache holds more than its capacity.
+ */
+public class EntityTagCache {
+	/**
+	 * The number of files remembered unless configured otherwise.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private static final EntityTagCache SHARED = new EntityTagCache(DEFAULT_CAPACITY);
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final LinkedHashMap<String, CachedTag> entries;
+	private int capacity;
+	private long hits;
+	private long misses;
+
+	public EntityTagCache(int capacity) {
+		this.capacity = Math.max(0, capacity);
+		this.entries = new LinkedHashMap<String, CachedTag>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedTag> eldest) {
+				return size() > EntityTagCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return the cache shared by every response of this process
+	 */
+	public static EntityTagCache getShared() {
+		return SHARED;
+	}
+
+	/**
+	 * Gets the strong entity tag of a file, including its quotes, as it goes
+	 * into the <tt>ETag</tt> header.
+	 *
+	 * @param file
+	 *            The file.
+	 * @return the tag, which changes whenever the file's content does
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public String getTag(File file) throws IOException {
+		final Path path = file.toPath().toAbsolutePath();
+		final Version version = new Version(Files.readAttributes(path, BasicFileAttributes.class));
+		String key = path.toString();
+		CachedTag cached;
+		boolean computing = false;
+		synchronized (this) {
+			cached = this.entries.get(key);
+			if (cached != null && cached.version.equals(version)) {
+				this.hits++;
+			} else {
+				this.misses++;
+				cached = new CachedTag(version, new FutureTask<String>(new Callable<String>() {
+					@Override
+					public String call() throws IOException {
+						return computeTag(path);
+					}
+				}));
+				this.entries.put(key, cached);
+				computing = true;
+			}
+		}
+
+		if (computing) {
+			cached.tag.run();
+			// A file written to while it was hashed may not match its tag, so
+			// the next request hashes it again
+			if (!version.equals(new Version(Files.readAttributes(path, BasicFileAttributes.class)))) {
+				this.remove(key, cached);
+			}
+		}
+		try {
+			return cached.tag.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the tag of " + file);
+		} catch (ExecutionException e) {
+			// Lets not remember failures, the file may be readable later
+			this.remove(key, cached);
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * @param capacity
+	 *            the most files remembered at once, 0 to remember none
+	 */
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = Math.max(0, capacity);
+		while (this.entries.size() > this.capacity) {
+			this.entries.remove(this.entries.keySet().iterator().next());
+		}
+	}
+
+	/**
+	 * @return the most files remembered at once
+	 */
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of files remembered
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of lookups answered without hashing
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of lookups that had to hash the file
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	private synchronized void remove(String key, CachedTag cached) {
+		if (this.entries.get(key) == cached) {
+			this.entries.remove(key);
+		}
+	}
+
+	/**
+	 * Hashes the file with MD5 and formats the digest in hex. The digest only
+	 * tells versions of a file apart, it does not need to resist attacks.
+	 */
+	private static String computeTag(Path path) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has to provide MD5
+			throw new IllegalStateException(e);
+		}
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(HttpResponse.TRANSFER_BUFFER_SIZE);
+			while (channel.read(buffer) > 0) {
+				buffer.flip();
+				md.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			channel.close();
+		}
+
+		byte[] digest = md.digest();
+		char[] tag = new char[digest.length * 2 + 2];
+		tag[0] = '"';
+		for (int i = 0; i < digest.length; i++) {
+			tag[i * 2 + 1] = HEX[(digest[i] >> 4) & 0xf];
+			tag[i * 2 + 2] = HEX[digest[i] & 0xf];
+		}
+		tag[tag.length - 1] = '"';
+		return new String(tag);
+	}
+
+	/**
+	 * What tells one version of a file from another without reading it.
+	 */
+	private static class Version {
+		private final long size;
+		private final long lastModified;
+		private final Object fileKey;
+
+		public Version(BasicFileAttributes attributes) {
+			this.size = attributes.size();
+			this.lastModified = attributes.lastModifiedTime().toMillis();
+			this.fileKey = attributes.fileKey();
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Version)) {
+				return false;
+			}
+			Version version = (Version) other;
+			return this.size == version.size && this.lastModified == version.lastModified
+					&& Objects.equals(this.fileKey, version.fileKey);
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (this.size ^ this.lastModified);
+		}
+	}
+
+	private static class CachedTag {
+		private final Version version;
+		private final FutureTask<String> tag;
+
+		public CachedTag(Version version, FutureTask<String> tag) {
+			this.version = version;
+			this.tag = tag;
+		}
+		}
+}
@@ -0,0 +1,150 @@
+package protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The request header fields the server and its plugins look at. The parser
+ * recognizes these names straight from the bytes of a request, ignoring case,
+ * and {@link HttpRequest} keeps them in fixed slots, so checking one of them
+ * needs neither a string for the name nor a hash lookup. Fields not listed
+ * here are still kept, and found by name.
+ */
+public enum HttpHeader {
+	ACCEPT("Accept"),
+	ACCEPT_ENCODING("Accept-Encoding"),
+	ACCEPT_LANGUAGE("Accept-Language"),
+	ACCESS_CONTROL_REQUEST_HEADERS("Access-Control-Request-Headers"),
+	ACCESS_CONTROL_REQUEST_METHOD("Access-Control-Request-Method"),
+	AUTHORIZATION("Authorization"),
+	CACHE_CONTROL("Cache-Control"),
+	CONNECTION(Protocol.CONNECTION),
+	CONTENT_LENGTH(Protocol.CONTENT_LENGTH),
+	CONTENT_TYPE(Protocol.CONTENT_TYPE),
+	COOKIE("Cookie"),
+	EXPECT("Expect"),
+	HOST(Protocol.HOST),
+	IF_MATCH("If-Match"),
+	IF_MODIFIED_SINCE("If-Modified-Since"),
+	IF_NONE_MATCH("If-None-Match"),
+	IF_RANGE("If-Range"),
+	IF_UNMODIFIED_SINCE("If-Unmodified-Since"),
+	KEEP_ALIVE(Protocol.KEEP_ALIVE),
+	ORIGIN("Origin"),
+	RANGE("Range"),
+	REFERER("Referer"),
+	TE("TE"),
+	TRANSFER_ENCODING(Protocol.TRANSFER_ENCODING),
+	UPGRADE("Upgrade"),
+	USER_AGENT(Protocol.USER_AGENT);
+
+	/*
+	 * An open addressing table from the case-insensitive hash of a name to
+	 * the header, at least four times as large as the number of headers so
+	 * probes stay short.
+	 */
+	private static final int TABLE_SIZE = 128;
+	private static final HttpHeader[] TABLE = new HttpHeader[TABLE_SIZE];
+
+	static {
+		for (HttpHeader header : values()) {
+			int slot = hash(header.bytes, header.bytes.length) & (TABLE_SIZE - 1);
+			while (TABLE[slot] != null) {
+				slot = (slot + 1) & (TABLE_SIZE - 1);
+			}
+			TABLE[slot] = header;
+		}
+	}
+
+	private final String name;
+	private final String lowerCaseName;
+	private final byte[] bytes;
+
+	private HttpHeader(String name) {
+		this.name = name;
+		this.lowerCaseName = name.toLowerCase();
+		this.bytes = this.lowerCaseName.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return the field name as it is usually written, e.g. "Content-Length"
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the field name in lower case, as {@link HttpRequest#getHeader()}
+	 *         lists it
+	 */
+	public String getLowerCaseName() {
+		return lowerCaseName;
+	}
+
+	/**
+	 * Finds the well-known header with the given name.
+	 *
+	 * @param name
+	 *            The bytes of the name, in any case.
+	 * @param length
+	 *            How many of the bytes make up the name.
+	 * @return the header, or null if the name is not a well-known one
+	 */
+	public static HttpHeader match(byte[] name, int length) {
+		int slot = hash(name, length) & (TABLE_SIZE - 1);
+		HttpHeader header;
+		while ((header = TABLE[slot]) != null) {
+			if (header.matches(name, length)) {
+				return header;
+			}
+			slot = (slot + 1) & (TABLE_SIZE - 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the well-known header with the given name.
+	 *
+	 * @param name
+	 *            The name, in any case.
+	 * @return the header, or null if the name is not a well-known one
+	 */
+	public static HttpHeader match(String name) {
+		int hash = 0;
+		for (int i = 0; i < name.length(); i++) {
+			hash = 31 * hash + toLowerCase(name.charAt(i));
+		}
+		int slot = hash & (TABLE_SIZE - 1);
+		HttpHeader header;
+		while ((header = TABLE[slot]) != null) {
+			if (header.lowerCaseName.length() == name.length() && header.lowerCaseName.equalsIgnoreCase(name)) {
+				return header;
+			}
+			slot = (slot + 1) & (TABLE_SIZE - 1);
+		}
+		return null;
+	}
+
+	private boolean matches(byte[] name, int length) {
+		if (this.bytes.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (this.bytes[i] != toLowerCase(name[i] & 0xff)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(byte[] name, int length) {
+		int hash = 0;
+		for (int i = 0; i < length; i++) {
+			hash = 31 * hash + toLowerCase(name[i] & 0xff);
+		}
+		return hash;
+	}
+
+	private static int toLowerCase(int c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+}
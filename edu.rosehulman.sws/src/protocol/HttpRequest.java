@@ -22,29 +22,349 @@
  
 package protocol;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.StringTokenizer;
+import java.util.Set;
 
 /**
  * Represents a request object for HTTP.
  * 
+ * <p>
+ * Requests are recycled for the next request on the same connection once
+ * their response has been written, so servlets must not keep hold of one after
+ * returning. The header fields are kept as the bytes they were sent as, in
+ * slots that are reused from request to request, and a value only becomes a
+ * string when it is asked for. Each {@link HttpHeader} has a fixed place
+ * recording where it was sent, so looking one up is a single array access;
+ * other fields are found by comparing names. The URI is kept as bytes too;
+ * its path, query parameters and form fields are decoded from them the first
+ * time they are asked for, and the results kept for later calls.
+ * 
  * @author Chandan R. Rupakheti (rupakhet@rose-hulman.edu)
  */
 public class HttpRequest {
+	/*
+	 * Each header field takes four ints in fields: where its name starts and
+	 * ends in head, and where its value starts and ends.
+	 */
+	private static final int NAME_START = 0;
+	private static final int NAME_END = 1;
+	private static final int VALUE_START = 2;
+	private static final int VALUE_END = 3;
+	private static final int FIELD_INTS = 4;
+	private static final String FORM_URLENCODED = "application/x-www-form-urlencoded";
+
 	private String method;
 	private String uri;
+	private byte[] uriBytes;
+	private int uriLength;
+	private int queryStart;
+	private String path;
+	private List<String> pathSegments;
+	private Map<String, List<String>> queryParameters;
+	private Map<String, List<String>> formParameters;
 	private String version;
+	private byte[] head;
+	private int headLength;
+	private int[] fields;
+	private int[] fieldHeaders;
+	private String[] values;
+	private int fieldCount;
+	private int[] knownFields;
 	private Map<String, String> header;
-	private char[] body;
+	private Map<String, String> trailers;
+	private InputStream body;
+	private long contentLength;
+	private byte[] bodyBytes;
+	private char[] bodyChars;
 	
-	private HttpRequest() {
-		this.header = new HashMap<String, String>();
-		this.body = new char[0];
+	HttpRequest() {
+		this.head = new byte[1024];
+		this.uriBytes = new byte[256];
+		this.fields = new int[16 * FIELD_INTS];
+		this.fieldHeaders = new int[16];
+		this.values = new String[16];
+		this.knownFields = new int[HttpHeader.values().length];
+		Arrays.fill(this.knownFields, -1);
+		this.header = new HeaderMap();
+		this.reset();
+	}
+
+	/**
+	 * Clears the request so it can be filled in again, keeping the buffers.
+	 */
+	void reset() {
+		this.method = null;
+		this.uri = null;
+		this.uriLength = 0;
+		this.path = null;
+		this.pathSegments = null;
+		this.queryParameters = null;
+		this.formParameters = null;
+		this.version = null;
+		this.headLength = 0;
+		for (int i = 0; i < this.fieldCount; i++) {
+			this.values[i] = null;
+			if (this.fieldHeaders[i] >= 0) {
+				this.knownFields[this.fieldHeaders[i]] = -1;
+			}
+		}
+		this.fieldCount = 0;
+		this.trailers = null;
+		this.body = null;
+		this.contentLength = 0;
+		this.bodyBytes = null;
+		this.bodyChars = null;
+	}
+
+	void setRequestLine(String method, String uri, String version) {
+		this.method = method;
+		this.uri = uri;
+		this.version = version;
+	}
+
+	/**
+	 * Keeps the URI as it was sent, still percent-encoded, to decode the path
+	 * and query from.
+	 */
+	void setRawUri(byte[] uri, int length) {
+		if (length > this.uriBytes.length) {
+			this.uriBytes = new byte[Math.max(length, this.uriBytes.length * 2)];
+		}
+		System.arraycopy(uri, 0, this.uriBytes, 0, length);
+		this.uriLength = length;
+		this.queryStart = -1;
+		for (int i = 0; i < length; i++) {
+			if (uri[i] == '?') {
+				this.queryStart = i + 1;
+				break;
+			}
+		}
+	}
+
+	void setBody(InputStream body, long contentLength) {
+		this.body = body;
+		this.contentLength = contentLength;
+	}
+
+	/**
+	 * Adds a header field. Fields sent more than once are kept apart and
+	 * joined when asked for.
+	 * 
+	 * @param name
+	 *            The field name, already in lower case.
+	 * @param value
+	 *            The field value, without surrounding whitespace.
+	 * @param header
+	 *            The well-known header with that name, or null.
+	 */
+	void addField(byte[] name, int nameLength, byte[] value, int valueLength, HttpHeader header) {
+		if (this.fieldCount == this.values.length) {
+			this.fields = Arrays.copyOf(this.fields, this.fields.length * 2);
+			this.fieldHeaders = Arrays.copyOf(this.fieldHeaders, this.fieldHeaders.length * 2);
+			this.values = Arrays.copyOf(this.values, this.values.length * 2);
+		}
+		if (header == null) {
+			this.fieldHeaders[this.fieldCount] = -1;
+		} else {
+			this.fieldHeaders[this.fieldCount] = header.ordinal();
+			if (this.knownFields[header.ordinal()] < 0) {
+				this.knownFields[header.ordinal()] = this.fieldCount;
+			}
+		}
+		if (this.headLength + nameLength + valueLength > this.head.length) {
+			this.head = Arrays.copyOf(this.head,
+					Math.max(this.head.length * 2, this.headLength + nameLength + valueLength));
+		}
+		int at = this.fieldCount * FIELD_INTS;
+		this.fields[at + NAME_START] = this.headLength;
+		System.arraycopy(name, 0, this.head, this.headLength, nameLength);
+		this.headLength += nameLength;
+		this.fields[at + NAME_END] = this.headLength;
+		this.fields[at + VALUE_START] = this.headLength;
+		System.arraycopy(value, 0, this.head, this.headLength, valueLength);
+		this.headLength += valueLength;
+		this.fields[at + VALUE_END] = this.headLength;
+		this.fieldCount++;
+	}
+
+	void addTrailer(String name, String value) {
+		if (this.trailers == null) {
+			this.trailers = new HashMap<String, String>();
+		}
+		String previous = this.trailers.get(name);
+		this.trailers.put(name, previous == null ? value : previous + ", " + value);
+	}
+
+	/**
+	 * Gets a header field value, joining the values of a field sent more than
+	 * once with commas.
+	 * 
+	 * @param name
+	 *            The field name, in any case.
+	 * @return the value, or null if the field was not sent
+	 */
+	String getField(String name) {
+		return this.getField(HttpHeader.match(name), name);
+	}
+
+	private String getField(HttpHeader header, String name) {
+		int first = this.indexOf(header, name, 0);
+		if (first < 0) {
+			return null;
+		}
+		if (this.values[first] == null) {
+			String value = this.decodeValue(first);
+			for (int i = this.indexOf(header, name, first + 1); i >= 0; i = this.indexOf(header, name, i + 1)) {
+				value = value + ", " + this.decodeValue(i);
+			}
+			this.values[first] = value;
+		}
+		return this.values[first];
+	}
+
+	/**
+	 * Parses a header field holding a number, without making a string of it.
+	 * 
+	 * @param header
+	 *            The header.
+	 * @return the number, or -1 if the field was not sent
+	 * @throws NumberFormatException
+	 *             if the field is not a single non-negative number
+	 */
+	long getLongField(HttpHeader header) {
+		int index = this.indexOf(header, null, 0);
+		if (index < 0) {
+			return -1;
+		}
+		if (this.indexOf(header, null, index + 1) >= 0) {
+			throw new NumberFormatException("Repeated " + header.getName());
+		}
+		int start = this.fields[index * FIELD_INTS + VALUE_START];
+		int end = this.fields[index * FIELD_INTS + VALUE_END];
+		if (start == end || end - start > 18) {
+			throw new NumberFormatException(header.getName());
+		}
+		long number = 0;
+		for (int i = start; i < end; i++) {
+			int digit = this.head[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException(header.getName());
+			}
+			number = number * 10 + digit;
+		}
+		return number;
+	}
+
+	/**
+	 * Whether a comma separated header field holds the given token, ignoring
+	 * case. Only the token found first out of the two given counts.
+	 * 
+	 * @return 1 if the first token was found first, 2 if the second was, or 0
+	 *         if neither was
+	 */
+	private int findToken(HttpHeader header, String first, String second) {
+		for (int i = this.indexOf(header, null, 0); i >= 0; i = this.indexOf(header, null, i + 1)) {
+			int end = this.fields[i * FIELD_INTS + VALUE_END];
+			int start = this.fields[i * FIELD_INTS + VALUE_START];
+			while (start < end) {
+				int comma = start;
+				while (comma < end && this.head[comma] != ',') {
+					comma++;
+				}
+				int tokenStart = start;
+				int tokenEnd = comma;
+				while (tokenStart < tokenEnd && isWhitespace(this.head[tokenStart])) {
+					tokenStart++;
+				}
+				while (tokenEnd > tokenStart && isWhitespace(this.head[tokenEnd - 1])) {
+					tokenEnd--;
+				}
+				if (this.regionMatches(first, tokenStart, tokenEnd)) {
+					return 1;
+				}
+				if (this.regionMatches(second, tokenStart, tokenEnd)) {
+					return 2;
+				}
+				start = comma + 1;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Finds the next slot holding the given field.
+	 * 
+	 * @param header
+	 *            The well-known header, or null to search by name.
+	 * @param name
+	 *            The name of a field that is not a well-known header.
+	 * @return the slot, or -1 if there are no more
+	 */
+	private int indexOf(HttpHeader header, String name, int from) {
+		if (header != null) {
+			if (from == 0) {
+				return this.knownFields[header.ordinal()];
+			}
+			for (int i = from; i < this.fieldCount; i++) {
+				if (this.fieldHeaders[i] == header.ordinal()) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		for (int i = from; i < this.fieldCount; i++) {
+			if (this.fieldHeaders[i] < 0 && this.regionMatches(name, this.fields[i * FIELD_INTS + NAME_START],
+					this.fields[i * FIELD_INTS + NAME_END])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Compares a string with bytes of the head, ignoring case.
+	 */
+	private boolean regionMatches(String text, int start, int end) {
+		if (text.length() != end - start) {
+			return false;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			int a = text.charAt(i);
+			int b = this.head[start + i] & 0xff;
+			if (a != b && toLowerCase(a) != toLowerCase(b)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String decodeValue(int index) {
+		int start = this.fields[index * FIELD_INTS + VALUE_START];
+		int end = this.fields[index * FIELD_INTS + VALUE_END];
+		return new String(this.head, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+
+	private static int toLowerCase(int c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == Protocol.SPACE || b == '\t';
 	}
 	
 	/**
@@ -65,6 +385,140 @@ public class HttpRequest {
 		return uri;
 	}
 
+	/**
+	 * The path of the URI, without the query string and with percent escapes
+	 * decoded.
+	 * 
+	 * @return the path
+	 */
+	public String getPath() {
+		if (path == null) {
+			int end = queryStart < 0 ? uriLength : queryStart - 1;
+			path = UrlEncoding.decode(uriBytes, 0, end, false);
+		}
+		return path;
+	}
+
+	/**
+	 * The segments of the path between slashes, decoded, leaving out empty
+	 * ones. For <tt>/v1/GhostbustersDB/ghosts/12</tt> they are <tt>v1</tt>,
+	 * <tt>GhostbustersDB</tt>, <tt>ghosts</tt> and <tt>12</tt>.
+	 * 
+	 * @return the read-only list of segments
+	 */
+	public List<String> getPathSegments() {
+		if (pathSegments == null) {
+			// Split before decoding, so an escaped slash stays in its segment
+			List<String> segments = new ArrayList<String>();
+			int end = queryStart < 0 ? uriLength : queryStart - 1;
+			int start = 0;
+			for (int i = 0; i <= end; i++) {
+				if (i == end || uriBytes[i] == '/') {
+					if (i > start) {
+						segments.add(UrlEncoding.decode(uriBytes, start, i, false));
+					}
+					start = i + 1;
+				}
+			}
+			pathSegments = Collections.unmodifiableList(segments);
+		}
+		return pathSegments;
+	}
+
+	/**
+	 * The query string of the URI, as it was sent.
+	 * 
+	 * @return the query, or null if the URI has none
+	 */
+	public String getQuery() {
+		if (queryStart < 0) {
+			return null;
+		}
+		return new String(uriBytes, queryStart, uriLength - queryStart, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The parameters in the query string, decoded.
+	 * 
+	 * @return the read-only map from each name to its values, in the order
+	 *         they were sent
+	 */
+	public Map<String, List<String>> getQueryParameters() {
+		if (queryParameters == null) {
+			if (queryStart < 0) {
+				queryParameters = Collections.emptyMap();
+			} else {
+				Map<String, List<String>> parameters = new LinkedHashMap<String, List<String>>();
+				UrlEncoding.parseParameters(uriBytes, queryStart, uriLength, parameters);
+				queryParameters = Collections.unmodifiableMap(parameters);
+			}
+		}
+		return queryParameters;
+	}
+
+	/**
+	 * The first value of a parameter in the query string.
+	 * 
+	 * @param name
+	 *            The decoded parameter name.
+	 * @return the decoded value, or null if the parameter was not sent
+	 */
+	public String getQueryParameter(String name) {
+		return first(getQueryParameters(), name);
+	}
+
+	/**
+	 * The fields of a body sent as
+	 * <tt>application/x-www-form-urlencoded</tt>, decoded. The first call reads
+	 * the whole body, as {@link #getBody()} does.
+	 * 
+	 * @return the read-only map from each name to its values, in the order
+	 *         they were sent, which is empty if the body is not a form
+	 */
+	public Map<String, List<String>> getFormParameters() {
+		if (formParameters == null) {
+			String type = getHeader(HttpHeader.CONTENT_TYPE);
+			if (type == null || !type.regionMatches(true, 0, FORM_URLENCODED, 0, FORM_URLENCODED.length())) {
+				formParameters = Collections.emptyMap();
+			} else {
+				byte[] bytes = readBody();
+				Map<String, List<String>> parameters = new LinkedHashMap<String, List<String>>();
+				UrlEncoding.parseParameters(bytes, 0, bytes.length, parameters);
+				formParameters = Collections.unmodifiableMap(parameters);
+			}
+		}
+		return formParameters;
+	}
+
+	/**
+	 * The first value of a field in a form body.
+	 * 
+	 * @param name
+	 *            The decoded field name.
+	 * @return the decoded value, or null if the field was not sent
+	 */
+	public String getFormParameter(String name) {
+		return first(getFormParameters(), name);
+	}
+
+	/**
+	 * The first value of a parameter from the query string or, if it is not
+	 * there, from a form body.
+	 * 
+	 * @param name
+	 *            The decoded parameter name.
+	 * @return the decoded value, or null if the parameter was not sent
+	 */
+	public String getParameter(String name) {
+		String value = getQueryParameter(name);
+		return value != null ? value : getFormParameter(name);
+	}
+
+	private static String first(Map<String, List<String>> parameters, String name) {
+		List<String> values = parameters.get(name);
+		return values == null ? null : values.get(0);
+	}
+
 	/**
 	 * The version of the http request.
 	 * @return the version
@@ -73,23 +527,133 @@ public class HttpRequest {
 		return version;
 	}
 	
-	public char[] getBody() {
+	/**
+	 * The number of bytes in the body.
+	 * 
+	 * @return the content length, 0 if there is no body, or -1 if the body is
+	 *         sent in chunks and its length is not known up front
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * The body as a stream of bytes, which may still be arriving from the
+	 * client. Large bodies should be read this way, a piece at a time. The
+	 * stream ends with the body, and closing it does not close the connection.
+	 * 
+	 * @return the body stream
+	 */
+	public InputStream getInputStream() {
 		return body;
 	}
 
 	/**
-	 * The key to value mapping in the request header fields.
+	 * The body as a channel; see {@link #getInputStream()}.
+	 * 
+	 * @return the body channel
+	 */
+	public ReadableByteChannel getChannel() {
+		return Channels.newChannel(body);
+	}
+
+	/**
+	 * The body decoded as text in the platform's default charset. The first
+	 * call reads the whole body into memory, so it must not be mixed with
+	 * reading {@link #getInputStream()}.
+	 * 
+	 * @return the body
+	 * @throws IllegalStateException
+	 *             if the body could not be read from the client
+	 */
+	public char[] getBody() {
+		if (bodyChars == null) {
+			bodyChars = Charset.defaultCharset().decode(ByteBuffer.wrap(readBody())).toString().toCharArray();
+		}
+		return bodyChars;
+	}
+
+	/**
+	 * Reads the whole body into memory the first time it is called.
+	 */
+	private byte[] readBody() {
+		if (bodyBytes == null) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					(int) Math.min(Math.max(contentLength, 0), Protocol.CHUNK_LENGTH));
+			byte[] buffer = new byte[Protocol.CHUNK_LENGTH];
+			try {
+				int read;
+				while ((read = body.read(buffer)) != -1) {
+					bytes.write(buffer, 0, read);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not read the request body", e);
+			}
+			bodyBytes = bytes.toByteArray();
+		}
+		return bodyBytes;
+	}
+
+	/**
+	 * The value of a well-known header field. Fields sent more than once are
+	 * joined with commas.
+	 * 
+	 * @param header
+	 *            The header.
+	 * @return the value, or null if the field was not sent
+	 */
+	public String getHeader(HttpHeader header) {
+		return getField(header, null);
+	}
+
+	/**
+	 * The key to value mapping in the request header fields. Names are in
+	 * lower case, but looking a field up ignores case.
 	 * 
 	 * @return the header
 	 */
 	public Map<String, String> getHeader() {
-		// Lets return the unmodifable view of the header map
-		return Collections.unmodifiableMap(header);
+		// Lets return the read-only view of the header fields
+		return header;
+	}
+
+	/**
+	 * The trailer fields sent after a chunked body. They are only there once
+	 * the whole body has been read.
+	 * 
+	 * @return the trailer, keyed by lower case field name
+	 */
+	public Map<String, String> getTrailers() {
+		if (trailers == null) {
+			return Collections.emptyMap();
+		}
+		return Collections.unmodifiableMap(trailers);
+	}
+
+	/**
+	 * Whether the client wants the connection kept open after this request.
+	 * HTTP/1.1 connections persist unless the client sends
+	 * <tt>Connection: close</tt>; older versions only persist if the client
+	 * asks for <tt>Connection: keep-alive</tt>.
+	 * 
+	 * @return true if the connection should be kept open
+	 */
+	public boolean isKeepAlive() {
+		switch (this.findToken(HttpHeader.CONNECTION, Protocol.CLOSE, Protocol.OPEN)) {
+		case 1:
+			return false;
+		case 2:
+			return true;
+		default:
+			return Protocol.VERSION.equalsIgnoreCase(this.version);
+		}
 	}
 
 	/**
 	 * Reads raw data from the supplied input stream and constructs a 
-	 * <tt>HttpRequest</tt> object out of the raw data.
+	 * <tt>HttpRequest</tt> object out of the raw data. Bytes after the request
+	 * may be read and lost, so use a {@link HttpRequestReader} to read several
+	 * requests from one stream.
 	 * 
 	 * @param inputStream The input stream to read from.
 	 * @return A <tt>HttpRequest</tt> object.
@@ -97,81 +661,7 @@ public class HttpRequest {
 	 * {@link IOException} for socket input stream read errors.
 	 */
 	public static HttpRequest read(InputStream inputStream) throws Exception {
-		// We will fill this object with the data from input stream and return it
-		HttpRequest request = new HttpRequest();
-		
-		InputStreamReader inStreamReader = new InputStreamReader(inputStream);
-		BufferedReader reader = new BufferedReader(inStreamReader);
-		
-		//First Request Line: GET /somedir/page.html HTTP/1.1
-		String line = reader.readLine(); // A line ends with either a \r, or a \n, or both
-		
-		if(line == null) {
-			throw new ProtocolException(Protocol.BAD_REQUEST_CODE, Protocol.BAD_REQUEST_TEXT);
-		}
-		
-		// We will break this line using space as delimeter into three parts
-		StringTokenizer tokenizer = new StringTokenizer(line, " ");
-		
-		// Error checking the first line must have exactly three elements
-		if(tokenizer.countTokens() != 3) {
-			throw new ProtocolException(Protocol.BAD_REQUEST_CODE, Protocol.BAD_REQUEST_TEXT);
-		}
-		
-		request.method = tokenizer.nextToken();		// GET
-		request.uri = tokenizer.nextToken();		// /somedir/page.html
-		request.version = tokenizer.nextToken();	// HTTP/1.1
-		
-		// Rest of the request is a header that maps keys to values
-		// e.g. Host: www.rose-hulman.edu
-		// We will convert both the strings to lower case to be able to search later
-		line = reader.readLine().trim();
-		
-		while(!line.equals("")) {
-			// THIS IS A PATCH 
-			// Instead of a string tokenizer, we are using string split
-			// Lets break the line into two part with first space as a separator 
-			
-			// First lets trim the line to remove escape characters
-			line = line.trim();
-			
-			// Now, get index of the first occurrence of space
-			int index = line.indexOf(' ');
-			
-			if(index > 0 && index < line.length()-1) {
-				// Now lets break the string in two parts
-				String key = line.substring(0, index); // Get first part, e.g. "Host:"
-				String value = line.substring(index+1); // Get the rest, e.g. "www.rose-hulman.edu"
-				
-				// Lets strip off the white spaces from key if any and change it to lower case
-				key = key.trim().toLowerCase();
-				
-				// Lets also remove ":" from the key
-				key = key.substring(0, key.length() - 1);
-				
-				// Lets strip white spaces if any from value as well
-				value = value.trim();
-				
-				// Now lets put the key=>value mapping to the header map
-				request.header.put(key, value);
-			}
-			
-			// Processed one more line, now lets read another header line and loop
-			line = reader.readLine().trim();
-		}
-		
-		int contentLength = 0;
-		try {
-			contentLength = Integer.parseInt(request.header.get(Protocol.CONTENT_LENGTH.toLowerCase()));
-		}
-		catch(Exception e){}
-		
-		if(contentLength > 0) {
-			request.body = new char[contentLength];
-			reader.read(request.body);
-		}
-		
-		return request;
+		return new HttpRequestReader(inputStream).readRequest();
 	}
 	
 	
@@ -194,8 +684,50 @@ public class HttpRequest {
 			buffer.append(Protocol.LF);
 		}
 		buffer.append("------------- Body ---------------\n");
-		buffer.append(this.body);
+		if (this.bodyChars != null) {
+			buffer.append(this.bodyChars);
+		} else {
+			// Reading the body here would take it away from the servlet
+			buffer.append("(" + this.contentLength + " bytes)\n");
+		}
 		buffer.append("----------------------------------\n");
 		return buffer.toString();
 	}
+
+	/**
+	 * A read-only map over the header slots, made once per request object.
+	 * Looking a field up makes no copy of the header; only walking over all of
+	 * them does.
+	 */
+	private class HeaderMap extends AbstractMap<String, String> {
+		@Override
+		public String get(Object key) {
+			return key instanceof String ? HttpRequest.this.getField((String) key) : null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof String && HttpRequest.this.getField((String) key) != null;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return HttpRequest.this.fieldCount == 0;
+		}
+
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			Map<String, String> copy = new LinkedHashMap<String, String>();
+			for (int i = 0; i < HttpRequest.this.fieldCount; i++) {
+				int at = i * FIELD_INTS;
+				String name = new String(HttpRequest.this.head, HttpRequest.this.fields[at + NAME_START],
+						HttpRequest.this.fields[at + NAME_END] - HttpRequest.this.fields[at + NAME_START],
+						StandardCharsets.ISO_8859_1);
+				if (!copy.containsKey(name)) {
+					copy.put(name, HttpRequest.this.getField(name));
+				}
+			}
+			return Collections.unmodifiableMap(copy).entrySet();
+		}
+	}
 }
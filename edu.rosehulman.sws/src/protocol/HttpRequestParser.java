@@ -0,0 +1,595 @@
+package protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Parses an HTTP request straight from bytes, one byte at a time, so it can
+ * stop wherever the input runs out and carry on when more arrives. The
+ * blocking {@link HttpRequestReader} and the non-blocking transport both feed
+ * it whatever they have read. Tokens are collected in one reusable buffer.
+ * Well-known methods and versions come back as the {@link Protocol} constants,
+ * well-known header names are recognized as {@link HttpHeader}s, and header
+ * fields are copied into the request as bytes, so the only string made per
+ * request is the URI. A parser is reused for every request on a connection
+ * through {@link #reset()}, and so are the requests it fills in, once they are
+ * handed back through {@link #recycle(HttpRequest)}. The body, delimited by
+ * <tt>Content-Length</tt> or sent in chunks, is either collected along with
+ * the head, or left in the input for the caller to stream, as the blocking
+ * reader does.
+ */
+public class HttpRequestParser {
+	private enum State {
+		METHOD, URI, VERSION, REQUEST_LINE_LF, HEADER_NAME, HEADER_VALUE, HEADER_LINE_LF, HEAD_END_LF, BODY,
+		CHUNKED_BODY, DONE
+	}
+
+	private static final String VERSION_1_0 = "HTTP/1.0";
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	/**
+	 * The most recycled requests kept for reuse, enough for a full pipeline.
+	 */
+	private static final int MAX_POOLED_REQUESTS = 16;
+	private static final String[] KNOWN_TOKENS = { Protocol.GET, Protocol.HEAD, Protocol.POST, Protocol.PUT,
+			Protocol.DELETE, Protocol.OPTIONS, Protocol.VERSION, VERSION_1_0 };
+	private static final byte[][] KNOWN_TOKEN_BYTES = new byte[KNOWN_TOKENS.length][];
+
+	static {
+		for (int i = 0; i < KNOWN_TOKENS.length; i++) {
+			KNOWN_TOKEN_BYTES[i] = KNOWN_TOKENS[i].getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	private int maxRequestLine;
+	private int maxHeaderCount;
+	private int maxHeaderSize;
+	private boolean bufferBody;
+	private long maxChunkSize;
+	private long maxBodySize;
+	private State state;
+	private byte[] token;
+	private int tokenLength;
+	private byte[] name;
+	private int nameLength;
+	private HttpHeader nameHeader;
+	private int headerSize;
+	private int headerCount;
+	private int sizeLimit;
+	private RequestLimit sizeRule;
+
+	private Deque<HttpRequest> pool;
+	private HttpRequest request;
+	private boolean handedOut;
+	private String method;
+	private String uri;
+	private long contentLength;
+	private boolean chunked;
+	private ChunkedDecoder decoder;
+	private byte[] body;
+	private int bodyRead;
+
+	/**
+	 * @param maxHeaderSize
+	 *            The most bytes the request line may take, and the most the
+	 *            header fields may take together.
+	 */
+	public HttpRequestParser(int maxHeaderSize) {
+		this(maxHeaderSize, true);
+	}
+
+	/**
+	 * @param maxHeaderSize
+	 *            The most bytes the request line may take, and the most the
+	 *            header fields may take together.
+	 * @param bufferBody
+	 *            Whether the body is collected by the parser. If not, parsing
+	 *            stops after the head and the body is left in the input.
+	 */
+	public HttpRequestParser(int maxHeaderSize, boolean bufferBody) {
+		this.maxRequestLine = maxHeaderSize;
+		this.maxHeaderCount = Integer.MAX_VALUE;
+		this.maxHeaderSize = maxHeaderSize;
+		this.bufferBody = bufferBody;
+		this.maxChunkSize = Long.MAX_VALUE;
+		this.maxBodySize = Long.MAX_VALUE;
+		this.token = new byte[256];
+		this.name = new byte[64];
+		this.pool = new ArrayDeque<HttpRequest>();
+		this.request = new HttpRequest();
+		this.reset();
+	}
+
+	/**
+	 * Gets the parser ready for the next request.
+	 */
+	public void reset() {
+		this.state = State.METHOD;
+		this.tokenLength = 0;
+		this.nameLength = 0;
+		this.startRequestLine();
+		if (this.handedOut) {
+			HttpRequest recycled = this.pool.pollFirst();
+			this.request = recycled != null ? recycled : new HttpRequest();
+			this.handedOut = false;
+		} else {
+			this.request.reset();
+		}
+		this.method = null;
+		this.uri = null;
+		this.contentLength = 0;
+		this.chunked = false;
+		this.body = null;
+		this.bodyRead = 0;
+	}
+
+	/**
+	 * Hands back a request this parser made, once its response has been
+	 * written, so that a later request can reuse it.
+	 *
+	 * @param request
+	 *            A request that nothing refers to any more.
+	 */
+	public void recycle(HttpRequest request) {
+		if (request == this.request) {
+			// Still the one being filled in, so the next reset reuses it
+			this.handedOut = false;
+			return;
+		}
+		if (this.pool.size() >= MAX_POOLED_REQUESTS) {
+			return;
+		}
+		request.reset();
+		this.pool.addFirst(request);
+	}
+
+	/**
+	 * Sets the limits on request heads. A request line over the limit is
+	 * refused with {@link Protocol#URI_TOO_LONG_CODE}, and header fields over
+	 * either limit with {@link Protocol#HEADER_FIELDS_TOO_LARGE_CODE}.
+	 *
+	 * @param maxRequestLine
+	 *            The most bytes the request line may take.
+	 * @param maxHeaderCount
+	 *            The most header fields a request may have.
+	 * @param maxHeaderSize
+	 *            The most bytes the header fields may take together.
+	 */
+	public void setHeaderLimits(int maxRequestLine, int maxHeaderCount, int maxHeaderSize) {
+		this.maxRequestLine = maxRequestLine;
+		this.maxHeaderCount = maxHeaderCount;
+		this.maxHeaderSize = maxHeaderSize;
+		if (this.state == State.METHOD && this.tokenLength == 0) {
+			this.startRequestLine();
+		}
+	}
+
+	/**
+	 * Sets the limits on request bodies. A body over the limits is refused
+	 * with {@link Protocol#PAYLOAD_TOO_LARGE_CODE}.
+	 *
+	 * @param maxChunkSize
+	 *            The largest chunk of a chunked body.
+	 * @param maxBodySize
+	 *            The largest body, however it is sent.
+	 */
+	public void setBodyLimits(long maxChunkSize, long maxBodySize) {
+		this.maxChunkSize = maxChunkSize;
+		this.maxBodySize = maxBodySize;
+	}
+
+	/**
+	 * Consumes bytes from the buffer until the request is complete or the
+	 * buffer runs out. Bytes after the end of the request are left in the
+	 * buffer, since they belong to the next request.
+	 *
+	 * @param buffer
+	 *            The bytes read so far. Its position is moved past the bytes
+	 *            consumed.
+	 * @return whether the whole request has been parsed, including the body
+	 *         unless the parser leaves it in the input
+	 * @throws ProtocolException
+	 *             if the bytes are not a valid request
+	 */
+	public boolean parse(ByteBuffer buffer) throws ProtocolException {
+		while (this.state != State.DONE && buffer.hasRemaining()) {
+			if (this.state == State.BODY) {
+				if (this.bodyRead == this.body.length) {
+					// Only grown as the bytes arrive, since the length is the
+					// client's word
+					this.body = Arrays.copyOf(this.body, (int) Math.min(2L * this.body.length, this.contentLength));
+				}
+				int count = Math.min(buffer.remaining(), this.body.length - this.bodyRead);
+				buffer.get(this.body, this.bodyRead, count);
+				this.bodyRead += count;
+				if (this.bodyRead == this.contentLength) {
+					this.state = State.DONE;
+				}
+				continue;
+			}
+
+			if (this.state == State.CHUNKED_BODY) {
+				if (this.bodyRead == this.body.length) {
+					this.body = Arrays.copyOf(this.body, (int) Math.min(2L * this.body.length, MAX_ARRAY_SIZE));
+				}
+				this.bodyRead += this.decoder.decode(buffer, this.body, this.bodyRead,
+						this.body.length - this.bodyRead);
+				if (this.decoder.isDone()) {
+					this.body = Arrays.copyOf(this.body, this.bodyRead);
+					this.state = State.DONE;
+				}
+				continue;
+			}
+
+			if (this.state == State.HEADER_VALUE && this.tokenLength > 0 && buffer.hasArray()
+					&& this.appendValue(buffer)) {
+				// Most of a request head is header values, so the rest of a
+				// value is copied in one go rather than byte by byte
+				continue;
+			}
+
+			if (++this.headerSize > this.sizeLimit) {
+				throw new ProtocolException(this.sizeRule);
+			}
+			this.consume(buffer.get());
+		}
+		return this.state == State.DONE;
+	}
+
+	/**
+	 * @return whether any byte of the next request has been parsed
+	 */
+	public boolean isStarted() {
+		return this.state != State.METHOD || this.tokenLength > 0;
+	}
+
+	/**
+	 * @return whether the request line and header fields have been parsed
+	 */
+	public boolean isHeadComplete() {
+		return this.state == State.BODY || this.state == State.CHUNKED_BODY || this.state == State.DONE;
+	}
+
+	/**
+	 * @return the length of the body given by the <tt>Content-Length</tt>
+	 *         header, 0 if there is none, or -1 if the body is chunked
+	 */
+	public long getContentLength() {
+		return this.contentLength;
+	}
+
+	/**
+	 * @return whether the body is sent with chunked transfer coding
+	 */
+	public boolean isChunked() {
+		return this.chunked;
+	}
+
+	/**
+	 * Gets a decoder for the chunked body of the request whose head was
+	 * just parsed, with this parser's limits. Trailer fields it reads go to
+	 * that request.
+	 *
+	 * @return the decoder, which is reused for the next chunked body
+	 */
+	ChunkedDecoder newChunkedDecoder() {
+		if (this.decoder == null) {
+			this.decoder = new ChunkedDecoder();
+		}
+		this.decoder.reset(this.maxChunkSize, this.maxBodySize, this.request);
+		return this.decoder;
+	}
+
+	/**
+	 * Gets the request whose head has been parsed while its body is still
+	 * arriving, so that it can be answered early, as <tt>Expect</tt> asks.
+	 * Only its request line and header fields may be looked at. Only valid
+	 * once {@link #isHeadComplete()} is true.
+	 *
+	 * @return the request being parsed
+	 */
+	public HttpRequest getHead() {
+		return this.request;
+	}
+
+	/**
+	 * Gets the request that was parsed, with the body the parser collected.
+	 * Only valid once {@link #parse} has returned true.
+	 *
+	 * @return the request
+	 */
+	public HttpRequest getRequest() {
+		byte[] bytes = this.body == null ? new byte[0] : this.body;
+		return this.getRequest(new ByteArrayInputStream(bytes));
+	}
+
+	/**
+	 * Gets the request that was parsed, with a body read from the given
+	 * stream.
+	 *
+	 * @param body
+	 *            The stream of exactly {@link #getContentLength()} bytes.
+	 * @return the request
+	 */
+	HttpRequest getRequest(InputStream body) {
+		this.request.setBody(body, this.contentLength);
+		this.handedOut = true;
+		return this.request;
+	}
+
+	private void consume(byte b) throws ProtocolException {
+		switch (this.state) {
+		case METHOD:
+			if (b == Protocol.SPACE && this.tokenLength > 0) {
+				this.method = this.takeToken(StandardCharsets.US_ASCII);
+				this.state = State.URI;
+			} else if ((b == Protocol.CR || b == Protocol.LF) && this.tokenLength == 0) {
+				// Blank lines before a request are allowed and skipped
+				this.startRequestLine();
+			} else if (isControl(b) || b == Protocol.SPACE) {
+				throw badRequest();
+			} else {
+				this.append(b);
+			}
+			break;
+
+		case URI:
+			if (b == Protocol.SPACE) {
+				if (this.tokenLength > 0) {
+					this.request.setRawUri(this.token, this.tokenLength);
+					this.uri = this.takeToken(StandardCharsets.UTF_8);
+					this.state = State.VERSION;
+				}
+			} else if (isControl(b)) {
+				throw badRequest();
+			} else {
+				this.append(b);
+			}
+			break;
+
+		case VERSION:
+			if (b == Protocol.CR || b == Protocol.LF) {
+				if (this.tokenLength == 0) {
+					throw badRequest();
+				}
+				this.request.setRequestLine(this.method, this.uri, this.takeToken(StandardCharsets.US_ASCII));
+				// The header fields have a limit of their own
+				this.headerSize = 0;
+				this.sizeLimit = this.maxHeaderSize;
+				this.sizeRule = RequestLimit.HEADER_SIZE;
+				this.state = b == Protocol.CR ? State.REQUEST_LINE_LF : State.HEADER_NAME;
+			} else if (isControl(b) || b == Protocol.SPACE) {
+				throw badRequest();
+			} else {
+				this.append(b);
+			}
+			break;
+
+		case REQUEST_LINE_LF:
+		case HEADER_LINE_LF:
+			if (b != Protocol.LF) {
+				throw badRequest();
+			}
+			this.state = State.HEADER_NAME;
+			break;
+
+		case HEADER_NAME:
+			if (this.tokenLength == 0 && b == Protocol.CR) {
+				this.state = State.HEAD_END_LF;
+			} else if (this.tokenLength == 0 && b == Protocol.LF) {
+				this.endHead();
+			} else if (b == Protocol.SEPERATOR && this.tokenLength > 0) {
+				if (this.tokenLength > this.name.length) {
+					this.name = new byte[this.token.length];
+				}
+				System.arraycopy(this.token, 0, this.name, 0, this.tokenLength);
+				this.nameLength = this.tokenLength;
+				this.nameHeader = HttpHeader.match(this.name, this.nameLength);
+				this.tokenLength = 0;
+				this.state = State.HEADER_VALUE;
+			} else if (isControl(b) || b == Protocol.SPACE || b == '\t') {
+				// Covers obsolete line folding and lines without a colon
+				throw badRequest();
+			} else {
+				// Header names are case-insensitive, so they are kept in lower
+				// case
+				this.append(b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b);
+			}
+			break;
+
+		case HEADER_VALUE:
+			if (b == Protocol.CR || b == Protocol.LF) {
+				this.addHeader();
+				this.state = b == Protocol.CR ? State.HEADER_LINE_LF : State.HEADER_NAME;
+			} else if ((b == Protocol.SPACE || b == '\t') && this.tokenLength == 0) {
+				// Skip whitespace before the value
+			} else if (isControl(b) && b != '\t') {
+				throw badRequest();
+			} else {
+				this.append(b);
+			}
+			break;
+
+		case HEAD_END_LF:
+			if (b != Protocol.LF) {
+				throw badRequest();
+			}
+			this.endHead();
+			break;
+
+		default:
+			throw new IllegalStateException(this.state.toString());
+		}
+	}
+
+	private void startRequestLine() {
+		this.headerSize = 0;
+		this.headerCount = 0;
+		this.sizeLimit = this.maxRequestLine;
+		this.sizeRule = RequestLimit.REQUEST_LINE;
+	}
+
+	private void addHeader() throws ProtocolException {
+		if (++this.headerCount > this.maxHeaderCount) {
+			throw new ProtocolException(RequestLimit.HEADER_COUNT);
+		}
+		// Drop whitespace after the value
+		while (this.tokenLength > 0
+				&& (this.token[this.tokenLength - 1] == Protocol.SPACE || this.token[this.tokenLength - 1] == '\t')) {
+			this.tokenLength--;
+		}
+		this.request.addField(this.name, this.nameLength, this.token, this.tokenLength, this.nameHeader);
+		this.tokenLength = 0;
+	}
+
+	private void endHead() throws ProtocolException {
+		String encoding = this.request.getHeader(HttpHeader.TRANSFER_ENCODING);
+		if (encoding != null) {
+			// A body with both could be framed two ways, which is how requests
+			// are smuggled past proxies
+			if (this.request.getHeader(HttpHeader.CONTENT_LENGTH) != null) {
+				throw badRequest();
+			}
+			// Chunked is the only transfer coding understood, so anything else
+			// leaves no way to find the end of the body
+			if (!encoding.trim().equalsIgnoreCase(Protocol.CHUNKED)) {
+				throw new ProtocolException(Protocol.NOT_IMPLEMENTED_CODE, Protocol.NOT_IMPLEMENTED_TEXT);
+			}
+			this.chunked = true;
+			this.contentLength = -1;
+			this.request.setBody(null, this.contentLength);
+			if (this.bufferBody) {
+				this.decoder = this.newChunkedDecoder();
+				this.body = new byte[Protocol.CHUNK_LENGTH];
+				this.state = State.CHUNKED_BODY;
+			} else {
+				this.state = State.DONE;
+			}
+			return;
+		}
+
+		try {
+			this.contentLength = Math.max(0, this.request.getLongField(HttpHeader.CONTENT_LENGTH));
+		} catch (NumberFormatException e) {
+			throw badRequest();
+		}
+
+		if (this.contentLength > this.maxBodySize) {
+			throw new ProtocolException(RequestLimit.BODY_SIZE);
+		}
+		// The length is known before the body arrives, for getHead()
+		this.request.setBody(null, this.contentLength);
+
+		if (this.contentLength > 0 && this.bufferBody) {
+			if (this.contentLength > MAX_ARRAY_SIZE) {
+				throw new ProtocolException(RequestLimit.BODY_SIZE);
+			}
+			this.body = new byte[(int) Math.min(this.contentLength, Protocol.CHUNK_LENGTH)];
+			this.state = State.BODY;
+		} else {
+			this.state = State.DONE;
+		}
+	}
+
+	/**
+	 * Copies bytes of a header value up to the end of the line or the buffer.
+	 *
+	 * @return whether any bytes were copied
+	 */
+	private boolean appendValue(ByteBuffer buffer) throws ProtocolException {
+		byte[] array = buffer.array();
+		int start = buffer.arrayOffset() + buffer.position();
+		int end = buffer.arrayOffset() + buffer.limit();
+		int i = start;
+		while (i < end && (!isControl(array[i]) || array[i] == '\t')) {
+			i++;
+		}
+		int count = i - start;
+		this.headerSize += count;
+		if (this.headerSize > this.sizeLimit) {
+			throw new ProtocolException(this.sizeRule);
+		}
+		if (this.tokenLength + count > this.token.length) {
+			this.token = Arrays.copyOf(this.token, Math.max(this.token.length * 2, this.tokenLength + count));
+		}
+		System.arraycopy(array, start, this.token, this.tokenLength, count);
+		this.tokenLength += count;
+		buffer.position(buffer.position() + count);
+		return count > 0;
+	}
+
+	private void append(byte b) {
+		if (this.tokenLength == this.token.length) {
+			this.token = Arrays.copyOf(this.token, this.token.length * 2);
+		}
+		this.token[this.tokenLength++] = b;
+	}
+
+	/**
+	 * Turns the collected token into a string, reusing the {@link Protocol}
+	 * constant for well-known methods and versions.
+	 */
+	private String takeToken(Charset charset) {
+		int length = this.tokenLength;
+		this.tokenLength = 0;
+		for (int i = 0; i < KNOWN_TOKEN_BYTES.length; i++) {
+			byte[] known = KNOWN_TOKEN_BYTES[i];
+			if (known.length == length && equals(known, this.token, length)) {
+				return KNOWN_TOKENS[i];
+			}
+		}
+		return new String(this.token, 0, length, charset);
+	}
+
+	private static boolean equals(byte[] known, byte[] token, int length) {
+		for (int i = 0; i < length; i++) {
+			if (known[i] != token[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isControl(byte b) {
+		return (b >= 0 && b < 0x20) || b == 0x7f;
+	}
+
+	private static ProtocolException badRequest() {
+		return new ProtocolException(Protocol.BAD_REQUEST_CODE, Protocol.BAD_REQUEST_TEXT);
+	}
+
+	/**
+	 * Measures how long parsing takes for a typical browser request.
+	 */
+	public static void main(String[] args) throws Exception {
+		byte[] request = ("GET /BasicPlugin/index.html?lang=en HTTP/1.1\r\n" + "Host: localhost:8080\r\n"
+				+ "Connection: keep-alive\r\n" + "Cache-Control: max-age=0\r\n"
+				+ "Upgrade-Insecure-Requests: 1\r\n"
+				+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) "
+				+ "Chrome/120.0.0.0 Safari/537.36\r\n"
+				+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,"
+				+ "*/*;q=0.8\r\n" + "Accept-Encoding: gzip, deflate, br\r\n"
+				+ "Accept-Language: en-US,en;q=0.9\r\n" + "If-None-Match: \"5d8c72a5edda8d6a\"\r\n"
+				+ "If-Modified-Since: Tue, 15 Nov 1994 12:45:26 GMT\r\n"
+				+ "Cookie: session=38afes7a8; theme=dark; tz=UTC\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+		HttpRequestParser parser = new HttpRequestParser(64 * 1024);
+		int iterations = 1000000;
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				parser.reset();
+				parser.parse(ByteBuffer.wrap(request));
+				parser.recycle(parser.getRequest());
+			}
+			long elapsed = System.nanoTime() - start;
+			System.out.println("Round " + round + ":\t" + (elapsed / iterations) + " ns per request");
+		}
+	}
+}
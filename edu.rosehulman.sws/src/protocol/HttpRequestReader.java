@@ -0,0 +1,581 @@
+package protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads requests one after another from a blocking stream, such as a socket
+ * on a persistent connection. Bytes are read into one reusable buffer and fed
+ * to an {@link HttpRequestParser}; whatever is read past the end of a request
+ * stays buffered for the next one. Bodies are not read with the head. Each
+ * request gets a stream that reads its body from what is buffered and then
+ * straight from the connection, decoding chunks if it was sent in them, so a
+ * servlet can consume an upload of any size a piece at a time. Given the
+ * socket, the reader also holds a client to deadlines for sending the head and
+ * the whole of each request, however slowly the bytes trickle in.
+ */
+public class HttpRequestReader {
+	/**
+	 * The most bytes the request line, and the header fields, may take unless
+	 * other limits are set.
+	 */
+	public static final int MAX_HEADER_SIZE = 64 * 1024;
+
+	private InputStream in;
+	private ByteBuffer buffer;
+	private HttpRequestParser parser;
+	private BodyInputStream body;
+	private FixedLengthInputStream empty;
+	private FixedLengthInputStream fixedLength;
+	private ChunkedInputStream chunked;
+	private byte[] discard;
+
+	private Socket socket;
+	private int idleTimeout;
+	private int headerTimeout;
+	private int requestTimeout;
+	private int soTimeout;
+	private long headerDeadline;
+	private long requestDeadline;
+	private RequestLimit deadlineRule;
+	private long deadline;
+	private RequestLimit broken;
+	private OutputStream continueOut;
+
+	/**
+	 * @param in
+	 *            The stream to read requests from.
+	 */
+	public HttpRequestReader(InputStream in) {
+		this.in = in;
+		this.buffer = ByteBuffer.allocate(Protocol.CHUNK_LENGTH);
+		this.buffer.flip();
+		this.parser = new HttpRequestParser(MAX_HEADER_SIZE, false);
+		// Requests without a body get a stream of their own, since the one
+		// for bodies is reused by a later request of the same pipeline
+		this.empty = new FixedLengthInputStream();
+		this.fixedLength = new FixedLengthInputStream();
+		this.chunked = new ChunkedInputStream();
+	}
+
+	/**
+	 * Sets the limits on request bodies; see
+	 * {@link HttpRequestParser#setBodyLimits(long, long)}.
+	 *
+	 * @param maxChunkSize
+	 *            The largest chunk of a chunked body.
+	 * @param maxBodySize
+	 *            The largest body, however it is sent.
+	 */
+	public void setBodyLimits(long maxChunkSize, long maxBodySize) {
+		this.parser.setBodyLimits(maxChunkSize, maxBodySize);
+	}
+
+	/**
+	 * Sets the limits on request heads; see
+	 * {@link HttpRequestParser#setHeaderLimits(int, int, int)}.
+	 *
+	 * @param maxRequestLine
+	 *            The most bytes the request line may take.
+	 * @param maxHeaderCount
+	 *            The most header fields a request may have.
+	 * @param maxHeaderSize
+	 *            The most bytes the header fields may take together.
+	 */
+	public void setHeaderLimits(int maxRequestLine, int maxHeaderCount, int maxHeaderSize) {
+		this.parser.setHeaderLimits(maxRequestLine, maxHeaderCount, maxHeaderSize);
+	}
+
+	/**
+	 * Sets how long reads may block. Between requests the socket waits for
+	 * the idle timeout. Once a request has started, each read only waits for
+	 * what is left until its deadline, so a client cannot keep a request open
+	 * by sending a byte now and then. A request that misses its deadline is
+	 * refused with {@link Protocol#REQUEST_TIMEOUT_CODE}.
+	 *
+	 * @param socket
+	 *            The socket the stream reads from.
+	 * @param idleTimeout
+	 *            The milliseconds to wait for the next request.
+	 * @param headerTimeout
+	 *            The milliseconds a request may take to send its head, or 0
+	 *            for no limit.
+	 * @param requestTimeout
+	 *            The milliseconds a request may take to send its head and
+	 *            body, or 0 for no limit.
+	 * @throws IOException
+	 *             if the socket is closed
+	 */
+	public void setTimeouts(Socket socket, int idleTimeout, int headerTimeout, int requestTimeout)
+			throws IOException {
+		this.socket = socket;
+		this.idleTimeout = idleTimeout;
+		this.headerTimeout = headerTimeout;
+		this.requestTimeout = requestTimeout;
+		this.soTimeout = socket.getSoTimeout();
+	}
+
+	/**
+	 * Gets the limit the last request broke while its body was being read.
+	 * Limits broken while reading the head are thrown by
+	 * {@link #readRequest()} instead, but the body is read by the servlet,
+	 * which only sees an {@link IOException}.
+	 *
+	 * @return the limit, or null if the body broke none
+	 */
+	public RequestLimit getBrokenLimit() {
+		return this.broken;
+	}
+
+	/**
+	 * Makes the body of the last request send <tt>100 Continue</tt> to the
+	 * client the first time it is read, for a client that sent
+	 * <tt>Expect: 100-continue</tt> and is holding the body back until then.
+	 * A servlet that answers without reading the body never asks for it.
+	 *
+	 * @param out
+	 *            The stream to the client.
+	 */
+	public void continueOnRead(OutputStream out) {
+		this.continueOut = out;
+	}
+
+	/**
+	 * Whether the client of the last request is still waiting for
+	 * <tt>100 Continue</tt>. It may or may not send the body anyway, so the
+	 * connection cannot be used for another request.
+	 *
+	 * @return true if the body was never asked for
+	 */
+	public boolean isAwaitingContinue() {
+		return this.continueOut != null;
+	}
+
+	/**
+	 * Blocks until at least one byte of the next request is available.
+	 *
+	 * @return false if the stream ended instead
+	 * @throws IOException
+	 *             if reading fails or times out
+	 */
+	public boolean awaitRequest() throws IOException {
+		return this.awaitRequest(this.idleTimeout);
+	}
+
+	/**
+	 * Blocks until at least one byte of the next request is available, for
+	 * no longer than the given time instead of the idle timeout. A read that
+	 * times out consumes nothing, so waiting may be resumed.
+	 *
+	 * @param timeout
+	 *            The milliseconds to wait.
+	 * @return false if the stream ended instead
+	 * @throws SocketTimeoutException
+	 *             if nothing arrived in time
+	 * @throws IOException
+	 *             if reading fails
+	 */
+	public boolean awaitRequest(int timeout) throws IOException {
+		if (this.socket != null) {
+			this.deadlineRule = null;
+			this.setSoTimeout(timeout);
+		}
+		return this.buffer.hasRemaining() || this.fill();
+	}
+
+	/**
+	 * Whether bytes of another request can be read without blocking.
+	 *
+	 * @return true if the client has pipelined another request
+	 * @throws IOException
+	 *             if the stream is closed
+	 */
+	public boolean hasBuffered() throws IOException {
+		return this.buffer.hasRemaining() || this.in.available() > 0;
+	}
+
+	/**
+	 * Reads the head of the next request. Whatever the servlet left unread of
+	 * the previous request's body is skipped first.
+	 *
+	 * @return the request, whose body is read on demand
+	 * @throws ProtocolException
+	 *             if the bytes are not a valid request, or the stream ends in
+	 *             the middle of one
+	 * @throws IOException
+	 *             if reading fails or times out
+	 */
+	public HttpRequest readRequest() throws ProtocolException, IOException {
+		this.discardBody(Long.MAX_VALUE);
+		this.continueOut = null;
+		this.parser.reset();
+		this.startDeadlines();
+		try {
+			while (!this.parser.parse(this.buffer)) {
+				if (!this.fill()) {
+					throw new ProtocolException(Protocol.BAD_REQUEST_CODE, Protocol.BAD_REQUEST_TEXT);
+				}
+			}
+		} catch (SocketTimeoutException e) {
+			if (this.broken == null) {
+				throw e;
+			}
+			throw new ProtocolException(this.broken);
+		}
+		// The body only has to arrive before the request deadline
+		this.deadlineRule = this.requestTimeout > 0 ? RequestLimit.REQUEST_TIMEOUT : null;
+		this.deadline = this.requestDeadline;
+		if (this.parser.isChunked()) {
+			this.chunked.decoder = this.parser.newChunkedDecoder();
+			this.body = this.chunked;
+		} else if (this.parser.getContentLength() > 0) {
+			this.fixedLength.remaining = this.parser.getContentLength();
+			this.body = this.fixedLength;
+		} else {
+			this.body = this.empty;
+		}
+		return this.parser.getRequest(this.body);
+	}
+
+	/**
+	 * Hands back a request once its response has been written, so that a
+	 * later request on the connection can reuse it.
+	 *
+	 * @param request
+	 *            A request read by this reader that nothing refers to any
+	 *            more.
+	 */
+	public void recycle(HttpRequest request) {
+		this.parser.recycle(request);
+	}
+
+	/**
+	 * Whether part of the last request's body has not been read yet.
+	 *
+	 * @return true if body bytes are still due from the connection
+	 */
+	public boolean hasUnreadBody() {
+		return this.body != null && !this.body.isFinished();
+	}
+
+	/**
+	 * Reads and throws away the rest of the last request's body, so that the
+	 * next request can be read. A body too large to be worth reading means the
+	 * connection should be closed instead.
+	 *
+	 * @param maxBytes
+	 *            The most bytes to throw away.
+	 * @return false if more than that was left, in which case nothing is read
+	 * @throws IOException
+	 *             if reading fails or the stream ends early
+	 */
+	public boolean discardBody(long maxBytes) throws IOException {
+		return this.body == null || this.body.isFinished() || this.body.discard(maxBytes);
+	}
+
+	private void startDeadlines() throws IOException {
+		this.broken = null;
+		this.deadlineRule = null;
+		if (this.socket == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		this.requestDeadline = now + this.requestTimeout * 1000000L;
+		this.headerDeadline = now + this.headerTimeout * 1000000L;
+		if (this.requestTimeout > 0) {
+			this.deadlineRule = RequestLimit.REQUEST_TIMEOUT;
+			this.deadline = this.requestDeadline;
+		}
+		if (this.headerTimeout > 0 && (this.deadlineRule == null || this.headerDeadline - this.deadline < 0)) {
+			this.deadlineRule = RequestLimit.HEADER_TIMEOUT;
+			this.deadline = this.headerDeadline;
+		}
+		if (this.deadlineRule == null) {
+			// Without deadlines a read waits as long as the connection may
+			// stay idle, however briefly the last wait for a request was
+			this.setSoTimeout(this.idleTimeout);
+		}
+	}
+
+	/**
+	 * Reads from the stream, waiting no longer than the current deadline
+	 * allows.
+	 */
+	private int read(byte[] b, int off, int len) throws IOException {
+		if (this.deadlineRule != null) {
+			// Rounded up, since a timeout of 0 would mean waiting forever
+			long remaining = (this.deadline - System.nanoTime() + 999999) / 1000000;
+			if (remaining <= 0) {
+				throw this.timedOut();
+			}
+			this.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+		}
+		try {
+			return this.in.read(b, off, len);
+		} catch (SocketTimeoutException e) {
+			if (this.deadlineRule != null) {
+				throw this.timedOut();
+			}
+			throw e;
+		}
+	}
+
+	private SocketTimeoutException timedOut() {
+		this.broken = this.deadlineRule;
+		return new SocketTimeoutException(this.deadlineRule.getText());
+	}
+
+	private void setSoTimeout(int timeout) throws IOException {
+		// Setting a socket option is a system call, so only when it changes
+		if (timeout != this.soTimeout) {
+			this.socket.setSoTimeout(timeout);
+			this.soTimeout = timeout;
+		}
+	}
+
+	/**
+	 * Asks for the body if the client is waiting to be asked.
+	 */
+	private void sendContinue() throws IOException {
+		if (this.continueOut == null) {
+			return;
+		}
+		OutputStream out = this.continueOut;
+		this.continueOut = null;
+		try {
+			HttpResponseFactory.create100Continue().write(out);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Could not send 100 Continue", e);
+		}
+	}
+
+	private byte[] discardBuffer() {
+		if (this.discard == null) {
+			this.discard = new byte[Protocol.CHUNK_LENGTH];
+		}
+		return this.discard;
+	}
+
+	/**
+	 * Reads more bytes into the buffer, blocking until some arrive.
+	 *
+	 * @return false if the stream ended
+	 */
+	private boolean fill() throws IOException {
+		this.buffer.compact();
+		try {
+			int read = this.read(this.buffer.array(), this.buffer.arrayOffset() + this.buffer.position(),
+					this.buffer.remaining());
+			if (read < 0) {
+				return false;
+			}
+			this.buffer.position(this.buffer.position() + read);
+			return true;
+		} finally {
+			this.buffer.flip();
+		}
+	}
+
+	/**
+	 * Measures how much memory reading a request allocates in the steady state
+	 * of a keep-alive connection, where each request is recycled once it has
+	 * been answered. Needs a JVM that counts allocated bytes per thread.
+	 */
+	public static void main(String[] args) throws Exception {
+		final byte[] request = ("GET /BasicPlugin/index.html?lang=en HTTP/1.1\r\n" + "Host: localhost:8080\r\n"
+				+ "Connection: keep-alive\r\n" + "Cache-Control: max-age=0\r\n"
+				+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) "
+				+ "Chrome/120.0.0.0 Safari/537.36\r\n"
+				+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+				+ "Accept-Encoding: gzip, deflate, br\r\n" + "Accept-Language: en-US,en;q=0.9\r\n"
+				+ "Cookie: session=38afes7a8; theme=dark; tz=UTC\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+		// A connection that sends the same request over and over
+		InputStream connection = new InputStream() {
+			private int position;
+
+			@Override
+			public int read() {
+				byte b = request[this.position];
+				this.position = (this.position + 1) % request.length;
+				return b & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				int count = Math.min(len, request.length - this.position);
+				System.arraycopy(request, this.position, b, off, count);
+				this.position = (this.position + count) % request.length;
+				return count;
+			}
+		};
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		HttpRequestReader reader = new HttpRequestReader(connection);
+		int iterations = 1000000;
+		for (int round = 0; round < 3; round++) {
+			long allocated = threads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				// What the dispatcher looks at for every request
+				HttpRequest read = reader.readRequest();
+				read.getUri();
+				read.getHeader(HttpHeader.HOST);
+				read.isKeepAlive();
+				reader.recycle(read);
+			}
+			long elapsed = System.nanoTime() - start;
+			allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+			System.out.println("Round " + round + ":\t" + (elapsed / iterations) + " ns, " + (allocated / iterations)
+					+ " bytes allocated per request");
+		}
+	}
+
+	/**
+	 * The body of one request, which ends even though the connection does not.
+	 * Closing it leaves the connection open.
+	 */
+	private abstract class BodyInputStream extends InputStream {
+		/**
+		 * @return whether the whole body has been read
+		 */
+		abstract boolean isFinished();
+
+		/**
+		 * Reads and throws away the rest of the body, up to the given number
+		 * of bytes.
+		 *
+		 * @return whether the body ended within that many bytes
+		 */
+		boolean discard(long maxBytes) throws IOException {
+			this.skip(maxBytes);
+			return this.read() == -1;
+		}
+
+		private byte[] one = new byte[1];
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = this.one;
+			int count;
+			do {
+				count = this.read(one, 0, 1);
+			} while (count == 0);
+			return count < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] discard = HttpRequestReader.this.discardBuffer();
+			long skipped = 0;
+			while (skipped < n) {
+				int read = this.read(discard, 0, (int) Math.min(discard.length, n - skipped));
+				if (read < 0) {
+					break;
+				}
+				skipped += read;
+			}
+			return skipped;
+		}
+	}
+
+	/**
+	 * A body of exactly <tt>Content-Length</tt> bytes.
+	 */
+	private class FixedLengthInputStream extends BodyInputStream {
+		private long remaining;
+
+		@Override
+		boolean isFinished() {
+			return this.remaining == 0;
+		}
+
+		@Override
+		boolean discard(long maxBytes) throws IOException {
+			// The length is known, so there is no need to read to find out
+			return this.remaining <= maxBytes && super.discard(maxBytes);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (this.remaining == 0) {
+				return -1;
+			}
+			HttpRequestReader.this.sendContinue();
+			int count = (int) Math.min(len, this.remaining);
+			ByteBuffer buffer = HttpRequestReader.this.buffer;
+			if (buffer.hasRemaining()) {
+				// Bytes read along with the head come first
+				count = Math.min(count, buffer.remaining());
+				buffer.get(b, off, count);
+			} else {
+				// After that there is no point copying through the buffer
+				count = HttpRequestReader.this.read(b, off, count);
+				if (count < 0) {
+					throw new EOFException("Connection closed before the end of the request body");
+				}
+			}
+			this.remaining -= count;
+			return count;
+		}
+
+		@Override
+		public int available() throws IOException {
+			long available = HttpRequestReader.this.buffer.remaining() + HttpRequestReader.this.in.available();
+			return (int) Math.min(available, this.remaining);
+		}
+	}
+
+	/**
+	 * A body sent in chunks, decoded as it is read. Its trailer fields are
+	 * added to the request once the last chunk has been read.
+	 */
+	private class ChunkedInputStream extends BodyInputStream {
+		private ChunkedDecoder decoder;
+
+		@Override
+		boolean isFinished() {
+			return this.decoder.isDone();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			HttpRequestReader.this.sendContinue();
+			// Chunk sizes and the trailer use up input without giving any
+			// data, so keep going until there is some or the body ends
+			while (!this.decoder.isDone()) {
+				if (!HttpRequestReader.this.buffer.hasRemaining() && !HttpRequestReader.this.fill()) {
+					throw new EOFException("Connection closed before the end of the request body");
+				}
+				int count;
+				try {
+					count = this.decoder.decode(HttpRequestReader.this.buffer, b, off, len);
+				} catch (ProtocolException e) {
+					HttpRequestReader.this.broken = e.getLimit();
+					throw new IOException("Invalid chunked request body: " + e.getMessage(), e);
+				}
+				if (count > 0) {
+					return count;
+				}
+			}
+			return -1;
+		}
+	}
+}
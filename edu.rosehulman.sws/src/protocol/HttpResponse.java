@@ -21,16 +21,19 @@
 
 package protocol;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Represents a response object for HTTP.
@@ -38,11 +41,23 @@ import java.util.Map;
  * @author Chandan R. Rupakheti (rupakhet@rose-hulman.edu)
  */
 public class HttpResponse {
+	/**
+	 * The most bytes of a file held in memory at once while sending it.
+	 */
+	public static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+	private static final byte[] NO_BYTES = new byte[0];
+
 	private String version;
 	private int status;
 	private String phrase;
 	private Map<String, String> header;
 	private File file;
+	private List<Segment> segments;
+	private long bodyLength;
+	private IBodyWriter bodyWriter;
+	private boolean chunked;
+	private String coding;
 
 	/**
 	 * Constructs a HttpResponse object using supplied parameter
@@ -125,65 +140,298 @@ public class HttpResponse {
 	}
 
 	/**
-	 * Writes the data of the http response object to the output stream.
+	 * Sends only some regions of the file, such as the byte ranges a client
+	 * asked for, or bytes prepared in memory, rather than all of the file.
 	 * 
-	 * @param outStream
-	 *            The output stream
-	 * @throws Exception
+	 * @param segments
+	 *            The segments making up the body, in order.
 	 */
-	public void write(OutputStream outStream) throws Exception {
-		// We are reading a file
-		ByteArrayOutputStream fileOut = new ByteArrayOutputStream(Protocol.CHUNK_LENGTH);
-		if (this.getStatus() == Protocol.OK_CODE && file != null) {
-			byte[] digest = new byte[0];
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			// Process text documents
-			FileInputStream fileInStream = new FileInputStream(file);
-			BufferedInputStream bufferedInStream = new BufferedInputStream(fileInStream, Protocol.CHUNK_LENGTH);
-			DigestInputStream inStream = new DigestInputStream(bufferedInStream, md);
-
-			byte[] buffer = new byte[Protocol.CHUNK_LENGTH];
-			int bytesRead = 0;
-			// While there is some bytes to read from file, read each chunk and
-			// send to the socket out stream
-			while ((bytesRead = inStream.read(buffer)) != -1) {
-				fileOut.write(buffer, 0, bytesRead);
-			}
-			// Close the file input stream, we are done reading
-			inStream.close();
-			digest = md.digest();
-			this.header.put("checksum", new String(digest));
+	void setSegments(List<Segment> segments) {
+		this.segments = segments;
+	}
+
+	/**
+	 * Has the body made by a writer while it is sent, rather than read from a
+	 * file of known length.
+	 * 
+	 * @param bodyWriter
+	 *            The writer of the body.
+	 * @param chunked
+	 *            Whether the body is sent in chunks, which the head must
+	 *            announce; otherwise it ends when the connection is closed.
+	 * @param coding
+	 *            {@link Compression#GZIP} or {@link Compression#DEFLATE} to
+	 *            compress the body as it is written, which the head must
+	 *            announce, or null.
+	 */
+	void setBodyWriter(IBodyWriter bodyWriter, boolean chunked, String coding) {
+		this.bodyWriter = bodyWriter;
+		this.chunked = chunked;
+		this.coding = coding;
+	}
+
+	/**
+	 * Whether the body is made while it is sent, so its length is not known
+	 * in advance.
+	 * 
+	 * @return true if the body is sent with {@link #writeBody}
+	 */
+	public boolean isStreaming() {
+		return bodyWriter != null;
+	}
+
+	/**
+	 * Whether the end of the body can only be told by the connection
+	 * closing, as for a streamed body sent to a client too old for chunks.
+	 * 
+	 * @return true if the connection must be closed after this response
+	 */
+	public boolean isCloseDelimited() {
+		return bodyWriter != null && !chunked;
+	}
+
+	/**
+	 * The segments making up the body, known once the head is encoded.
+	 * 
+	 * @return the segments, empty if there is no body or it is streamed
+	 */
+	public List<Segment> getSegments() {
+		return segments;
+	}
+
+	/**
+	 * The number of bytes sent after the head, known once the head is
+	 * encoded.
+	 * 
+	 * @return the body length
+	 */
+	public long getBodyLength() {
+		return bodyLength;
+	}
+
+	/**
+	 * Opens the file sent as the body. The file is sent from the channel, a
+	 * piece at a time, so it is never held in memory whole.
+	 * 
+	 * @return the channel, or null if the response has no body
+	 * @throws IOException
+	 *             if the file cannot be opened
+	 */
+	public FileChannel openBody() throws IOException {
+		if ((this.status != Protocol.OK_CODE && this.status != Protocol.PARTIAL_CONTENT_CODE) || file == null) {
+			return null;
+		}
+		return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	}
+
+	/**
+	 * Fills in the header fields that depend on the body and encodes the
+	 * status line and header fields, up to and including the blank line.
+	 * 
+	 * @param body
+	 *            The body from {@link #openBody()}, or null. Its size at this
+	 *            moment is the length sent.
+	 * @return the encoded head
+	 * @throws IOException
+	 *             if the body cannot be read
+	 */
+	public byte[] encodeHead(FileChannel body) throws IOException {
+		if (this.bodyWriter != null) {
+			// The length is not known until the body has been written
+			this.segments = Collections.emptyList();
+		} else if (this.segments == null) {
+			// The length sent must be the length written, even if the file
+			// changed since the response was made
+			this.segments = body == null ? Collections.<Segment> emptyList()
+					: Collections.singletonList(new Segment(NO_BYTES, 0, body.size()));
+		}
+		this.bodyLength = 0;
+		for (Segment segment : this.segments) {
+			this.bodyLength += segment.prefix.length + segment.length;
+		}
+		if (!this.segments.isEmpty()) {
+			this.header.put(Protocol.CONTENT_LENGTH, Long.toString(this.bodyLength));
 		}
 
-		BufferedOutputStream out = new BufferedOutputStream(outStream, Protocol.CHUNK_LENGTH);
+		// Without a body length the client of a persistent connection cannot
+		// tell where this response ends, so state that there is no body.
+		// Interim responses never have one, and neither does a 304, whose
+		// length would be that of the file the client already has
+		if (this.bodyWriter == null && this.segments.isEmpty() && this.status >= Protocol.OK_CODE && this.status != Protocol.NO_CONTENT_CODE
+				&& this.status != Protocol.NOT_MODIFIED_CODE
+				&& header != null && !header.containsKey(Protocol.CONTENT_LENGTH)) {
+			this.header.put(Protocol.CONTENT_LENGTH, "0");
+		}
 
 		// First status line
-		String line = this.version + Protocol.SPACE + this.status + Protocol.SPACE + this.phrase + Protocol.CRLF;
-		out.write(line.getBytes());
+		StringBuilder head = new StringBuilder(256);
+		head.append(this.version).append(Protocol.SPACE).append(this.status).append(Protocol.SPACE)
+				.append(this.phrase).append(Protocol.CRLF);
 
 		// Write header fields if there is something to write in header field
 		if (header != null && !header.isEmpty()) {
 			for (Map.Entry<String, String> entry : header.entrySet()) {
-				String key = entry.getKey();
-				String value = entry.getValue();
-
 				// Write each header field line
-				line = key + Protocol.SEPERATOR + Protocol.SPACE + value + Protocol.CRLF;
-				out.write(line.getBytes());
+				head.append(entry.getKey()).append(Protocol.SEPERATOR).append(Protocol.SPACE)
+						.append(entry.getValue()).append(Protocol.CRLF);
 			}
 		}
 
 		// Write a blank line
-		out.write(Protocol.CRLF.getBytes());
+		head.append(Protocol.CRLF);
+		return head.toString().getBytes();
+	}
 
-		if (this.getStatus() == Protocol.OK_CODE && file != null) {
-			out.write(fileOut.toByteArray());
+	/**
+	 * Copies part of the body into an array, reading the file with
+	 * positional reads so the channel can be shared.
+	 * 
+	 * @param body
+	 *            The body from {@link #openBody()}.
+	 * @param offset
+	 *            Where in the body, after the head, to start.
+	 * @param buffer
+	 *            The array to copy into.
+	 * @param off
+	 *            Where in the array to start.
+	 * @param len
+	 *            The number of bytes to copy, no more than are left in the
+	 *            body.
+	 * @throws IOException
+	 *             if the file cannot be read, or has shrunk
+	 */
+	public void readBody(FileChannel body, long offset, byte[] buffer, int off, int len) throws IOException {
+		long start = 0;
+		for (Segment segment : this.segments) {
+			if (len == 0) {
+				break;
+			}
+			// Lets copy the part of the prefix at or after the offset
+			if (offset < start + segment.prefix.length) {
+				int from = (int) (offset - start);
+				int count = Math.min(segment.prefix.length - from, len);
+				System.arraycopy(segment.prefix, from, buffer, off, count);
+				offset += count;
+				off += count;
+				len -= count;
+			}
+			start += segment.prefix.length;
+
+			// And then the part of the file region
+			while (len > 0 && offset < start + segment.length) {
+				long within = offset - start;
+				int count = (int) Math.min(segment.length - within, len);
+				int read = body.read(ByteBuffer.wrap(buffer, off, count), segment.position + within);
+				if (read < 0) {
+					throw new EOFException("File shrank while it was being sent: " + file);
+				}
+				offset += read;
+				off += read;
+				len -= read;
+			}
+			start += segment.length;
+		}
+	}
+
+	/**
+	 * Writes a streamed body: runs its writer, framing and compressing what it
+	 * writes as the head announced, and then ends the body. Each chunk goes
+	 * out as soon as it is full, or when the writer flushes.
+	 * 
+	 * @param out
+	 *            The stream the body goes to, after the head. It is closed
+	 *            once the body is complete; one carrying further responses
+	 *            must take closing as the end of the body only.
+	 * @throws IOException
+	 *             if the writer fails or the client goes away, in which case
+	 *             the body has not been ended and the connection must be
+	 *             closed
+	 */
+	public void writeBody(OutputStream out) throws IOException {
+		OutputStream body = out;
+		if (this.chunked) {
+			body = new ChunkedOutputStream(body);
+		}
+		// Flushing the compressor must push out what has been written so far,
+		// or a flush by the writer would not reach the client
+		if (Compression.GZIP.equals(this.coding)) {
+			body = new GZIPOutputStream(body, ChunkedOutputStream.CHUNK_SIZE, true);
+		} else if (Compression.DEFLATE.equals(this.coding)) {
+			body = new DeflaterOutputStream(body, true);
+		}
+		this.bodyWriter.writeBody(body);
+		// Closing finishes the compression and sends the last chunk, but
+		// leaves the stream below open, so it is told separately
+		body.close();
+		out.close();
+	}
+
+	/**
+	 * Writes the data of the http response object to the output stream. The
+	 * head and the start of the body go out in one write, so a small
+	 * response takes a single system call, and the rest of the body follows
+	 * in pieces of a fixed size, however large the file is.
+	 * 
+	 * @param outStream
+	 *            The output stream
+	 * @throws Exception
+	 */
+	public void write(OutputStream outStream) throws Exception {
+		if (this.bodyWriter != null) {
+			this.stream(outStream);
+			return;
 		}
-		fileOut.close();
 
-		// Flush the data so that outStream sends everything through the socket
-		out.flush();
+		FileChannel body = this.openBody();
+		try {
+			byte[] head = this.encodeHead(body);
+			long remaining = this.bodyLength;
+			byte[] buffer = new byte[(int) Math.max(head.length,
+					Math.min(head.length + remaining, TRANSFER_BUFFER_SIZE))];
+			System.arraycopy(head, 0, buffer, 0, head.length);
+			int length = head.length;
+			long offset = 0;
+			while (true) {
+				// Lets fill the rest of the buffer from the body
+				int count = (int) Math.min(buffer.length - length, remaining);
+				this.readBody(body, offset, buffer, length, count);
+				length += count;
+				offset += count;
+				remaining -= count;
+				outStream.write(buffer, 0, length);
+				length = 0;
+				if (remaining == 0) {
+					break;
+				}
+			}
+			// Flush the data so that outStream sends everything through the
+			// socket
+			outStream.flush();
+		} finally {
+			if (body != null) {
+				body.close();
+			}
+		}
+	}
 
+	/**
+	 * Writes the head and a streamed body. The head waits in a buffer to go
+	 * out with the first chunk, so if the writer fails before anything has
+	 * been sent, a 500 can still be sent instead.
+	 */
+	private void stream(OutputStream outStream) throws IOException {
+		HeadBuffer buffered = new HeadBuffer(outStream);
+		buffered.write(this.encodeHead(null));
+		try {
+			this.writeBody(buffered);
+		} catch (IOException | RuntimeException e) {
+			if (!buffered.isCommitted()) {
+				buffered.discard();
+				outStream.write(HttpResponseFactory.create500InternalServerError(Protocol.CLOSE).encodeHead(null));
+				outStream.flush();
+			}
+			throw e;
+		}
 	}
 
 	@Override
@@ -209,9 +457,100 @@ public class HttpResponse {
 		if (file != null) {
 			buffer.append("Data: ");
 			buffer.append(this.file.getAbsolutePath());
+		} else if (bodyWriter != null) {
+			buffer.append("Data: streamed");
 		}
 		buffer.append("\n----------------------------------\n");
 		return buffer.toString();
 	}
 
+	/**
+	 * Holds the head of a streamed response until the body is flushed. The
+	 * connection stays open when the body ends.
+	 */
+	private static class HeadBuffer extends BufferedOutputStream {
+		private boolean committed;
+
+		public HeadBuffer(OutputStream out) {
+			super(out, TRANSFER_BUFFER_SIZE);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			if (len > this.buf.length - this.count) {
+				this.committed = true;
+			}
+			super.write(b, off, len);
+		}
+
+		@Override
+		public synchronized void write(int b) throws IOException {
+			if (this.count == this.buf.length) {
+				this.committed = true;
+			}
+			super.write(b);
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			this.committed = true;
+			super.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.flush();
+		}
+
+		/**
+		 * @return whether any of the response may have been sent
+		 */
+		public boolean isCommitted() {
+			return committed;
+		}
+
+		/**
+		 * Drops what is buffered, which has not been sent.
+		 */
+		public void discard() {
+			this.count = 0;
+		}
+	}
+
+	/**
+	 * A piece of the body: a few bytes of its own, such as the header of a
+	 * part in a multipart body, followed by a region of the file.
+	 */
+	public static class Segment {
+		private final byte[] prefix;
+		private final long position;
+		private final long length;
+
+		Segment(byte[] prefix, long position, long length) {
+			this.prefix = prefix;
+			this.position = position;
+			this.length = length;
+		}
+
+		/**
+		 * @return the bytes sent before the file region, possibly none
+		 */
+		public byte[] getPrefix() {
+			return prefix;
+		}
+
+		/**
+		 * @return where in the file the region starts
+		 */
+		public long getPosition() {
+			return position;
+		}
+
+		/**
+		 * @return the number of bytes in the file region
+		 */
+		public long getLength() {
+			return length;
+		}
+	}
 }
@@ -22,11 +22,19 @@
 package protocol;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.FileNameMap;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import server.GMTConversion;
 
 /**
  * This is a factory to produce various kind of HTTP responses.
@@ -44,9 +52,9 @@ public class HttpResponseFactory {
 		// Lets add Connection header
 		response.put(Protocol.CONNECTION, connection);
 
-		// Lets add current date
+		// Lets add current date, in the same format as Last-Modified
 		Date date = Calendar.getInstance().getTime();
-		response.put(Protocol.DATE, date.toString());
+		response.put(Protocol.DATE, GMTConversion.toGMTString(date));
 		
 		// Lets add server info
 		response.put(Protocol.Server, Protocol.getServerInfo());
@@ -57,6 +65,186 @@ public class HttpResponseFactory {
 		response.put(Protocol.ACCESS_CONTROL_ALLOW_ORIGIN, Protocol.ACCESS_CONTROL_ALLOWED_LIST);
 	}
 	
+	/**
+	 * Convenience method for adding the last modified date and entity tag of a file to the
+	 * supplied response object.
+	 * 
+	 * @param response The {@link HttpResponse} object whose header needs to be filled in.
+	 * @param file The {@link File} the response is about.
+	 */
+	private static void fillValidators(HttpResponse response, File file) {
+		// Lets add last modified date for the file
+		long timeSinceEpoch = file.lastModified();
+		Date modifiedTime = new Date(timeSinceEpoch);
+		response.put(Protocol.LAST_MODIFIED, GMTConversion.toGMTString(modifiedTime));
+		
+		// Lets add a tag that changes whenever the content of the file does
+		try {
+			response.put(Protocol.ETAG, EntityTagCache.getShared().getTag(file));
+		} catch (IOException e) {
+			// Sending a file that cannot be read fails anyway, so there is
+			// nothing to tag
+		}
+	}
+	
+	/**
+	 * Finds the MIME type of a file from its name.
+	 * 
+	 * @param file The {@link File} to be sent.
+	 * @return The MIME type, or null if it is not known.
+	 */
+	private static String getMimeType(File file) {
+		FileNameMap fileNameMap = URLConnection.getFileNameMap();
+		String mime = fileNameMap.getContentTypeFor(file.getName());
+		// Older platforms do not know JSON, which the database plugins serve
+		if (mime == null && file.getName().endsWith(".json")) {
+			mime = Protocol.APPLICATION_JSON;
+		}
+		return mime;
+	}
+	
+	/**
+	 * Creates the response to a GET or HEAD request for the supplied file, taking the
+	 * conditional header fields of the request into account. A client that already has the
+	 * current version of the file gets a 304 without the file being read, and one whose
+	 * <tt>If-Match</tt> or <tt>If-Unmodified-Since</tt> fails gets a 412. A GET with a
+	 * <tt>Range</tt> that still applies gets only the bytes it asks for, and a client that
+	 * accepts a compressed text file gets a cached compressed variant.
+	 * 
+	 * @param request The request asking for the file.
+	 * @param file The {@link File} to be sent, which exists.
+	 * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+	 * @return A {@link HttpResponse} object represent 200, 206, 304, 412 or 416 status.
+	 */
+	public static HttpResponse createFileResponse(HttpRequest request, File file, String connection) {
+		int status = Preconditions.evaluate(request, file);
+		if (status == Protocol.PRECONDITION_FAILED_CODE) {
+			return create412PreconditionFailed(connection);
+		}
+		
+		// Ranges are evaluated after the preconditions, and only for GET. They are
+		// served from the file itself, so they are never compressed
+		String range = request.getHeader(HttpHeader.RANGE);
+		boolean ranged = range != null && Protocol.GET.equals(request.getMethod())
+				&& Preconditions.isRangeCurrent(request, file);
+		boolean compressible = Compression.getShared().isCompressible(getMimeType(file), file.length());
+		String coding = null;
+		if (compressible && !ranged) {
+			coding = Compression.selectCoding(request.getHeader(HttpHeader.ACCEPT_ENCODING));
+		}
+		
+		HttpResponse response = null;
+		if (status == Protocol.NOT_MODIFIED_CODE) {
+			response = create304NotModified(connection);
+			fillValidators(response, file);
+			String tag = response.getHeader().get(Protocol.ETAG);
+			if (coding != null && tag != null) {
+				response.put(Protocol.ETAG, Compression.variantTag(tag, coding));
+			}
+		} else if (ranged) {
+			long length = file.length();
+			long[] ranges = ByteRanges.parse(range, length);
+			if (ranges != null && ranges.length == 0) {
+				response = create416RangeNotSatisfiable(length, connection);
+			} else if (ranges != null) {
+				response = create206PartialContent(file, ranges, connection);
+			}
+		} else if (coding != null) {
+			response = createEncoded200OK(file, coding, connection);
+		}
+		if (response == null) {
+			response = create200OK(file, connection);
+		}
+		
+		// Caches must not hand a compressed variant to a client that cannot read it
+		if (compressible) {
+			response.put(Protocol.VARY, Protocol.ACCEPT_ENCODING);
+		}
+		return response;
+	}
+	
+	/**
+	 * Creates a {@link HttpResponse} object for sending a compressed variant of the supplied
+	 * file.
+	 * 
+	 * @param file The {@link File} whose variant is sent.
+	 * @param coding {@link Compression#GZIP} or {@link Compression#DEFLATE}.
+	 * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+	 * @return A {@link HttpResponse} object represent 200 status, or null if the file could not
+	 *         be compressed.
+	 */
+	private static HttpResponse createEncoded200OK(File file, String coding, String connection) {
+		HttpResponse response = new HttpResponse(Protocol.VERSION, Protocol.OK_CODE, 
+				Protocol.OK_TEXT, new HashMap<String, String>(), null);
+		
+		// Lets fill up header fields with more information
+		fillGeneralHeader(response, connection);
+		fillValidators(response, file);
+		String tag = response.getHeader().get(Protocol.ETAG);
+		if (tag == null) {
+			return null;
+		}
+		byte[] variant;
+		try {
+			variant = Compression.getShared().getVariant(file, tag, coding);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		if (variant == null) {
+			// The file changed after its tag was taken, so it is sent as it is
+			return null;
+		}
+		
+		// The variant is a different representation, so it has its own tag
+		response.put(Protocol.ETAG, Compression.variantTag(tag, coding));
+		response.put(Protocol.CONTENT_ENCODING, coding);
+		response.put(Protocol.CONTENT_TYPE, getMimeType(file));
+		response.setSegments(Collections.singletonList(new HttpResponse.Segment(variant, 0, 0)));
+		
+		return response;
+	}
+	
+	/**
+	 * Creates a {@link HttpResponse} object whose body is made by the supplied writer while it is
+	 * sent, for content such as query results whose length is not known until all of it is made.
+	 * An HTTP/1.1 client gets the body in chunks as it is written; an older client gets it ended
+	 * by the connection closing. Text is compressed as it is written for a client that accepts it.
+	 * 
+	 * @param request The request the body answers.
+	 * @param mime The MIME type of the body.
+	 * @param writer The {@link IBodyWriter} that makes the body.
+	 * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+	 * @return A {@link HttpResponse} object represent 200 status.
+	 */
+	public static HttpResponse create200Streaming(HttpRequest request, String mime, IBodyWriter writer,
+			String connection) {
+		HttpResponse response = new HttpResponse(Protocol.VERSION, Protocol.OK_CODE, 
+				Protocol.OK_TEXT, new HashMap<String, String>(), null);
+		
+		// Lets fill up header fields with more information
+		fillGeneralHeader(response, connection);
+		response.put(Protocol.CONTENT_TYPE, mime);
+		
+		// Only HTTP/1.1 clients are sure to understand chunks
+		boolean chunked = Protocol.VERSION.equals(request.getVersion());
+		if (chunked) {
+			response.put(Protocol.TRANSFER_ENCODING, Protocol.CHUNKED);
+		}
+		
+		String coding = null;
+		if (Compression.getShared().isCompressible(mime)) {
+			coding = Compression.selectCoding(request.getHeader(HttpHeader.ACCEPT_ENCODING));
+			response.put(Protocol.VARY, Protocol.ACCEPT_ENCODING);
+		}
+		if (coding != null) {
+			response.put(Protocol.CONTENT_ENCODING, coding);
+		}
+		response.setBodyWriter(writer, chunked, coding);
+		
+		return response;
+	}
+	
 	/**
 	 * Creates a {@link HttpResponse} object for sending the supplied file with supplied connection
 	 * parameter.
@@ -72,18 +260,16 @@ public class HttpResponseFactory {
 		// Lets fill up header fields with more information
 		fillGeneralHeader(response, connection);
 		
-		// Lets add last modified date for the file
-		long timeSinceEpoch = file.lastModified();
-		Date modifiedTime = new Date(timeSinceEpoch);
-		response.put(Protocol.LAST_MODIFIED, modifiedTime.toString());
+		// Lets add the validators a client can send back to ask whether the
+		// file changed
+		fillValidators(response, file);
 		
 		// Lets get content length in bytes
 		long length = file.length();
 		response.put(Protocol.CONTENT_LENGTH, length + "");
 		
 		// Lets get MIME type for the file
-		FileNameMap fileNameMap = URLConnection.getFileNameMap();
-		String mime = fileNameMap.getContentTypeFor(file.getName());
+		String mime = getMimeType(file);
 		// The fileNameMap cannot find mime type for all of the documents, e.g. doc, odt, etc.
 		// So we will not add this field if we cannot figure out what a mime type is for the file.
 		// Let browser do this job by itself.
@@ -91,9 +277,83 @@ public class HttpResponseFactory {
 			response.put(Protocol.CONTENT_TYPE, mime);
 		}
 		
+		// Lets tell the client it may ask for parts of the file
+		response.put(Protocol.ACCEPT_RANGES, Protocol.BYTES);
+		
+		return response;
+	}
+	
+	/**
+	 * Creates a {@link HttpResponse} object for sending some byte ranges of the supplied file.
+	 * A single range is sent as it is; several are sent as the parts of a
+	 * <tt>multipart/byteranges</tt> body, each with its own <tt>Content-Range</tt>.
+	 * 
+	 * @param file The {@link File} to be sent.
+	 * @param ranges The first and last byte of each range, in pairs, sorted and not overlapping.
+	 * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+	 * @return A {@link HttpResponse} object represent 206 status.
+	 */
+	public static HttpResponse create206PartialContent(File file, long[] ranges, String connection) {
+		HttpResponse response = new HttpResponse(Protocol.VERSION, Protocol.PARTIAL_CONTENT_CODE, 
+				Protocol.PARTIAL_CONTENT_TEXT, new HashMap<String, String>(), file);
+		
+		// Lets fill up header fields with more information
+		fillGeneralHeader(response, connection);
+		fillValidators(response, file);
+		response.put(Protocol.ACCEPT_RANGES, Protocol.BYTES);
+		
+		long length = file.length();
+		String mime = getMimeType(file);
+		List<HttpResponse.Segment> segments = new ArrayList<HttpResponse.Segment>(ranges.length / 2 + 1);
+		if (ranges.length == 2) {
+			response.put(Protocol.CONTENT_RANGE, contentRange(ranges[0], ranges[1], length));
+			if (mime != null) {
+				response.put(Protocol.CONTENT_TYPE, mime);
+			}
+			segments.add(new HttpResponse.Segment(new byte[0], ranges[0], ranges[1] - ranges[0] + 1));
+		} else {
+			String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+			response.put(Protocol.CONTENT_TYPE, Protocol.MULTIPART_BYTERANGES + "; boundary=" + boundary);
+			
+			// Lets put the header of each part in front of its bytes
+			for (int i = 0; i < ranges.length; i += 2) {
+				StringBuilder part = new StringBuilder(128);
+				part.append(Protocol.CRLF).append("--").append(boundary).append(Protocol.CRLF);
+				if (mime != null) {
+					part.append(Protocol.CONTENT_TYPE).append(Protocol.SEPERATOR).append(Protocol.SPACE)
+							.append(mime).append(Protocol.CRLF);
+				}
+				part.append(Protocol.CONTENT_RANGE).append(Protocol.SEPERATOR).append(Protocol.SPACE)
+						.append(contentRange(ranges[i], ranges[i + 1], length)).append(Protocol.CRLF);
+				part.append(Protocol.CRLF);
+				segments.add(new HttpResponse.Segment(part.toString().getBytes(StandardCharsets.ISO_8859_1),
+						ranges[i], ranges[i + 1] - ranges[i] + 1));
+			}
+			String end = Protocol.CRLF + "--" + boundary + "--" + Protocol.CRLF;
+			segments.add(new HttpResponse.Segment(end.getBytes(StandardCharsets.ISO_8859_1), 0, 0));
+		}
+		response.setSegments(segments);
+		
 		return response;
 	}
 	
+	private static String contentRange(long first, long last, long length) {
+		return Protocol.BYTES + Protocol.SPACE + first + "-" + last + "/" + length;
+	}
+	
+	/**
+	 * Creates a {@link HttpResponse} object telling a client that sent
+	 * <tt>Expect: 100-continue</tt> to go on and send the request body. It is
+	 * an interim response, so it has no header fields and is followed by the
+	 * final response.
+	 * 
+	 * @return A {@link HttpResponse} object represent 100 status.
+	 */
+	public static HttpResponse create100Continue() {
+		return new HttpResponse(Protocol.VERSION, Protocol.CONTINUE_CODE, 
+				Protocol.CONTINUE_TEXT, new HashMap<String, String>(), null);
+	}
+	
 	/**
 	 * Creates a {@link HttpResponse} object for sending bad request response.
 	 * 
@@ -126,6 +386,127 @@ public class HttpResponseFactory {
 		return response;	
 	}
 	
+	/**
+	 * Creates a {@link HttpResponse} object for giving up on a request that
+	 * took too long to arrive.
+	 * 
+	 * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+	 * @return A {@link HttpResponse} object represent 408 status.
+	 */
+	public static HttpResponse create408RequestTimeout(String connection) {
+		HttpResponse response = new HttpResponse(Protocol.VERSION, Protocol.REQUEST_TIMEOUT_CODE, 
+				Protocol.REQUEST_TIMEOUT_TEXT, new HashMap<String, String>(), null);
+		
+		// Lets fill up the header fields with more information
+		fillGeneralHeader(response, connection);
+		
+		return response;	
+	}
+	
+	/**
+	 * Creates a {@link HttpResponse} object for refusing a request whose
+	 * <tt>If-Match</tt> or <tt>If-Unmodified-Since</tt> does not hold.
+	 * 
+	 * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+	 * @return A {@link HttpResponse} object represent 412 status.
+	 */
+	public static HttpResponse create412PreconditionFailed(String connection) {
+		HttpResponse response = new HttpResponse(Protocol.VERSION, Protocol.PRECONDITION_FAILED_CODE, 
+				Protocol.PRECONDITION_FAILED_TEXT, new HashMap<String, String>(), null);
+		
+		// Lets fill up the header fields with more information
+		fillGeneralHeader(response, connection);
+		
+		return response;	
+	}
+	
+	/**
+	 * Creates a {@link HttpResponse} object for refusing a request body that
+	 * is larger than the server accepts.
+	 * 
+	 * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+	 * @return A {@link HttpResponse} object represent 413 status.
+	 */
+	public static HttpResponse create413PayloadTooLarge(String connection) {
+		HttpResponse response = new HttpResponse(Protocol.VERSION, Protocol.PAYLOAD_TOO_LARGE_CODE, 
+				Protocol.PAYLOAD_TOO_LARGE_TEXT, new HashMap<String, String>(), null);
+		
+		// Lets fill up the header fields with more information
+		fillGeneralHeader(response, connection);
+		
+		return response;	
+	}
+	
+	/**
+	 * Creates a {@link HttpResponse} object for refusing a request line that
+	 * is longer than the server accepts.
+	 * 
+	 * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+	 * @return A {@link HttpResponse} object represent 414 status.
+	 */
+	public static HttpResponse create414UriTooLong(String connection) {
+		HttpResponse response = new HttpResponse(Protocol.VERSION, Protocol.URI_TOO_LONG_CODE, 
+				Protocol.URI_TOO_LONG_TEXT, new HashMap<String, String>(), null);
+		
+		// Lets fill up the header fields with more information
+		fillGeneralHeader(response, connection);
+		
+		return response;	
+	}
+	
+	/**
+	 * Creates a {@link HttpResponse} object for refusing header fields that
+	 * are more or larger than the server accepts.
+	 * 
+	 * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+	 * @return A {@link HttpResponse} object represent 431 status.
+	 */
+	public static HttpResponse create431RequestHeaderFieldsTooLarge(String connection) {
+		HttpResponse response = new HttpResponse(Protocol.VERSION, Protocol.HEADER_FIELDS_TOO_LARGE_CODE, 
+				Protocol.HEADER_FIELDS_TOO_LARGE_TEXT, new HashMap<String, String>(), null);
+		
+		// Lets fill up the header fields with more information
+		fillGeneralHeader(response, connection);
+		
+		return response;	
+	}
+	
+	/**
+	 * Creates a {@link HttpResponse} object for telling the client that none
+	 * of the byte ranges it asked for are in the file.
+	 * 
+	 * @param length The length of the file.
+	 * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+	 * @return A {@link HttpResponse} object represent 416 status.
+	 */
+	public static HttpResponse create416RangeNotSatisfiable(long length, String connection) {
+		HttpResponse response = new HttpResponse(Protocol.VERSION, Protocol.RANGE_NOT_SATISFIABLE_CODE, 
+				Protocol.RANGE_NOT_SATISFIABLE_TEXT, new HashMap<String, String>(), null);
+		
+		// Lets fill up the header fields with more information
+		fillGeneralHeader(response, connection);
+		response.put(Protocol.CONTENT_RANGE, Protocol.BYTES + " */" + length);
+		
+		return response;	
+	}
+	
+	/**
+	 * Creates a {@link HttpResponse} object for refusing a request whose
+	 * <tt>Expect</tt> header asks for something the server cannot do.
+	 * 
+	 * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+	 * @return A {@link HttpResponse} object represent 417 status.
+	 */
+	public static HttpResponse create417ExpectationFailed(String connection) {
+		HttpResponse response = new HttpResponse(Protocol.VERSION, Protocol.EXPECTATION_FAILED_CODE, 
+				Protocol.EXPECTATION_FAILED_TEXT, new HashMap<String, String>(), null);
+		
+		// Lets fill up the header fields with more information
+		fillGeneralHeader(response, connection);
+		
+		return response;	
+	}
+	
 	/**
 	 * Creates a {@link HttpResponse} object for sending version not supported response.
 	 * 
@@ -144,8 +525,13 @@ public class HttpResponseFactory {
 	 * @return A {@link HttpResponse} object represent 304 status.
 	 */
 	public static HttpResponse create304NotModified(String connection) {
-		// TODO fill in this method
-		return null;
+		HttpResponse response = new HttpResponse(Protocol.VERSION, Protocol.NOT_MODIFIED_CODE, 
+				Protocol.NOT_MODIFIED_TEXT, new HashMap<String, String>(), null);
+		
+		// Lets fill up the header fields with more information
+		fillGeneralHeader(response, connection);
+		
+		return response;
 	}
 	
 	public static HttpResponse create501NotImplemented(String connection) {
@@ -172,6 +558,23 @@ public class HttpResponseFactory {
 		return response;
 	}
 
+	/**
+	 * Creates a {@link HttpResponse} object for telling the client that the
+	 * server is too busy to handle its request right now.
+	 * 
+	 * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+	 * @return A {@link HttpResponse} object represent 503 status.
+	 */
+	public static HttpResponse create503ServiceUnavailable(String connection) {
+		HttpResponse response = new HttpResponse(Protocol.VERSION, Protocol.SERVICE_UNAVAILABLE_CODE, 
+				Protocol.SERVICE_UNAVAILABLE_TEXT, new HashMap<String, String>(), null);
+		
+		// Lets fill up the header fields with more information
+		fillGeneralHeader(response, connection);
+		
+		return response;
+	}
+
 	/**
 	 * @param close
 	 * @return
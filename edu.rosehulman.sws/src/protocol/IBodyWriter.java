@@ -0,0 +1,27 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Produces the body of a response while it is sent, for content whose length
+ * is not known until all of it has been made, such as the rows of a query.
+ * The writer runs after the head has gone out, so the client gets the first
+ * bytes of the body as soon as they are written instead of once the whole
+ * body is ready.
+ */
+public interface IBodyWriter {
+	/**
+	 * Writes the body. Flushing the stream sends what has been written so
+	 * far; the stream is ended by the server once this returns, so it need
+	 * not be closed.
+	 *
+	 * @param out
+	 *            The stream the body goes to.
+	 * @throws IOException
+	 *             if the body cannot be made, or the client has gone away,
+	 *             in which case the connection is closed with the body cut
+	 *             short
+	 */
+	public void writeBody(OutputStream out) throws IOException;
+}
@@ -0,0 +1,168 @@
+package protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+
+import server.GMTConversion;
+
+/**
+ * Evaluates the conditional header fields of a request for a file, in the
+ * order RFC 7232 gives them: <tt>If-Match</tt>, then
+ * <tt>If-Unmodified-Since</tt>, then <tt>If-None-Match</tt>, then
+ * <tt>If-Modified-Since</tt>. A field is only looked at when the fields before
+ * it allow, so a client sending both a tag and a date is judged by the tag.
+ * Dates are compared to the second, as that is all an HTTP date holds. The
+ * file's tag comes from the {@link EntityTagCache} and is only looked up when
+ * a tag field was sent; the file itself is never read for a date.
+ */
+class Preconditions {
+	private Preconditions() {
+	}
+
+	/**
+	 * Decides whether the file should be sent.
+	 *
+	 * @param request
+	 *            The request.
+	 * @param file
+	 *            The file it asks for, which exists.
+	 * @return {@link Protocol#OK_CODE} to send the file,
+	 *         {@link Protocol#NOT_MODIFIED_CODE} if the client already has
+	 *         it, or {@link Protocol#PRECONDITION_FAILED_CODE}
+	 */
+	static int evaluate(HttpRequest request, File file) {
+		String ifMatch = request.getHeader(HttpHeader.IF_MATCH);
+		if (ifMatch != null) {
+			if (!matches(ifMatch, file, false)) {
+				return Protocol.PRECONDITION_FAILED_CODE;
+			}
+		} else {
+			long since = parseDate(request.getHeader(HttpHeader.IF_UNMODIFIED_SINCE));
+			if (since >= 0 && modifiedAfter(file, since)) {
+				return Protocol.PRECONDITION_FAILED_CODE;
+			}
+		}
+
+		boolean safe = Protocol.GET.equals(request.getMethod()) || Protocol.HEAD.equals(request.getMethod());
+		String ifNoneMatch = request.getHeader(HttpHeader.IF_NONE_MATCH);
+		if (ifNoneMatch != null) {
+			if (matches(ifNoneMatch, file, true)) {
+				return safe ? Protocol.NOT_MODIFIED_CODE : Protocol.PRECONDITION_FAILED_CODE;
+			}
+		} else if (safe) {
+			long since = parseDate(request.getHeader(HttpHeader.IF_MODIFIED_SINCE));
+			if (since >= 0 && !modifiedAfter(file, since)) {
+				return Protocol.NOT_MODIFIED_CODE;
+			}
+		}
+		return Protocol.OK_CODE;
+	}
+
+	/**
+	 * Decides whether the <tt>Range</tt> of a request should be honored. A
+	 * client sends <tt>If-Range</tt> with the validator of the copy it has
+	 * part of; if the file changed since, the client needs all of it.
+	 *
+	 * @param request
+	 *            The request.
+	 * @param file
+	 *            The file it asks for.
+	 * @return whether there is no <tt>If-Range</tt>, or it names the current
+	 *         version of the file
+	 */
+	static boolean isRangeCurrent(HttpRequest request, File file) {
+		String ifRange = request.getHeader(HttpHeader.IF_RANGE);
+		if (ifRange == null) {
+			return true;
+		}
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("W/")) {
+			// Only a strong validator can vouch for the bytes
+			return false;
+		}
+		if (ifRange.startsWith("\"")) {
+			return matches(ifRange, file, false);
+		}
+		long date = parseDate(ifRange);
+		return date >= 0 && file.lastModified() / 1000 == date / 1000;
+	}
+
+	/**
+	 * Checks a list of entity tags, or <tt>*</tt>, against the file's tag.
+	 * Commas may appear inside a tag, so the list is split outside quotes
+	 * only.
+	 *
+	 * @param weak
+	 *            Whether a weak tag <tt>W/"..."</tt> may match, which
+	 *            <tt>If-None-Match</tt> allows and <tt>If-Match</tt> does not.
+	 *            A weak comparison also matches the tags of the compressed
+	 *            variants of the file, as they have the same content.
+	 */
+	private static boolean matches(String list, File file, boolean weak) {
+		if (list.trim().equals("*")) {
+			return true;
+		}
+		String current;
+		try {
+			current = EntityTagCache.getShared().getTag(file);
+		} catch (IOException e) {
+			// A file that cannot be hashed matches nothing
+			return false;
+		}
+
+		int i = 0;
+		int length = list.length();
+		while (i < length) {
+			char c = list.charAt(i);
+			if (c == ',' || c == ' ' || c == '\t') {
+				i++;
+				continue;
+			}
+			boolean isWeak = list.startsWith("W/", i);
+			int open = isWeak ? i + 2 : i;
+			if (open >= length || list.charAt(open) != '"') {
+				// Not a tag, so lets skip to the next one
+				int comma = list.indexOf(',', i);
+				i = comma < 0 ? length : comma + 1;
+				continue;
+			}
+			int close = list.indexOf('"', open + 1);
+			if (close < 0) {
+				return false;
+			}
+			if ((weak || !isWeak) && matches(list, open, close + 1, current)) {
+				return true;
+			}
+			if (weak && (matches(list, open, close + 1, Compression.variantTag(current, Compression.GZIP))
+					|| matches(list, open, close + 1, Compression.variantTag(current, Compression.DEFLATE)))) {
+				return true;
+			}
+			i = close + 1;
+		}
+		return false;
+	}
+
+	private static boolean matches(String list, int start, int end, String tag) {
+		return end - start == tag.length() && list.regionMatches(start, tag, 0, tag.length());
+	}
+
+	private static boolean modifiedAfter(File file, long since) {
+		return file.lastModified() / 1000 > since / 1000;
+	}
+
+	/**
+	 * @return the date in milliseconds, or -1 if the field was not sent or is
+	 *         not a date, in which case it is ignored
+	 */
+	private static long parseDate(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return GMTConversion.fromGMTString(value.trim()).getTime();
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+}
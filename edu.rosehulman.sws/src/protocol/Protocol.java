@@ -40,24 +40,55 @@ public class Protocol {
     // Some useful protocol elements
     public static final String VERSION = "HTTP/1.1";
     public static final String GET = "GET";
+    public static final String HEAD = "HEAD";
     public static final String POST = "POST";
     public static final String PUT = "PUT";
     public static final String DELETE = "DELETE";
     public static final String OPTIONS = "OPTIONS";
     
     // Some useful http codes and text
+    public static final int CONTINUE_CODE = 100;
+    public static final String CONTINUE_TEXT = "Continue";
+    
     public static final int OK_CODE = 200;
     public static final String OK_TEXT = "OK";
     
+    public static final int PARTIAL_CONTENT_CODE = 206;
+    public static final String PARTIAL_CONTENT_TEXT = "Partial Content";
+    
     public static final int MOVED_PERMANENTLY_CODE = 301;
     public static final String MOVED_PERMANENTLY_TEXT = "Moved Permanently";
     
+    public static final int NOT_MODIFIED_CODE = 304;
+    public static final String NOT_MODIFIED_TEXT = "Not Modified";
+    
     public static final int BAD_REQUEST_CODE = 400;
     public static final String BAD_REQUEST_TEXT = "Bad Request";
     
     public static final int NOT_FOUND_CODE = 404;
     public static final String NOT_FOUND_TEXT = "Not Found";
     
+    public static final int REQUEST_TIMEOUT_CODE = 408;
+    public static final String REQUEST_TIMEOUT_TEXT = "Request Timeout";
+    
+    public static final int PRECONDITION_FAILED_CODE = 412;
+    public static final String PRECONDITION_FAILED_TEXT = "Precondition Failed";
+    
+    public static final int PAYLOAD_TOO_LARGE_CODE = 413;
+    public static final String PAYLOAD_TOO_LARGE_TEXT = "Payload Too Large";
+    
+    public static final int URI_TOO_LONG_CODE = 414;
+    public static final String URI_TOO_LONG_TEXT = "URI Too Long";
+    
+    public static final int RANGE_NOT_SATISFIABLE_CODE = 416;
+    public static final String RANGE_NOT_SATISFIABLE_TEXT = "Range Not Satisfiable";
+    
+    public static final int EXPECTATION_FAILED_CODE = 417;
+    public static final String EXPECTATION_FAILED_TEXT = "Expectation Failed";
+    
+    public static final int HEADER_FIELDS_TOO_LARGE_CODE = 431;
+    public static final String HEADER_FIELDS_TOO_LARGE_TEXT = "Request Header Fields Too Large";
+    
     public static final int NOT_SUPPORTED_CODE = 505;
     public static final String NOT_SUPPORTED_TEXT = "HTTP Version Not Supported";
     
@@ -67,6 +98,9 @@ public class Protocol {
     public static final int INTERNAL_SERVER_ERROR_CODE = 500;
     public static final String INTERNAL_SERVER_ERROR_TEXT = "Internal server error";
 
+    public static final int SERVICE_UNAVAILABLE_CODE = 503;
+    public static final String SERVICE_UNAVAILABLE_TEXT = "Service Unavailable";
+
     public static final int CREATED_CODE = 201;
     public static final String CREATED_TEXT = "Created";
     
@@ -76,19 +110,32 @@ public class Protocol {
     // Some useful header elements in request
     public static final String HOST = "Host";
     public static final String CONNECTION = "Connection";
+    public static final String KEEP_ALIVE = "Keep-Alive";
     public static final String USER_AGENT = "User-Agent";
+    public static final String TRANSFER_ENCODING = "Transfer-Encoding";
+    public static final String CHUNKED = "chunked";
+    public static final String CONTINUE_EXPECTATION = "100-continue";
 
     // Some useful header elements in response
     public static final String DATE = "Date";
     public static final String Server = "Server";
     public static final String LAST_MODIFIED = "Last-Modified";
+    public static final String ETAG = "ETag";
+    public static final String ACCEPT_RANGES = "Accept-Ranges";
+    public static final String CONTENT_RANGE = "Content-Range";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String VARY = "Vary";
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
     public static final String CONTENT_LENGTH = "Content-Length";
     public static final String CONTENT_TYPE = "Content-Type";
+    public static final String RETRY_AFTER = "Retry-After";
     public static final String ACCESS_CONTROL_ALLOW_ORIGIN = "Access-Control-Allow-Origin";
     public static final String ACCESS_CONTROL_ALLOW_METHODS = "Access-Control-Allow-Methods";
     public static final String ACCESS_CONTROL_ALLOW_HEADERS = "Access-Control-Allow-Headers";
 
     public static final String APPLICATION_JSON = "application/json";
+    public static final String MULTIPART_BYTERANGES = "multipart/byteranges";
+    public static final String BYTES = "bytes";
     
     /**
      * A chunk size to be used when reading a file and sending it to a socket. 
@@ -31,6 +31,7 @@ public class ProtocolException extends Exception {
 	private static final long serialVersionUID = -2475212356774585742L;
 	
 	private int status;
+	private RequestLimit limit;
 
 	/**
 	 * Creates exception object with default message and default code.
@@ -82,7 +83,26 @@ public class ProtocolException extends Exception {
 		status = Protocol.NOT_SUPPORTED_CODE;
 	}
 	
+	/**
+	 * Creates exception object for a request that broke one of the limits
+	 * on reading requests.
+	 * 
+	 * @param limit The limit that was broken.
+	 */
+	public ProtocolException(RequestLimit limit) {
+		super(limit.getText());
+		this.status = limit.getStatus();
+		this.limit = limit;
+	}
+	
 	public int getStatus() {
 		return status;
 	}
+	
+	/**
+	 * @return the limit the request broke, or null if it broke none
+	 */
+	public RequestLimit getLimit() {
+		return limit;
+	}
 }
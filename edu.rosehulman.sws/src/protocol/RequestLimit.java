@@ -0,0 +1,65 @@
+package protocol;
+
+/**
+ * The limits a request can break while it is being read, and the status each
+ * is answered with. A request that breaks one is answered and its connection
+ * closed, since there is no telling where the next request would start.
+ */
+public enum RequestLimit {
+	/**
+	 * The request line and header fields took too long to arrive.
+	 */
+	HEADER_TIMEOUT(Protocol.REQUEST_TIMEOUT_CODE, Protocol.REQUEST_TIMEOUT_TEXT),
+
+	/**
+	 * The whole request, body included, took too long to arrive.
+	 */
+	REQUEST_TIMEOUT(Protocol.REQUEST_TIMEOUT_CODE, Protocol.REQUEST_TIMEOUT_TEXT),
+
+	/**
+	 * The request line is too long.
+	 */
+	REQUEST_LINE(Protocol.URI_TOO_LONG_CODE, Protocol.URI_TOO_LONG_TEXT),
+
+	/**
+	 * There are too many header fields.
+	 */
+	HEADER_COUNT(Protocol.HEADER_FIELDS_TOO_LARGE_CODE, Protocol.HEADER_FIELDS_TOO_LARGE_TEXT),
+
+	/**
+	 * The header fields take too many bytes.
+	 */
+	HEADER_SIZE(Protocol.HEADER_FIELDS_TOO_LARGE_CODE, Protocol.HEADER_FIELDS_TOO_LARGE_TEXT),
+
+	/**
+	 * One chunk of a chunked body is too large.
+	 */
+	CHUNK_SIZE(Protocol.PAYLOAD_TOO_LARGE_CODE, Protocol.PAYLOAD_TOO_LARGE_TEXT),
+
+	/**
+	 * The body is too large.
+	 */
+	BODY_SIZE(Protocol.PAYLOAD_TOO_LARGE_CODE, Protocol.PAYLOAD_TOO_LARGE_TEXT);
+
+	private final int status;
+	private final String text;
+
+	private RequestLimit(int status, String text) {
+		this.status = status;
+		this.text = text;
+	}
+
+	/**
+	 * @return the status code a request breaking this limit is answered with
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return the reason phrase for the status code
+	 */
+	public String getText() {
+		return text;
+	}
+}
@@ -0,0 +1,107 @@
+package protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes percent-encoded bytes, as found in request paths, query strings and
+ * <tt>application/x-www-form-urlencoded</tt> bodies, straight into strings.
+ * Text without escapes becomes a string in one step; escapes are decoded into
+ * a byte array first so that multi-byte UTF-8 characters come out whole. A
+ * <tt>%</tt> not followed by two hex digits is kept as it is.
+ */
+class UrlEncoding {
+	private UrlEncoding() {
+	}
+
+	/**
+	 * Decodes part of an array as UTF-8 text.
+	 *
+	 * @param bytes
+	 *            The encoded bytes.
+	 * @param start
+	 *            Where the text starts.
+	 * @param end
+	 *            Where the text ends.
+	 * @param plusIsSpace
+	 *            Whether <tt>+</tt> stands for a space, as it does in query
+	 *            strings and forms but not in paths.
+	 * @return the decoded text
+	 */
+	static String decode(byte[] bytes, int start, int end, boolean plusIsSpace) {
+		int i = start;
+		while (i < end && bytes[i] != '%' && !(plusIsSpace && bytes[i] == '+')) {
+			i++;
+		}
+		if (i == end) {
+			return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+		}
+
+		// Decoding never makes the text longer
+		byte[] decoded = new byte[end - start];
+		int length = i - start;
+		System.arraycopy(bytes, start, decoded, 0, length);
+		while (i < end) {
+			byte b = bytes[i];
+			int high;
+			int low;
+			if (b == '%' && i + 2 < end && (high = Character.digit(bytes[i + 1], 16)) >= 0
+					&& (low = Character.digit(bytes[i + 2], 16)) >= 0) {
+				decoded[length++] = (byte) (high << 4 | low);
+				i += 3;
+			} else {
+				decoded[length++] = plusIsSpace && b == '+' ? (byte) Protocol.SPACE : b;
+				i++;
+			}
+		}
+		return new String(decoded, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Splits <tt>name=value</tt> pairs separated by <tt>&amp;</tt> and adds
+	 * them to the map, decoding names and values. A pair without <tt>=</tt>
+	 * has an empty value, and empty pairs are skipped.
+	 *
+	 * @param bytes
+	 *            The encoded pairs.
+	 * @param start
+	 *            Where the pairs start.
+	 * @param end
+	 *            Where the pairs end.
+	 * @param parameters
+	 *            The map to add to, keeping every value of a name in order.
+	 */
+	static void parseParameters(byte[] bytes, int start, int end, Map<String, List<String>> parameters) {
+		int pair = start;
+		while (pair < end) {
+			int amp = pair;
+			int equals = -1;
+			while (amp < end && bytes[amp] != '&') {
+				if (equals < 0 && bytes[amp] == '=') {
+					equals = amp;
+				}
+				amp++;
+			}
+			if (amp > pair) {
+				String name;
+				String value;
+				if (equals < 0) {
+					name = decode(bytes, pair, amp, true);
+					value = "";
+				} else {
+					name = decode(bytes, pair, equals, true);
+					value = decode(bytes, equals + 1, amp, true);
+				}
+				List<String> values = parameters.get(name);
+				if (values == null) {
+					values = new ArrayList<String>(1);
+					parameters.put(name, values);
+				}
+				values.add(value);
+			}
+			pair = amp + 1;
+		}
+	}
+}
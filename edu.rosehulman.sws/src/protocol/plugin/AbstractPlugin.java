@@ -45,8 +45,9 @@ public abstract class AbstractPlugin {
 	 * @return
 	 */
 	public final HttpResponse handle(HttpRequest request) {
-		// TODO?: parse form fields if they exist
-		final String uri = request.getUri();
+		// Query parameters and form fields are parsed by the request when a
+		// servlet asks for them, so only the path is needed here
+		final String uri = request.getPath();
 		IServlet servlet;
 		try {
 			servlet = getServletFromUri(uri);
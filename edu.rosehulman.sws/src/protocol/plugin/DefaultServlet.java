@@ -1,12 +1,10 @@
 package protocol.plugin;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import protocol.HttpRequest;
 import protocol.HttpResponse;
@@ -25,12 +23,8 @@ final class DefaultServlet implements IServlet {
 	@Override
 	public HttpResponse doGet(HttpRequest request, String rootDirectory) {
 		HttpResponse response;
-		// Map<String, String> header = request.getHeader();
-		// String date = header.get("if-modified-since");
-		// String hostName = header.get("host");
-		//
 		// Handling GET request here
-		String uri = request.getUri();
+		String uri = request.getPath();
 		String path = getFilePathFromUri(uri);
 
 		File file = new File(rootDirectory + path);
@@ -40,12 +34,12 @@ final class DefaultServlet implements IServlet {
 				String location = rootDirectory + Protocol.SYSTEM_SEPARATOR + Protocol.DEFAULT_FILE;
 				file = new File(location);
 				if (file.exists()) {
-					response = HttpResponseFactory.create200OK(file, Protocol.CLOSE);
+					response = HttpResponseFactory.createFileResponse(request, file, Protocol.CLOSE);
 				} else {
 					response = HttpResponseFactory.create404NotFound(Protocol.CLOSE);
 				}
 			} else {
-				response = HttpResponseFactory.create200OK(file, Protocol.CLOSE);
+				response = HttpResponseFactory.createFileResponse(request, file, Protocol.CLOSE);
 			}
 		} else {
 			response = HttpResponseFactory.create404NotFound(Protocol.CLOSE);
@@ -58,9 +52,10 @@ final class DefaultServlet implements IServlet {
 		HttpResponse response;
 
 		// Handling PUT request here
-		String uri = request.getUri();
+		String uri = request.getPath();
 		String path = getFilePathFromUri(uri);
-		String body = new String(request.getBody());
+		// The body is streamed to the file rather than read into memory
+		InputStream body = request.getInputStream();
 
 		File file = new File(rootDirectory + path);
 
@@ -87,9 +82,10 @@ final class DefaultServlet implements IServlet {
 		HttpResponse response;
 
 		// Handling POST request here
-		String uri = request.getUri();
+		String uri = request.getPath();
 		String path = getFilePathFromUri(uri);
-		String body = new String(request.getBody());
+		// The body is streamed to the file rather than read into memory
+		InputStream body = request.getInputStream();
 
 		File file = new File(rootDirectory + path);
 
@@ -115,7 +111,7 @@ final class DefaultServlet implements IServlet {
 	public HttpResponse doDelete(HttpRequest request, String rootDirectory) {
 		HttpResponse response;
 		// Handling POST request here
-		String uri = request.getUri();
+		String uri = request.getPath();
 		String path = getFilePathFromUri(uri);
 		final String deleted = rootDirectory + Protocol.SYSTEM_SEPARATOR + "deleted.txt";
 
@@ -160,35 +156,45 @@ final class DefaultServlet implements IServlet {
 	}
 
 	/* ----- Helper methods ----- */
-	public HttpResponse createFile(File file, String body) {
-		HttpResponse response;
-		PrintWriter out = null;
-		try {
-			out = new PrintWriter(file.getAbsolutePath());
-			out.println(body);
-			response = HttpResponseFactory.create200OK(file, Protocol.CLOSE);
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-			response = HttpResponseFactory.create400BadRequest(Protocol.CLOSE);
-		} finally {
-			out.close();
-		}
-		return response;
+	public HttpResponse createFile(File file, InputStream body) {
+		return this.writeFile(file, body, false);
+	}
+
+	public HttpResponse overwriteFile(File file, InputStream body) {
+		return this.writeFile(file, body, false);
 	}
 
-	public HttpResponse overwriteFile(File file, String body) {
-		file.delete();
-		return this.createFile(file, body);
+	public HttpResponse appendToFile(File file, InputStream body) {
+		return this.writeFile(file, body, true);
 	}
 
-	public HttpResponse appendToFile(File file, String body) {
+	/**
+	 * Copies the body into the file one buffer at a time, so the memory used
+	 * does not depend on the size of the upload.
+	 */
+	private HttpResponse writeFile(File file, InputStream body, boolean append) {
 		HttpResponse response;
+		OutputStream out = null;
 		try {
-			Files.write(Paths.get(file.getAbsolutePath()), body.getBytes(), StandardOpenOption.APPEND);
+			out = new FileOutputStream(file, append);
+			byte[] buffer = new byte[Protocol.CHUNK_LENGTH];
+			int read;
+			while ((read = body.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			out.close();
 			response = HttpResponseFactory.create200OK(file, Protocol.CLOSE);
 		} catch (IOException e) {
 			e.printStackTrace();
 			response = HttpResponseFactory.create400BadRequest(Protocol.CLOSE);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
 		}
 		return response;
 	}
@@ -0,0 +1,131 @@
+package server;
+
+/**
+ * An adaptive cap on how many requests the {@link Server} processes at
+ * once, in the style of TCP Vegas. Both transports take a slot for each
+ * request as a worker starts on it and give it back once the request is
+ * done, so idle keep-alive connections never count. Each finished request
+ * reports how long it took. The fastest time seen recently stands in for the
+ * time a request takes when nothing is queued, and the ratio between the two
+ * estimates how many requests are waiting inside the server:
+ *
+ * <pre>
+ * queued = limit * (1 - noLoadRtt / rtt)
+ * </pre>
+ *
+ * While few requests are queued the limit grows, and once too many are it
+ * shrinks, both by steps proportional to the logarithm of the limit. So the
+ * limit rises quickly on a machine with room to spare, such as for fast static
+ * files, and falls when a slow back end makes requests pile up.
+ */
+public class ConcurrencyLimit {
+	/**
+	 * How many limits' worth of samples make up one window for finding the
+	 * no-load time.
+	 */
+	private static final int PROBE_MULTIPLIER = 30;
+
+	private int minLimit;
+	private int maxLimit;
+	private volatile int limit;
+	private volatile long rtt;
+	private volatile long noLoadRtt;
+	private long windowMinRtt;
+	private int samplesUntilProbe;
+
+	/**
+	 * @param initialLimit
+	 *            The limit to start with.
+	 * @param minLimit
+	 *            The lowest the limit may fall.
+	 * @param maxLimit
+	 *            The highest the limit may rise.
+	 */
+	public ConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+		this.minLimit = minLimit;
+		this.maxLimit = Math.max(minLimit, maxLimit);
+		this.limit = Math.min(this.maxLimit, Math.max(minLimit, initialLimit));
+		this.rtt = 0;
+		this.noLoadRtt = 0;
+		this.windowMinRtt = Long.MAX_VALUE;
+		this.samplesUntilProbe = PROBE_MULTIPLIER * this.limit;
+	}
+
+	/**
+	 * Updates the limit with the time one request took.
+	 *
+	 * @param rtt
+	 *            The time from when the request was ready to be processed
+	 *            until its response was sent on its way, in nanoseconds.
+	 * @param inFlight
+	 *            The number of requests being processed when it finished.
+	 * @return whether the limit went up, so that waiting requests may be
+	 *         let in
+	 */
+	public synchronized boolean onSample(long rtt, int inFlight) {
+		if (rtt <= 0) {
+			return false;
+		}
+		this.rtt = rtt;
+		this.windowMinRtt = Math.min(this.windowMinRtt, rtt);
+		if (this.noLoadRtt == 0 || rtt < this.noLoadRtt) {
+			this.noLoadRtt = rtt;
+		}
+
+		// The fastest time can go stale, e.g. after the data behind a plugin
+		// grows, so every window it is replaced by the fastest time of that
+		// window
+		if (--this.samplesUntilProbe <= 0) {
+			this.noLoadRtt = this.windowMinRtt;
+			this.windowMinRtt = Long.MAX_VALUE;
+			this.samplesUntilProbe = PROBE_MULTIPLIER * this.limit;
+		}
+
+		int current = this.limit;
+		double queued = current * (1 - (double) this.noLoadRtt / rtt);
+		double step = Math.max(1, Math.log10(current));
+		double alpha = 3 * step;
+		double beta = 6 * step;
+
+		int next = current;
+		if (queued <= step) {
+			// Nothing is waiting; grow fast, but only if the limit is what is
+			// holding the load back
+			if (inFlight * 2 >= current) {
+				next = (int) (current + beta);
+			}
+		} else if (queued < alpha) {
+			if (inFlight * 2 >= current) {
+				next = (int) (current + step);
+			}
+		} else if (queued > beta) {
+			next = (int) (current - step);
+		}
+
+		next = Math.min(this.maxLimit, Math.max(this.minLimit, next));
+		this.limit = next;
+		return next > current;
+	}
+
+	/**
+	 * @return the number of requests that may be processed at once
+	 */
+	public int getLimit() {
+		return this.limit;
+	}
+
+	/**
+	 * @return the time the most recent request took, in nanoseconds
+	 */
+	public long getRtt() {
+		return this.rtt;
+	}
+
+	/**
+	 * @return the estimated time a request takes when nothing is queued, in
+	 *         nanoseconds
+	 */
+	public long getNoLoadRtt() {
+		return this.noLoadRtt;
+	}
+}
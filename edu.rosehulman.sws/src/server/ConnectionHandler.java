@@ -21,16 +21,23 @@
 
 package server;
 
-import java.io.InputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import protocol.HttpRequest;
+import protocol.HttpRequestReader;
 import protocol.HttpResponse;
 import protocol.HttpResponseFactory;
 import protocol.Protocol;
 import protocol.ProtocolException;
-import protocol.plugin.AbstractPlugin;
+import protocol.RequestLimit;
 
 /**
  * This class is responsible for handling a incoming request by creating a
@@ -41,13 +48,35 @@ import protocol.plugin.AbstractPlugin;
  * @author Chandan R. Rupakheti (rupakhet@rose-hulman.edu)
  */
 public class ConnectionHandler implements Runnable {
+	/**
+	 * The most bytes of a body the servlet left unread that are read and
+	 * thrown away to keep the connection open.
+	 */
+	private static final long MAX_DISCARDED_BODY = 64 * 1024;
+
+	/**
+	 * How long an idle connection blocks its worker before checking whether
+	 * other work is waiting for the thread.
+	 */
+	private static final int IDLE_SLICE_MILLIS = 20;
+
 	private Server server;
 	private Socket socket;
+	private String inetAddress;
+	private long readyAt;
+	private long idleSince;
+
+	// The same reader must be used for every request on this connection,
+	// since it may already have buffered the start of the next one
+	private HttpRequestReader reader;
+	private OutputStream outStream;
+	private int requestsServed;
 
 	public ConnectionHandler(Server server, Socket socket) {
 		this.server = server;
 		this.socket = socket;
-
+		this.inetAddress = socket.getInetAddress().toString();
+		this.idleSince = System.nanoTime();
 	}
 
 	/**
@@ -57,22 +86,78 @@ public class ConnectionHandler implements Runnable {
 		return socket;
 	}
 
+	/**
+	 * @return the address of the client
+	 */
+	public String getInetAddress() {
+		return inetAddress;
+	}
+
+	/**
+	 * Marks the connection as taken by a worker, which counts towards the
+	 * latency of the requests it serves next.
+	 */
+	public void dispatched() {
+		this.readyAt = System.nanoTime();
+	}
+
 	/**
 	 * The entry point for connection handler. It first parses incoming request
 	 * and creates a {@link HttpRequest} object, then it creates an appropriate
 	 * {@link HttpResponse} object and sends the response back to the client
-	 * (web browser).
+	 * (web browser). As long as both sides want a persistent connection it
+	 * keeps reading further requests from the same socket, until the client
+	 * goes idle for longer than the keep-alive timeout or reaches the maximum
+	 * number of requests per connection. Requests the client pipelines are
+	 * read together and may be dispatched concurrently, but their responses
+	 * are always written in the order the requests arrived.
+	 * <p>
+	 * The handler is dispatched holding one of the server's processing slots
+	 * and gives it back whenever no request is being served. An idle
+	 * connection keeps its worker only while no other work is waiting for a
+	 * thread; otherwise it is parked with the {@link KeepAliveParker} and
+	 * this method returns, to be run again once the next request arrives.
 	 */
 	public void run() {
-		// Get the start time
-		long start = System.currentTimeMillis();
+		if (this.reader == null && !this.open()) {
+			this.server.decrementNumProcessingRequests();
+			this.close();
+			return;
+		}
 
-		InputStream inStream = null;
-		OutputStream outStream = null;
+		while (true) {
+			boolean ready;
+			try {
+				ready = this.reader.hasBuffered();
+			} catch (IOException e) {
+				ready = false;
+			}
+			if (!ready) {
+				// Nothing is being served while the connection waits
+				this.server.decrementNumProcessingRequests();
+				if (!this.awaitNextRequest()) {
+					return;
+				}
+			}
 
+			if (!this.serveRequests()) {
+				this.server.decrementNumProcessingRequests();
+				this.closeConnection();
+				return;
+			}
+			this.idleSince = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Gets the streams of the socket and sets up the reader for them.
+	 *
+	 * @return false if the socket cannot be used
+	 */
+	private boolean open() {
 		try {
-			inStream = this.socket.getInputStream();
-			outStream = this.socket.getOutputStream();
+			this.outStream = this.socket.getOutputStream();
+			this.reader = new HttpRequestReader(this.socket.getInputStream());
 		} catch (Exception e) {
 			// Cannot do anything if we have exception reading input or output
 			// stream
@@ -81,117 +166,361 @@ public class ConnectionHandler implements Runnable {
 
 			// Increment number of connections by 1
 			server.incrementConnections(1);
-			// Get the end time
-			long end = System.currentTimeMillis();
-			this.server.incrementServiceTime(end - start);
-			return;
+			return false;
 		}
 
-		// At this point we have the input and output stream of the socket
-		// Now lets create a HttpRequest object
-		HttpRequest request = null;
-		HttpResponse response = null;
+		ServerConfig config = this.server.getConfig();
+		this.reader.setBodyLimits(config.getMaxChunkSize(), config.getMaxBodySize());
+		this.reader.setHeaderLimits(config.getMaxRequestLine(), config.getMaxHeaderCount(),
+				config.getMaxHeaderSize());
 		try {
-			request = HttpRequest.read(inStream);
-		} catch (ProtocolException pe) {
-			// We have some sort of protocol exception. Get its status code and
-			// create response
-			// We know only two kind of exception is possible inside
-			// fromInputStream
-			// Protocol.BAD_REQUEST_CODE and Protocol.NOT_SUPPORTED_CODE
-			int status = pe.getStatus();
-			if (status == Protocol.BAD_REQUEST_CODE) {
-				response = HttpResponseFactory.create400BadRequest(Protocol.CLOSE);
-			}
-			// TODO: Handle version not supported code as well
-		} catch (Exception e) {
-			e.printStackTrace();
-			// For any other error, we will create bad request response as well
-			response = HttpResponseFactory.create400BadRequest(Protocol.CLOSE);
+			this.reader.setTimeouts(this.socket, config.getKeepAliveTimeout(), config.getHeaderTimeout(),
+					config.getRequestTimeout());
+		} catch (IOException e) {
+			// The socket is closed, so the first read will fail as well
 		}
+		return true;
+	}
+
+	/**
+	 * Waits for the next request without holding a processing slot. The wait
+	 * is cut into short slices so the worker can be given up as soon as
+	 * other work queues up behind it.
+	 *
+	 * @return true once a request has arrived and a processing slot has been
+	 *         taken for it, false if the connection was parked or closed
+	 */
+	private boolean awaitNextRequest() {
+		int keepAliveTimeout = this.server.getConfig().getKeepAliveTimeout();
+		while (true) {
+			boolean ready;
+			try {
+				ready = this.reader.hasBuffered();
+			} catch (IOException e) {
+				this.close();
+				return false;
+			}
+			if (ready) {
+				if (this.server.tryIncrementNumProcessingRequests()) {
+					this.readyAt = System.nanoTime();
+					return true;
+				}
+				// Other connections are ahead of this one, so it queues
+				// behind them
+				this.server.getKeepAliveParker().park(this);
+				return false;
+			}
+			if (this.server.hasWaitingWork()) {
+				this.server.getKeepAliveParker().park(this);
+				return false;
+			}
 
-		if (response != null) {
-			// Means there was an error, now write the response object to the
-			// socket
+			long remaining = keepAliveTimeout - (System.nanoTime() - this.idleSince) / 1000000;
+			if (remaining <= 0) {
+				// The client stayed idle past the keep-alive timeout
+				this.close();
+				return false;
+			}
 			try {
-				response.write(outStream);
+				if (!this.reader.awaitRequest((int) Math.min(remaining, IDLE_SLICE_MILLIS))) {
+					// The client closed the connection
+					this.close();
+					return false;
+				}
+			} catch (SocketTimeoutException e) {
+				// Still idle, check again
+			} catch (IOException e) {
+				// The client reset the connection
+				this.close();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Reads the requests that have arrived and answers them.
+	 *
+	 * @return whether the connection stays open for another request
+	 */
+	private boolean serveRequests() {
+		HttpRequestReader reader = this.reader;
+		boolean keepAlive = true;
+
+		// Read every request the client has pipelined behind this one,
+		// start them all, then answer them strictly in order. The first
+		// request has been waiting since the connection was dispatched, and
+		// runs on the processing slot the connection holds
+		List<PipelinedRequest> pipeline = readPipeline(reader, this.outStream);
+		pipeline.get(0).readyAt = this.readyAt;
+		for (int i = 0; i < pipeline.size(); i++) {
+			pipeline.get(i).start(i == 0);
+		}
+
+		int answered = 0;
+		for (PipelinedRequest pipelined : pipeline) {
+			answered++;
+			HttpResponse response = pipelined.awaitResponse();
+			this.requestsServed++;
+			RequestLimit broken = reader.getBrokenLimit();
+			if (pipelined.request != null && broken != null) {
+				// The body broke a limit while the servlet was reading it,
+				// so whatever the servlet made of it is not sent
+				this.server.recordLimit(broken);
+				response = RequestDispatcher.createErrorResponse(new ProtocolException(broken));
+				keepAlive = false;
+			} else if (pipelined.expectsContinue && reader.isAwaitingContinue()) {
+				// The body was never asked for, and the client may or may
+				// not send it anyway, so the next request cannot be found.
+				// Decided before any keep-alive headers are added, so the
+				// response does not offer to keep the connection open
+				response.put(Protocol.CONNECTION, Protocol.CLOSE);
+				keepAlive = false;
+			} else {
+				keepAlive = this.server.getDispatcher().applyConnectionHeader(pipelined.request, response,
+						this.requestsServed);
+			}
+
+			try {
+				// Write response
+				response.write(this.outStream);
 				// System.out.println(response);
 			} catch (Exception e) {
 				// We will ignore this exception
 				e.printStackTrace();
+				keepAlive = false;
 			}
 
 			// Increment number of connections by 1
 			server.incrementConnections(1);
 			// Get the end time
 			long end = System.currentTimeMillis();
-			this.server.incrementServiceTime(end - start);
-			return;
+			this.server.incrementServiceTime(end - pipelined.start);
+			this.server.recordRequestLatency(System.nanoTime() - pipelined.readyAt);
+			pipelined.releaseSlot();
+			if (pipelined.request != null) {
+				// The response is out, so the request can be reused
+				reader.recycle(pipelined.request);
+			}
+
+			if (!keepAlive) {
+				// Anything pipelined after a closing response is dropped;
+				// the client has to send it again on a new connection
+				break;
+			}
+		}
+		for (PipelinedRequest dropped : pipeline.subList(answered, pipeline.size())) {
+			dropped.drop();
 		}
 
-		// We reached here means no error so far, so lets process further
-		try {
-			// Fill in the code to create a response for version mismatch.
-			// You may want to use constants such as Protocol.VERSION,
-			// Protocol.NOT_SUPPORTED_CODE, and more.
-			// You can check if the version matches as follows
-			if (!request.getVersion().equalsIgnoreCase(Protocol.VERSION)) {
-				// Here you checked that the "Protocol.VERSION" string is not
-				// equal to the
-				// "request.version" string ignoring the case of the letters in
-				// both strings
-			} else {
+		if (keepAlive) {
+			try {
+				// The next request starts after the end of this body
+				keepAlive = reader.discardBody(MAX_DISCARDED_BODY);
+			} catch (IOException e) {
+				if (reader.getBrokenLimit() != null) {
+					this.server.recordLimit(reader.getBrokenLimit());
+				}
+				keepAlive = false;
+			}
+		}
+		return keepAlive;
+	}
+
+	/**
+	 * Whether bytes of the next request can be read without blocking.
+	 *
+	 * @return true if the client has sent its next request
+	 * @throws IOException
+	 *             if the connection is broken
+	 */
+	boolean hasBuffered() throws IOException {
+		return this.reader != null && this.reader.hasBuffered();
+	}
+
+	/**
+	 * Whether the connection has been idle for longer than the keep-alive
+	 * timeout.
+	 *
+	 * @param now
+	 *            The current {@link System#nanoTime()}.
+	 * @return true if it should be closed
+	 */
+	boolean isIdleExpired(long now) {
+		return now - this.idleSince > this.server.getConfig().getKeepAliveTimeout() * 1000000L;
+	}
 
-				if (request.getUri().contains("favicon") || request.getUri().equals("/")) {
-					response = HttpResponseFactory.create400BadRequest(Protocol.CLOSE);
-				} else {
-
-					AbstractPlugin plugin = getPluginFromUri(request.getUri());
-					if (plugin != null) {
-						response = plugin.handle(request);
-					} else {
-						response = HttpResponseFactory.create400BadRequest(Protocol.CLOSE);
-					}
-					System.out.println(request.getMethod() + " request to " + request.getUri() + " from "
-							+ this.socket.getInetAddress());
-					this.server.addToAuditTrail(request);
+	/**
+	 * Closes an idle connection and gives its client's connection back to
+	 * the rate limiter.
+	 */
+	void close() {
+		closeSocket();
+		this.server.getRateLimiter().release(this.inetAddress);
+	}
+
+	/**
+	 * We are all done so close the socket. Closing with part of a body still
+	 * unread would reset the connection and could lose the last response, so
+	 * those are drained first.
+	 */
+	private void closeConnection() {
+		if (this.reader.hasUnreadBody()) {
+			this.server.getLingeringCloser().close(this.socket);
+			this.server.getRateLimiter().release(this.inetAddress);
+		} else {
+			this.close();
+		}
+	}
+
+	/**
+	 * Reads the next request plus any further requests that have already
+	 * arrived behind it, up to the configured pipeline depth. A request with
+	 * <tt>Expect: 100-continue</tt> is routed before its body is asked for, so
+	 * a client whose upload would be refused is answered without sending it.
+	 */
+	private List<PipelinedRequest> readPipeline(HttpRequestReader reader, OutputStream outStream) {
+		ServerConfig config = this.server.getConfig();
+		List<PipelinedRequest> pipeline = new ArrayList<PipelinedRequest>();
+		boolean concurrent = config.isPipelineConcurrent();
+
+		while (true) {
+			// At this point we have the input and output stream of the socket
+			// Now lets create a HttpRequest object
+			PipelinedRequest pipelined = new PipelinedRequest();
+			pipeline.add(pipelined);
+			try {
+				pipelined.request = reader.readRequest();
+			} catch (Exception e) {
+				// Means there was an error; we cannot tell where the next
+				// request would start, so this response closes the connection
+				this.server.recordRejectedRequest(e);
+				pipelined.response = RequestDispatcher.createErrorResponse(e);
+				break;
+			}
+			if (RequestDispatcher.hasExpectation(pipelined.request)) {
+				// A servlet asks for the body by reading it, which writes to
+				// the client, so it must not run out of order. A refused
+				// request is answered without ever asking
+				pipelined.expectsContinue = true;
+				reader.continueOnRead(outStream);
+				pipelined.response = this.server.getDispatcher().checkExpectation(pipelined.request);
+				concurrent = false;
+			}
+			concurrent = concurrent && RequestDispatcher.isSafeMethod(pipelined.request.getMethod());
+
+			try {
+				// Whatever follows a body can only be read once the servlet has
+				// read the body
+				if (pipeline.size() >= config.getPipelineDepth() || pipelined.request.getContentLength() != 0
+						|| !reader.hasBuffered()) {
+					break;
 				}
+			} catch (IOException e) {
+				break;
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
 
-		// TODO: So far response could be null for protocol version mismatch.
-		// So this is a temporary patch for that problem and should be removed
-		// after a response object is created for protocol version mismatch.
-		if (response == null) {
-			response = HttpResponseFactory.create400BadRequest(Protocol.CLOSE);
+		// Requests that change state must run one after another, in order
+		for (PipelinedRequest pipelined : pipeline) {
+			pipelined.concurrent = concurrent && pipeline.size() > 1;
 		}
+		return pipeline;
+	}
 
+	private void closeSocket() {
 		try {
-			// Write response and we are all done so close the socket
-			response.write(outStream);
-			// System.out.println(response);
-			socket.close();
-		} catch (Exception e) {
+			this.socket.close();
+		} catch (IOException e) {
 			// We will ignore this exception
 			e.printStackTrace();
 		}
-
-		// Increment number of connections by 1
-		server.incrementConnections(1);
-		// Get the end time
-		long end = System.currentTimeMillis();
-		this.server.incrementServiceTime(end - start);
 	}
 
-	private AbstractPlugin getPluginFromUri(String uri) {
-		final String pluginString;
-		if (uri.contains("v1/")) {
-			pluginString = uri.substring(uri.indexOf("v1/") + 3, uri.indexOf("/", 4));
-		} else {
-			pluginString = uri.substring(1, uri.indexOf("/", 1));
+	/**
+	 * One request read from the connection, and the response it is getting.
+	 * Pipelined requests may be dispatched on other worker threads; the
+	 * connection thread runs any that no worker has picked up yet itself, so
+	 * waiting for them can never starve the worker pool. Every request in
+	 * flight holds one processing slot: a request dispatched alongside the
+	 * first takes a slot of its own while the limit allows, and otherwise
+	 * waits for the connection's slot and runs after the one before it.
+	 */
+	private class PipelinedRequest {
+		private HttpRequest request;
+		private HttpResponse response;
+		private boolean concurrent;
+		private boolean expectsContinue;
+		private long start;
+		private long readyAt;
+		private boolean ownSlot;
+		private FutureTask<HttpResponse> task;
+
+		private void start(boolean first) {
+			this.start = System.currentTimeMillis();
+			if (this.response != null) {
+				return;
+			}
+			if (this.concurrent && !first) {
+				this.ownSlot = ConnectionHandler.this.server.tryIncrementNumProcessingRequests();
+				this.concurrent = this.ownSlot;
+			}
+			this.task = new FutureTask<HttpResponse>(new Callable<HttpResponse>() {
+				@Override
+				public HttpResponse call() {
+					// We reached here means no error so far, so lets process
+					// further
+					return ConnectionHandler.this.server.getDispatcher().dispatch(PipelinedRequest.this.request,
+							ConnectionHandler.this.socket.getInetAddress());
+				}
+			});
+			if (this.concurrent) {
+				if (this.readyAt == 0) {
+					this.readyAt = System.nanoTime();
+				}
+				ConnectionHandler.this.server.getWorkers().execute(this.task);
+			}
+		}
+
+		private HttpResponse awaitResponse() {
+			// A request run in turn is ready once the one before it is out
+			if (this.readyAt == 0) {
+				this.readyAt = System.nanoTime();
+			}
+			if (this.response != null) {
+				return this.response;
+			}
+			// Does nothing if a worker already ran or is running the task
+			this.task.run();
+			try {
+				this.response = this.task.get();
+			} catch (InterruptedException | ExecutionException e) {
+				e.printStackTrace();
+				this.response = HttpResponseFactory.create500InternalServerError(Protocol.CLOSE);
+			}
+			return this.response;
+		}
+
+		/**
+		 * Gives back the request's own processing slot once its response is
+		 * out.
+		 */
+		private void releaseSlot() {
+			if (this.ownSlot) {
+				this.ownSlot = false;
+				ConnectionHandler.this.server.decrementNumProcessingRequests();
+			}
+		}
+
+		/**
+		 * Gives up on a request pipelined after a closing response. A dispatch
+		 * no worker has started is cancelled; one already running finishes on
+		 * its worker, and its response is never sent.
+		 */
+		private void drop() {
+			if (this.task != null) {
+				this.task.cancel(false);
+			}
+			this.releaseSlot();
 		}
-		return this.server.getPlugin(pluginString);
 	}
 }
@@ -0,0 +1,149 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A queue that takes turns between clients: every client with something
+ * waiting gets one item dequeued before any client gets a second. Each client
+ * has its own deque, and the clients with waiting items sit in a round-robin
+ * ring, so offering and polling take constant time however long the backlog
+ * grows. Not thread-safe; the {@link Server} guards it with its dispatch lock.
+ *
+ * @param <T>
+ *            The type of the queued items.
+ */
+public class FairQueue<T> {
+	private Map<String, ClientQueue<T>> clients;
+	private Deque<ClientQueue<T>> ring;
+	private int size;
+
+	public FairQueue() {
+		this.clients = new HashMap<String, ClientQueue<T>>();
+		this.ring = new ArrayDeque<ClientQueue<T>>();
+		this.size = 0;
+	}
+
+	/**
+	 * Adds an item behind the client's other waiting items.
+	 *
+	 * @param client
+	 *            The client the item belongs to.
+	 * @param item
+	 *            The item to queue.
+	 */
+	public void offer(String client, T item) {
+		ClientQueue<T> queue = this.clients.get(client);
+		if (queue == null) {
+			queue = new ClientQueue<T>(client);
+			this.clients.put(client, queue);
+			this.ring.addLast(queue);
+		}
+		queue.items.addLast(item);
+		this.size++;
+	}
+
+	/**
+	 * Removes the oldest item of the client whose turn it is, and moves that
+	 * client to the back of the ring.
+	 *
+	 * @return the item, or null if nothing is waiting
+	 */
+	public T poll() {
+		ClientQueue<T> queue;
+		while ((queue = this.ring.pollFirst()) != null) {
+			// Clients dropped by removeAll are left in the ring and skipped here
+			if (queue.removed) {
+				continue;
+			}
+			T item = queue.items.pollFirst();
+			if (queue.items.isEmpty()) {
+				this.clients.remove(queue.client);
+			} else {
+				this.ring.addLast(queue);
+			}
+			this.size--;
+			return item;
+		}
+		return null;
+	}
+
+	/**
+	 * Removes every item the client has waiting.
+	 *
+	 * @param client
+	 *            The client whose items to drop.
+	 * @return the removed items, oldest first
+	 */
+	public List<T> removeAll(String client) {
+		ClientQueue<T> queue = this.clients.remove(client);
+		if (queue == null) {
+			return Collections.emptyList();
+		}
+		queue.removed = true;
+		this.size -= queue.items.size();
+		return new ArrayList<T>(queue.items);
+	}
+
+	/**
+	 * @return the number of waiting items
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return whether nothing is waiting
+	 */
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * @return the number of clients with items waiting
+	 */
+	public int getClientCount() {
+		return this.clients.size();
+	}
+
+	private static class ClientQueue<T> {
+		private String client;
+		private Deque<T> items;
+		private boolean removed;
+
+		public ClientQueue(String client) {
+			this.client = client;
+			this.items = new ArrayDeque<T>();
+			this.removed = false;
+		}
+	}
+
+	/**
+	 * Measures the cost of a poll at growing backlogs, spread over 100
+	 * clients. The time per poll should stay flat as the backlog grows.
+	 */
+	public static void main(String[] args) {
+		int[] backlogs = { 1000, 10000, 100000, 1000000 };
+		for (int round = 0; round < 2; round++) {
+			// The first round warms up the JIT
+			for (int backlog : backlogs) {
+				FairQueue<Integer> queue = new FairQueue<Integer>();
+				for (int i = 0; i < backlog; i++) {
+					queue.offer("/10.0.0." + (i % 100), i);
+				}
+				long start = System.nanoTime();
+				while (queue.poll() != null) {
+				}
+				long elapsed = System.nanoTime() - start;
+				if (round > 0) {
+					System.out.println("Backlog " + backlog + ":\t" + (elapsed / backlog) + " ns per poll");
+				}
+			}
+		}
+	}
+}
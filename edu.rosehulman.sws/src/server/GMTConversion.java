@@ -6,31 +6,63 @@ import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.Locale;
 import java.util.TimeZone;
 
+/**
+ * Converts dates to and from the format HTTP uses in header fields such as
+ * <tt>Last-Modified</tt> and <tt>If-Modified-Since</tt>. Formats are costly to
+ * create and not safe to share, so each thread keeps its own.
+ */
 public class GMTConversion {
-	public static final String GMT_FORMAT = "EEE, d MMM yyyy HH:mm:ss z";
-	
-	public static String toGMTString(Date date) {
+	public static final String GMT_FORMAT = "EEE, dd MMM yyyy HH:mm:ss z";
+
+	/**
+	 * The obsolete formats clients may still send, RFC 850 and asctime.
+	 */
+	private static final String[] OBSOLETE_FORMATS = { "EEEE, dd-MMM-yy HH:mm:ss z", "EEE MMM d HH:mm:ss yyyy" };
+
+	private static final ThreadLocal<DateFormat[]> FORMATS = new ThreadLocal<DateFormat[]>() {
+		@Override
+		protected DateFormat[] initialValue() {
+			DateFormat[] formats = new DateFormat[OBSOLETE_FORMATS.length + 1];
+			formats[0] = createFormat(GMT_FORMAT);
+			for (int i = 0; i < OBSOLETE_FORMATS.length; i++) {
+				formats[i + 1] = createFormat(OBSOLETE_FORMATS[i]);
+			}
+			return formats;
+		}
+	};
+
+	private static DateFormat createFormat(String pattern) {
 		Calendar calendar = new GregorianCalendar();
 		calendar.setTimeZone(TimeZone.getTimeZone("GMT"));
 
-		DateFormat gmtFormat = new SimpleDateFormat(GMT_FORMAT);
+		// Day and month names are English whatever the server's locale
+		DateFormat gmtFormat = new SimpleDateFormat(pattern, Locale.US);
 		gmtFormat.setCalendar(calendar);
-		
-		return gmtFormat.format(date);
+		return gmtFormat;
 	}
-	
-	public static Date fromGMTString(String dateString) throws ParseException {
-		Calendar calendar = new GregorianCalendar();
-		calendar.setTimeZone(TimeZone.getTimeZone("GMT"));
 
-		DateFormat gmtFormat = new SimpleDateFormat(GMT_FORMAT);
-		gmtFormat.setCalendar(calendar);
-	
-		return gmtFormat.parse(dateString);
+	public static String toGMTString(Date date) {
+		return FORMATS.get()[0].format(date);
+	}
+
+	public static Date fromGMTString(String dateString) throws ParseException {
+		DateFormat[] formats = FORMATS.get();
+		ParseException failure = null;
+		for (DateFormat format : formats) {
+			try {
+				return format.parse(dateString);
+			} catch (ParseException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		throw failure;
 	}
-	
+
 	public static void main(String[] args) throws Exception {
 		Date date = new Date();
 		System.out.println("From Any Timezone Date:\t" + date);
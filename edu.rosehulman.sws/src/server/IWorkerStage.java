@@ -0,0 +1,37 @@
+package server;
+
+/**
+ * Runs the work for accepted connections off the accepting thread. An
+ * implementation decides how many tasks may run at once; a task it cannot
+ * take is refused so the caller can answer it with a 503.
+ */
+public interface IWorkerStage {
+	/**
+	 * Runs a task on a worker thread.
+	 * 
+	 * @param task
+	 *            The task to run.
+	 * @return false if the stage is full, in which case the task will not run
+	 */
+	public boolean execute(Runnable task);
+
+	/**
+	 * Lets running tasks finish but accepts no new ones.
+	 */
+	public void shutdown();
+
+	/**
+	 * @return the number of tasks currently running
+	 */
+	public int getActiveCount();
+
+	/**
+	 * @return the number of tasks waiting for a thread
+	 */
+	public int getQueueSize();
+
+	/**
+	 * @return the number of tasks refused because the stage was full
+	 */
+	public long getRejectedCount();
+}
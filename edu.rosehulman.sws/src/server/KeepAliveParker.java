@@ -0,0 +1,87 @@
+package server;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Holds idle keep-alive connections without tying up a worker thread. A
+ * {@link ConnectionHandler} that goes idle while other work is waiting for a
+ * thread parks its connection here and returns. This thread checks the parked
+ * connections every few milliseconds, hands a connection whose next request
+ * has started to arrive back to the {@link Server} to be queued like a new
+ * one, and closes a connection once it has been idle past the keep-alive
+ * timeout.
+ */
+public class KeepAliveParker implements Runnable {
+	private ConcurrentLinkedQueue<ConnectionHandler> parked;
+	private Server server;
+	private int pollMillis;
+
+	/**
+	 * @param server
+	 *            The server that queues connections once they are readable.
+	 * @param pollMillis
+	 *            How often the parked connections are checked.
+	 */
+	public KeepAliveParker(Server server, int pollMillis) {
+		this.parked = new ConcurrentLinkedQueue<ConnectionHandler>();
+		this.server = server;
+		this.pollMillis = pollMillis;
+	}
+
+	/**
+	 * Parks an idle connection until its next request arrives.
+	 *
+	 * @param handler
+	 *            The handler of a connection with no request being served.
+	 */
+	public void park(ConnectionHandler handler) {
+		this.parked.add(handler);
+	}
+
+	/**
+	 * @return the number of connections parked
+	 */
+	public int getParkedCount() {
+		return this.parked.size();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Thread.sleep(this.pollMillis);
+				long now = System.nanoTime();
+				Iterator<ConnectionHandler> iterator = this.parked.iterator();
+				while (iterator.hasNext()) {
+					ConnectionHandler handler = iterator.next();
+					boolean readable;
+					try {
+						readable = handler.hasBuffered();
+					} catch (IOException e) {
+						// The client reset the connection while it was parked
+						iterator.remove();
+						handler.close();
+						continue;
+					}
+					if (readable) {
+						iterator.remove();
+						this.server.addWaitingRequest(handler);
+					} else if (handler.isIdleExpired(now)) {
+						iterator.remove();
+						handler.close();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// The server was stopped
+		}
+
+		// Nothing will serve the parked connections any more
+		ConnectionHandler handler;
+		while ((handler = this.parked.poll()) != null) {
+			handler.close();
+		}
+	}
+}
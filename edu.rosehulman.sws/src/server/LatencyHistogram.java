@@ -0,0 +1,92 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations, used to report percentiles such as the
+ * p50 and p99 of how long connections wait before a worker picks them up.
+ * Durations are counted in microsecond buckets that grow exponentially, four
+ * buckets per power of two, so a percentile is accurate to within 25%.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKETS = 4;
+	private static final int BUCKETS = 160;
+
+	private AtomicLongArray counts;
+
+	public LatencyHistogram() {
+		this.counts = new AtomicLongArray(BUCKETS);
+	}
+
+	/**
+	 * Records one duration.
+	 *
+	 * @param nanos
+	 *            The duration in nanoseconds.
+	 */
+	public void record(long nanos) {
+		this.counts.incrementAndGet(bucketOf(Math.max(0, nanos / 1000)));
+	}
+
+	/**
+	 * @return the number of durations recorded
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += this.counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the duration that the given fraction of recorded durations did
+	 * not exceed.
+	 *
+	 * @param fraction
+	 *            The percentile as a fraction, e.g. 0.99 for p99.
+	 * @return the duration in microseconds, or 0 if nothing was recorded
+	 */
+	public long getPercentile(double fraction) {
+		long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(fraction * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += this.counts.get(i);
+			if (seen >= target) {
+				return lowerBoundOf(i + 1) - 1;
+			}
+		}
+		return lowerBoundOf(BUCKETS) - 1;
+	}
+
+	/**
+	 * Forgets every recorded duration.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			this.counts.set(i, 0);
+		}
+	}
+
+	private static int bucketOf(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) ((micros >> (exponent - 2)) & (SUB_BUCKETS - 1));
+		return Math.min(BUCKETS - 1, SUB_BUCKETS * (exponent - 1) + sub);
+	}
+
+	private static long lowerBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + 1;
+		int sub = bucket % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + sub) << (exponent - 2);
+	}
+}
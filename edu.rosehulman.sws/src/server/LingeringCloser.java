@@ -0,0 +1,82 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Closes connections that were answered without reading their request, such
+ * as shed connections. Closing a socket with unread bytes makes TCP reset the
+ * connection, and the reset destroys the response before the client reads it.
+ * So the response is followed by a half-close, and this thread reads and
+ * discards whatever the client still sends until it closes its side or the
+ * linger time runs out. Sockets that do not fit in the queue are closed at
+ * once.
+ */
+public class LingeringCloser implements Runnable {
+	private BlockingQueue<Socket> sockets;
+	private int lingerMillis;
+
+	/**
+	 * @param capacity
+	 *            The most sockets waiting to be closed.
+	 * @param lingerMillis
+	 *            The longest time spent draining one socket.
+	 */
+	public LingeringCloser(int capacity, int lingerMillis) {
+		this.sockets = new ArrayBlockingQueue<Socket>(capacity);
+		this.lingerMillis = lingerMillis;
+	}
+
+	/**
+	 * Half-closes the socket and queues it to be drained and closed.
+	 *
+	 * @param socket
+	 *            A socket whose response has been written.
+	 */
+	public void close(Socket socket) {
+		try {
+			socket.shutdownOutput();
+		} catch (IOException e) {
+			closeQuietly(socket);
+			return;
+		}
+		if (!this.sockets.offer(socket)) {
+			closeQuietly(socket);
+		}
+	}
+
+	@Override
+	public void run() {
+		byte[] buffer = new byte[1024];
+		while (true) {
+			Socket socket;
+			try {
+				socket = this.sockets.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			try {
+				socket.setSoTimeout(this.lingerMillis);
+				InputStream in = socket.getInputStream();
+				long deadline = System.currentTimeMillis() + this.lingerMillis;
+				while (in.read(buffer) != -1 && System.currentTimeMillis() < deadline) {
+				}
+			} catch (IOException e) {
+				// Timed out or reset, either way we are done with it
+			}
+			closeQuietly(socket);
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,1000 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+import protocol.HttpRequest;
+import protocol.HttpRequestParser;
+import protocol.HttpResponse;
+import protocol.HttpResponseFactory;
+import protocol.Protocol;
+import protocol.ProtocolException;
+import protocol.RequestLimit;
+
+/**
+ * A non-blocking transport for the {@link Server}. One thread accepts
+ * connections from a {@link ServerSocketChannel} and hands them round-robin to
+ * a fixed number of {@link Selector} loops. A loop feeds the bytes it reads to
+ * an {@link HttpRequestParser} until a whole request has arrived, queues the
+ * request in the server's admission queue for a worker thread to dispatch,
+ * and writes the response back once the worker is done. A request the queue
+ * or the workers cannot take is shed with the same 503 as a blocking
+ * connection. Persistent connections then go back to waiting for their next request, and
+ * pipelined requests are handled together and answered in order. No thread is
+ * ever parked on a slow or idle client, except one writing a streamed body,
+ * which waits once it is a bounded number of bytes ahead of the client;
+ * those bodies are written from threads of their own, so the workers are
+ * never held up by a client.
+ */
+public class NioTransport implements Runnable {
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	private static final long IDLE_CHECK_INTERVAL = 1000;
+
+	/**
+	 * The size of the buffers a streamed body is handed to the selector loop
+	 * in, enough for a chunk and the head.
+	 */
+	private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * The most bytes of a streamed body waiting to be written before the
+	 * worker making it has to wait for the client.
+	 */
+	private static final int MAX_STREAM_QUEUED = 256 * 1024;
+	private static final byte[] CONTINUE = (Protocol.VERSION + Protocol.SPACE + Protocol.CONTINUE_CODE
+			+ Protocol.SPACE + Protocol.CONTINUE_TEXT + Protocol.CRLF + Protocol.CRLF)
+					.getBytes(StandardCharsets.US_ASCII);
+
+	private Server server;
+	private int port;
+	private SelectorLoop[] loops;
+	private IWorkerStage streamWriters;
+
+	private ServerSocketChannel serverChannel;
+	private Selector acceptSelector;
+	private volatile boolean stop;
+
+	public NioTransport(Server server, int port, int ioThreads) {
+		this.server = server;
+		this.port = port;
+		this.loops = new SelectorLoop[ioThreads];
+		this.streamWriters = new ThreadPerConnectionWorkers("Stream", server.getConfig().getMaxConnections());
+		this.stop = false;
+	}
+
+	/**
+	 * Opens the listening channel, starts the selector loops and then accepts
+	 * connections on the calling thread until {@link #shutdown()} is called.
+	 */
+	@Override
+	public void run() {
+		try {
+			this.acceptSelector = Selector.open();
+			this.serverChannel = ServerSocketChannel.open();
+			this.serverChannel.socket().bind(new InetSocketAddress(this.port));
+			this.serverChannel.configureBlocking(false);
+			this.serverChannel.register(this.acceptSelector, SelectionKey.OP_ACCEPT);
+
+			for (int i = 0; i < this.loops.length; i++) {
+				this.loops[i] = new SelectorLoop();
+				new Thread(this.loops[i], "NioLoop-" + i).start();
+			}
+
+			int next = 0;
+			while (!this.stop) {
+				this.acceptSelector.select();
+				Iterator<SelectionKey> keys = this.acceptSelector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					keys.next();
+					keys.remove();
+
+					SocketChannel channel;
+					while ((channel = this.serverChannel.accept()) != null) {
+						if (!this.server.admit(channel.socket().getInetAddress().toString())) {
+							channel.close();
+							continue;
+						}
+						channel.configureBlocking(false);
+						this.loops[next].register(channel);
+						next = (next + 1) % this.loops.length;
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Stops accepting connections and stops all selector loops.
+	 */
+	public void shutdown() {
+		this.stop = true;
+		if (this.acceptSelector != null) {
+			this.acceptSelector.wakeup();
+		}
+	}
+
+	/**
+	 * @return whether the listening channel has been closed
+	 */
+	public boolean isClosed() {
+		return this.serverChannel == null || !this.serverChannel.isOpen();
+	}
+
+	private void close() {
+		this.streamWriters.shutdown();
+		for (SelectorLoop loop : this.loops) {
+			if (loop != null) {
+				loop.shutdown();
+			}
+		}
+		try {
+			if (this.acceptSelector != null) {
+				this.acceptSelector.close();
+			}
+			if (this.serverChannel != null) {
+				this.serverChannel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * One selector and the connections registered with it. Everything that
+	 * touches the selector runs on the loop's own thread; other threads hand
+	 * work to it through {@link #execute(Runnable)}.
+	 */
+	private class SelectorLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<Runnable> tasks;
+		private final ByteBuffer readBuffer;
+		private volatile boolean stopped;
+
+		public SelectorLoop() throws IOException {
+			this.selector = Selector.open();
+			this.tasks = new ConcurrentLinkedQueue<Runnable>();
+			this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+			this.stopped = false;
+		}
+
+		public void register(final SocketChannel channel) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+						key.attach(new NioConnection(SelectorLoop.this, channel, key));
+					} catch (IOException e) {
+						e.printStackTrace();
+						closeQuietly(channel);
+					}
+				}
+			});
+		}
+
+		public void execute(Runnable task) {
+			this.tasks.add(task);
+			this.selector.wakeup();
+		}
+
+		public void shutdown() {
+			this.stopped = true;
+			this.selector.wakeup();
+		}
+
+		public Server server() {
+			return NioTransport.this.server;
+		}
+
+		/**
+		 * Closes persistent connections that have waited too long for their
+		 * next request, and refuses requests that are taking too long to
+		 * arrive.
+		 */
+		private void closeIdleConnections() {
+			long now = System.currentTimeMillis();
+			long timeout = NioTransport.this.server.getConfig().getKeepAliveTimeout();
+			for (SelectionKey key : this.selector.keys()) {
+				NioConnection connection = (NioConnection) key.attachment();
+				if (connection != null && connection.isIdle(now, timeout)) {
+					connection.close();
+				} else if (connection != null) {
+					connection.checkDeadlines(now);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				long lastIdleCheck = System.currentTimeMillis();
+				while (!this.stopped) {
+					this.selector.select(IDLE_CHECK_INTERVAL);
+
+					Runnable task;
+					while ((task = this.tasks.poll()) != null) {
+						task.run();
+					}
+
+					Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						NioConnection connection = (NioConnection) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable()) {
+								connection.onReadable(this.readBuffer);
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.onWritable();
+							}
+						} catch (IOException | RuntimeException e) {
+							// Only this connection is lost, not the whole loop
+							connection.close();
+						}
+					}
+
+					if (System.currentTimeMillis() - lastIdleCheck >= IDLE_CHECK_INTERVAL) {
+						closeIdleConnections();
+						lastIdleCheck = System.currentTimeMillis();
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				for (SelectionKey key : this.selector.keys()) {
+					closeQuietly(key.channel());
+				}
+				try {
+					this.selector.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The state of a single connection: the bytes read but not yet parsed, and
+	 * the requests in flight, oldest first. Pipelined requests may be handled
+	 * by several workers at once, but a response is only written once every
+	 * response before it has been written.
+	 */
+	private class NioConnection {
+		private final SelectorLoop loop;
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private final InetAddress address;
+
+		private byte[] data;
+		private int length;
+		private HttpRequestParser parser;
+		private HttpRequest parsed;
+		private Deque<PendingResponse> pending;
+		private boolean closing;
+		private int requestsServed;
+		private long lastActive;
+		private long requestStartedAt;
+		private boolean expectationChecked;
+
+		public NioConnection(SelectorLoop loop, SocketChannel channel, SelectionKey key) {
+			this.loop = loop;
+			this.channel = channel;
+			this.key = key;
+			this.address = channel.socket().getInetAddress();
+			this.data = new byte[Protocol.CHUNK_LENGTH];
+			this.length = 0;
+			ServerConfig config = loop.server().getConfig();
+			this.parser = new HttpRequestParser(config.getMaxHeaderSize());
+			this.parser.setHeaderLimits(config.getMaxRequestLine(), config.getMaxHeaderCount(),
+					config.getMaxHeaderSize());
+			// Bodies are collected on the selector thread, so they have a
+			// tighter limit than the blocking transport, which streams them
+			this.parser.setBodyLimits(config.getMaxChunkSize(),
+					Math.min(config.getMaxBodySize(), config.getMaxBufferedBodySize()));
+			this.parsed = null;
+			this.pending = new ArrayDeque<PendingResponse>();
+			this.closing = false;
+			this.requestsServed = 0;
+			this.lastActive = System.currentTimeMillis();
+		}
+
+		public void onReadable(ByteBuffer buffer) throws IOException {
+			buffer.clear();
+			int read = this.channel.read(buffer);
+			if (read < 0) {
+				close();
+				return;
+			}
+			this.lastActive = System.currentTimeMillis();
+			buffer.flip();
+			append(buffer);
+			processBuffered();
+			updateInterest();
+		}
+
+		public void onWritable() throws IOException {
+			PendingResponse head = this.pending.peekFirst();
+			while (true) {
+				if (head.bytes.hasRemaining()) {
+					this.channel.write(head.bytes);
+					if (head.bytes.hasRemaining()) {
+						return;
+					}
+				}
+				while (head.fileRemaining > 0) {
+					// The kernel copies straight from the file to the socket
+					long sent = head.file.transferTo(head.filePosition, head.fileRemaining, this.channel);
+					if (sent == 0) {
+						if (head.filePosition >= head.file.size()) {
+							throw new EOFException("File shrank while it was being sent");
+						}
+						// The socket buffer is full until the client reads more
+						return;
+					}
+					head.filePosition += sent;
+					head.fileRemaining -= sent;
+				}
+				if (!head.nextSegment() && !head.nextStreamBuffer()) {
+					break;
+				}
+			}
+			if (head.streaming && !head.streamEnded) {
+				// The worker has not written the rest of the body yet
+				head.bytes = null;
+				updateInterest();
+				return;
+			}
+			head.closeFile();
+			this.pending.removeFirst();
+			if (head.request != null) {
+				// The response is out, so the request can be reused
+				this.parser.recycle(head.request);
+			}
+
+			if (!head.interim) {
+				this.loop.server().incrementConnections(1);
+				this.loop.server().incrementServiceTime(System.currentTimeMillis() - head.start);
+			}
+			if (!head.keepAlive) {
+				// Anything pipelined after a closing response is dropped
+				close();
+				return;
+			}
+
+			// The next request may already be buffered
+			this.lastActive = System.currentTimeMillis();
+			processBuffered();
+			updateInterest();
+		}
+
+		/**
+		 * Whether the connection has waited for a request for longer than the
+		 * keep-alive timeout. Connections with requests in flight are never
+		 * idle.
+		 */
+		public boolean isIdle(long now, long timeout) {
+			return this.key.isValid() && this.pending.isEmpty() && now - this.lastActive > timeout;
+		}
+
+		/**
+		 * Refuses the request being read if the client has taken too long to
+		 * send its head, or all of it. Only checked while the connection is
+		 * waiting on nothing but the client, since time spent on earlier
+		 * responses is not the client's fault.
+		 */
+		public void checkDeadlines(long now) {
+			if (!this.key.isValid() || this.closing || this.requestStartedAt == 0 || !this.pending.isEmpty()) {
+				return;
+			}
+			ServerConfig config = this.loop.server().getConfig();
+			long elapsed = now - this.requestStartedAt;
+			RequestLimit broken = null;
+			if (config.getHeaderTimeout() > 0 && elapsed > config.getHeaderTimeout()
+					&& !this.parser.isHeadComplete()) {
+				broken = RequestLimit.HEADER_TIMEOUT;
+			} else if (config.getRequestTimeout() > 0 && elapsed > config.getRequestTimeout()) {
+				broken = RequestLimit.REQUEST_TIMEOUT;
+			}
+			if (broken == null) {
+				return;
+			}
+			this.loop.server().recordLimit(broken);
+			this.closing = true;
+			PendingResponse slot = addPending(false);
+			slot.complete(RequestDispatcher.createErrorResponse(new ProtocolException(broken)), false);
+			updateInterest();
+		}
+
+		/**
+		 * Queues every complete request in the buffer for a worker thread, up to
+		 * the pipeline depth, and keeps the bytes after them for later.
+		 * Requests that change state are only started once nothing else is in
+		 * flight.
+		 */
+		private void processBuffered() {
+			ServerConfig config = this.loop.server().getConfig();
+			while (!this.closing && this.pending.size() < config.getPipelineDepth()) {
+				if (this.parsed == null) {
+					ByteBuffer unparsed = ByteBuffer.wrap(this.data, 0, this.length);
+					boolean complete;
+					try {
+						complete = this.parser.parse(unparsed);
+					} catch (ProtocolException e) {
+						this.loop.server().recordRejectedRequest(e);
+						this.closing = true;
+						PendingResponse slot = addPending(false);
+						slot.complete(RequestDispatcher.createErrorResponse(e), false);
+						return;
+					}
+					// The parser keeps what it has consumed, so drop those bytes
+					System.arraycopy(this.data, unparsed.position(), this.data, 0, unparsed.remaining());
+					this.length = unparsed.remaining();
+					if (!complete) {
+						if (this.requestStartedAt == 0 && this.parser.isStarted()) {
+							this.requestStartedAt = System.currentTimeMillis();
+						}
+						if (this.parser.isHeadComplete() && !this.expectationChecked) {
+							this.expectationChecked = true;
+							answerExpectation(this.parser.getHead());
+						}
+						return;
+					}
+					this.requestStartedAt = 0;
+					this.expectationChecked = false;
+					this.parsed = this.parser.getRequest();
+					this.parser.reset();
+				}
+
+				boolean safe = RequestDispatcher.isSafeMethod(this.parsed.getMethod());
+				if (!this.pending.isEmpty()
+						&& !(safe && config.isPipelineConcurrent() && this.pending.peekLast().safe)) {
+					return;
+				}
+
+				HttpRequest request = this.parsed;
+				this.parsed = null;
+				PendingResponse slot = addPending(safe);
+				slot.request = request;
+				// Requests wait their turn in the same admission queue as
+				// blocking connections, and are shed the same way
+				this.loop.server().addWaitingWork(new WaitingRequest(this, request, slot));
+			}
+		}
+
+		/**
+		 * Tells a client holding back a body for <tt>Expect: 100-continue</tt>
+		 * to send it, or refuses the request before it does. The interim
+		 * response is queued like any other, so it goes out after the
+		 * responses to earlier requests.
+		 */
+		private void answerExpectation(HttpRequest head) {
+			if (!RequestDispatcher.hasExpectation(head)) {
+				return;
+			}
+			HttpResponse refusal = this.loop.server().getDispatcher().checkExpectation(head);
+			if (refusal != null) {
+				this.closing = true;
+				addPending(false).complete(refusal, false);
+				return;
+			}
+			PendingResponse interim = new PendingResponse(this, 0, false);
+			interim.interim = true;
+			interim.bytes = ByteBuffer.wrap(CONTINUE);
+			interim.keepAlive = true;
+			this.pending.addLast(interim);
+		}
+
+		private PendingResponse addPending(boolean safe) {
+			this.requestsServed++;
+			PendingResponse slot = new PendingResponse(this, this.requestsServed, safe);
+			this.pending.addLast(slot);
+			return slot;
+		}
+
+		/**
+		 * Reads while the pipeline has room, and writes while the oldest
+		 * response is ready.
+		 */
+		private void updateInterest() {
+			if (!this.key.isValid()) {
+				return;
+			}
+			int ops = 0;
+			PendingResponse head = this.pending.peekFirst();
+			if (head != null && head.bytes != null) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			if (!this.closing && this.pending.size() < this.loop.server().getConfig().getPipelineDepth()) {
+				ops |= SelectionKey.OP_READ;
+			}
+			this.key.interestOps(ops);
+		}
+
+		/**
+		 * Dispatches one request. Runs on a worker thread.
+		 */
+		private void process(HttpRequest request, final PendingResponse slot) {
+			final HttpResponse response = this.loop.server().getDispatcher().dispatch(request, this.address);
+			final boolean keepAlive = this.loop.server().getDispatcher().applyConnectionHeader(request, response,
+					slot.sequence);
+			if (response.isStreaming()) {
+				// Writing the body waits on the client, so it gets a thread of
+				// its own rather than holding up a worker
+				boolean accepted = NioTransport.this.streamWriters.execute(new Runnable() {
+					@Override
+					public void run() {
+						slot.complete(response, keepAlive);
+					}
+				});
+				if (!accepted) {
+					slot.complete(HttpResponseFactory.create503ServiceUnavailable(Protocol.CLOSE), false);
+				}
+				return;
+			}
+			slot.complete(response, keepAlive);
+		}
+
+		private void append(ByteBuffer buffer) {
+			int needed = this.length + buffer.remaining();
+			if (needed > this.data.length) {
+				this.data = Arrays.copyOf(this.data, Math.max(needed, this.data.length * 2));
+			}
+			buffer.get(this.data, this.length, buffer.remaining());
+			this.length = needed;
+		}
+
+		public void close() {
+			if (!this.channel.isOpen()) {
+				return;
+			}
+			this.key.cancel();
+			closeQuietly(this.channel);
+			for (PendingResponse response : this.pending) {
+				response.closeFile();
+				response.abandon();
+			}
+			this.loop.server().getRateLimiter().release(this.address.toString());
+		}
+	}
+
+	/**
+	 * A request read by a {@link NioConnection}, waiting in the server's
+	 * admission queue for a worker.
+	 */
+	private class WaitingRequest extends WaitingWork {
+		private final NioConnection connection;
+		private final HttpRequest request;
+		private final PendingResponse slot;
+		private long dispatchedAt;
+
+		public WaitingRequest(NioConnection connection, HttpRequest request, PendingResponse slot) {
+			super(connection.address.toString());
+			this.connection = connection;
+			this.request = request;
+			this.slot = slot;
+		}
+
+		@Override
+		public void dispatched() {
+			this.dispatchedAt = System.nanoTime();
+		}
+
+		/**
+		 * Dispatches the request, then reports how long it took to the
+		 * concurrency limit and gives back its processing slot.
+		 */
+		@Override
+		public void run() {
+			try {
+				if (this.connection.channel.isOpen()) {
+					this.connection.process(this.request, this.slot);
+					NioTransport.this.server.recordRequestLatency(System.nanoTime() - this.dispatchedAt);
+				}
+			} finally {
+				NioTransport.this.server.decrementNumProcessingRequests();
+			}
+		}
+
+		@Override
+		public void shed(byte[] serviceUnavailable) {
+			this.slot.reject(serviceUnavailable);
+		}
+
+		@Override
+		public void discard() {
+			this.connection.loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					WaitingRequest.this.connection.close();
+				}
+			});
+		}
+	}
+
+	/**
+	 * The response to one request on a {@link NioConnection}, filled in by a
+	 * worker thread and written by the selector loop.
+	 */
+	private static class PendingResponse {
+		private final NioConnection connection;
+		private final int sequence;
+		private final boolean safe;
+		private final long start;
+		private HttpRequest request;
+		private ByteBuffer bytes;
+		private FileChannel file;
+		private List<HttpResponse.Segment> segments;
+		private int segment;
+		private long filePosition;
+		private long fileRemaining;
+		private boolean keepAlive;
+		private boolean interim;
+		private boolean streaming;
+		private boolean streamEnded;
+		private final Queue<ByteBuffer> stream;
+		private final Semaphore streamCredit;
+		private volatile boolean abandoned;
+
+		public PendingResponse(NioConnection connection, int sequence, boolean safe) {
+			this.connection = connection;
+			this.sequence = sequence;
+			this.safe = safe;
+			this.start = System.currentTimeMillis();
+			this.stream = new ArrayDeque<ByteBuffer>();
+			this.streamCredit = new Semaphore(MAX_STREAM_QUEUED);
+		}
+
+		/**
+		 * Serializes the response and asks the selector loop to write it once
+		 * the responses before it are out. Small bodies are read in after the
+		 * head so that both go out in one write; for larger ones the file is
+		 * left open and each of its segments is sent with
+		 * {@link FileChannel#transferTo} as the socket drains, so a response
+		 * never holds more than one buffer of the file in memory.
+		 */
+		public void complete(HttpResponse response, boolean keepAlive) {
+			if (!keepAlive) {
+				response.put(Protocol.CONNECTION, Protocol.CLOSE);
+			}
+			if (response.isStreaming()) {
+				stream(response, keepAlive);
+				return;
+			}
+			ByteBuffer bytes;
+			FileChannel body = null;
+			List<HttpResponse.Segment> parts = Collections.emptyList();
+			try {
+				body = response.openBody();
+				byte[] head = response.encodeHead(body);
+				long length = response.getBodyLength();
+				if (length <= HttpResponse.TRANSFER_BUFFER_SIZE) {
+					byte[] all = Arrays.copyOf(head, head.length + (int) length);
+					response.readBody(body, 0, all, head.length, (int) length);
+					bytes = ByteBuffer.wrap(all);
+					if (body != null) {
+						closeQuietly(body);
+						body = null;
+					}
+				} else {
+					bytes = ByteBuffer.wrap(head);
+					parts = response.getSegments();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				if (body != null) {
+					closeQuietly(body);
+					body = null;
+				}
+				// Nothing of the response has been sent yet, so it can still
+				// be swapped for an error
+				keepAlive = false;
+				parts = Collections.emptyList();
+				bytes = ByteBuffer.wrap(encodeError());
+			}
+
+			ready(bytes, body, parts, keepAlive);
+		}
+
+		/**
+		 * Sends bytes that are already a whole response, such as the prebuilt
+		 * 503 for a shed request, and closes the connection after them.
+		 *
+		 * @param response
+		 *            The serialized response.
+		 */
+		public void reject(byte[] response) {
+			List<HttpResponse.Segment> none = Collections.emptyList();
+			ready(ByteBuffer.wrap(response), null, none, false);
+		}
+
+		/**
+		 * Hands a response over to the selector loop to be written.
+		 */
+		private void ready(final ByteBuffer head, final FileChannel file, final List<HttpResponse.Segment> segments,
+				final boolean keep) {
+			this.connection.loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					PendingResponse.this.bytes = head;
+					PendingResponse.this.file = file;
+					PendingResponse.this.segments = segments;
+					PendingResponse.this.keepAlive = keep;
+					if (!PendingResponse.this.connection.channel.isOpen()) {
+						// The client went away while the response was made
+						PendingResponse.this.closeFile();
+						return;
+					}
+					if (!keep) {
+						PendingResponse.this.connection.closing = true;
+					}
+					PendingResponse.this.connection.updateInterest();
+				}
+			});
+		}
+
+		/**
+		 * Makes a streamed body on the calling thread, handing it to
+		 * the selector loop a buffer at a time as the writer flushes. If the
+		 * writer fails before anything has been handed over, a 500 is sent
+		 * instead; after that, the connection is closed once what was
+		 * handed over is out, leaving the body cut short.
+		 */
+		private void stream(HttpResponse response, boolean keepAlive) {
+			StreamSink sink = new StreamSink(this, keepAlive);
+			try {
+				sink.write(response.encodeHead(null));
+				response.writeBody(sink);
+			} catch (IOException | RuntimeException e) {
+				if (!this.abandoned) {
+					e.printStackTrace();
+				}
+				sink.fail();
+			}
+		}
+
+		/**
+		 * Hands a buffer of a streamed body to the selector loop. Waits while
+		 * too much of the body is already waiting to be written.
+		 *
+		 * @param data
+		 *            The buffer, ready to be written, or null if there is none.
+		 * @param end
+		 *            Whether this is the end of the body.
+		 * @param keep
+		 *            Whether the connection stays open after the body.
+		 */
+		private void post(final ByteBuffer data, final boolean end, final boolean keep) throws IOException {
+			if (data != null) {
+				try {
+					this.streamCredit.acquire(data.limit());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for the client to read");
+				}
+			}
+			this.connection.loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					receive(data, end, keep);
+				}
+			});
+		}
+
+		/**
+		 * Queues a buffer of a streamed body. Runs on the selector loop.
+		 */
+		private void receive(ByteBuffer data, boolean end, boolean keep) {
+			if (!this.connection.channel.isOpen()) {
+				// The client went away while the body was made
+				return;
+			}
+			if (!this.streaming) {
+				this.streaming = true;
+				this.keepAlive = keep;
+				if (!keep) {
+					this.connection.closing = true;
+				}
+			}
+			if (data != null) {
+				this.stream.add(data);
+			}
+			if (end) {
+				this.streamEnded = true;
+				if (!keep) {
+					this.keepAlive = false;
+					this.connection.closing = true;
+				}
+			}
+			if (this.bytes == null && !nextStreamBuffer() && this.streamEnded) {
+				// Nothing is left to write, but the response still has to be
+				// finished off
+				this.bytes = ByteBuffer.allocate(0);
+			}
+			this.connection.updateInterest();
+		}
+
+		/**
+		 * Moves on to the next queued buffer of a streamed body, giving its
+		 * room back to the worker.
+		 *
+		 * @return false if no buffer is waiting
+		 */
+		public boolean nextStreamBuffer() {
+			ByteBuffer next = this.stream.poll();
+			if (next == null) {
+				return false;
+			}
+			this.streamCredit.release(next.limit());
+			this.bytes = next;
+			return true;
+		}
+
+		/**
+		 * Stops a worker writing a streamed body for a connection that has
+		 * closed, waking it if it is waiting for room.
+		 */
+		public void abandon() {
+			this.abandoned = true;
+			this.streamCredit.release(MAX_STREAM_QUEUED);
+		}
+
+		/**
+		 * Moves on to the next segment of the body: its prefix becomes the
+		 * bytes to write, followed by its region of the file.
+		 *
+		 * @return false if the body is done
+		 */
+		public boolean nextSegment() {
+			if (this.segments == null || this.segment == this.segments.size()) {
+				return false;
+			}
+			HttpResponse.Segment next = this.segments.get(this.segment++);
+			this.bytes = ByteBuffer.wrap(next.getPrefix());
+			this.filePosition = next.getPosition();
+			this.fileRemaining = next.getLength();
+			return true;
+		}
+
+		/**
+		 * Closes the file being sent, if any.
+		 */
+		public void closeFile() {
+			if (this.file != null) {
+				closeQuietly(this.file);
+				this.file = null;
+				this.fileRemaining = 0;
+			}
+		}
+
+		private static byte[] encodeError() {
+			try {
+				return HttpResponseFactory.create500InternalServerError(Protocol.CLOSE).encodeHead(null);
+			} catch (IOException e) {
+				// A response without a body is never read from anywhere
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * The stream a worker writes a streamed body to. Bytes are gathered in a
+	 * buffer, which goes to the selector loop when it is full or the stream
+	 * is flushed, as the chunks of a body are; closing the stream ends the
+	 * body.
+	 */
+	private static class StreamSink extends OutputStream {
+		private final PendingResponse slot;
+		private final boolean keepAlive;
+		private ByteBuffer buffer;
+		private boolean posted;
+		private boolean closed;
+
+		public StreamSink(PendingResponse slot, boolean keepAlive) {
+			this.slot = slot;
+			this.keepAlive = keepAlive;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (this.slot.abandoned) {
+				throw new IOException("The client closed the connection");
+			}
+			while (len > 0) {
+				if (this.buffer == null) {
+					this.buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+				} else if (!this.buffer.hasRemaining()) {
+					post(false, this.keepAlive);
+					continue;
+				}
+				int count = Math.min(this.buffer.remaining(), len);
+				this.buffer.put(b, off, count);
+				off += count;
+				len -= count;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (this.buffer != null && this.buffer.position() > 0) {
+				post(false, this.keepAlive);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			post(true, this.keepAlive);
+		}
+
+		/**
+		 * Ends the body after a failure. What is still gathered here is
+		 * dropped; if none of the response has been handed over yet, a 500
+		 * goes out in its place.
+		 */
+		public void fail() {
+			this.closed = true;
+			this.buffer = this.posted ? null : ByteBuffer.wrap(PendingResponse.encodeError());
+			if (this.buffer != null) {
+				this.buffer.position(this.buffer.limit());
+			}
+			try {
+				post(true, false);
+			} catch (IOException e) {
+				// Interrupted; the connection closes when the worker pool
+				// shuts down
+			}
+		}
+
+		private void post(boolean end, boolean keep) throws IOException {
+			ByteBuffer data = this.buffer;
+			this.buffer = null;
+			if (data != null) {
+				data.flip();
+			}
+			this.slot.post(data, end, keep);
+			this.posted = true;
+		}
+	}
+
+	private static void closeQuietly(Channel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Nothing left to do with a channel we could not close
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a newly accepted connection may be served. Each client
+ * address has a token bucket that limits how fast it may open connections and
+ * a count of its open connections. A client that breaks either limit is
+ * banned for a while. Everything lives in a {@link ConcurrentHashMap} and is
+ * updated with compare-and-set, so the accepting threads never wait on a
+ * lock, and clients that have been idle for a while are forgotten so the map
+ * does not grow without bound.
+ */
+public class RateLimiter {
+	/**
+	 * The outcome of {@link RateLimiter#admit(String)}.
+	 */
+	public enum Admission {
+		/**
+		 * The connection may be served.
+		 */
+		ADMITTED,
+
+		/**
+		 * The client was already banned.
+		 */
+		BANNED,
+
+		/**
+		 * The client broke a limit with this connection and is now banned.
+		 */
+		NEWLY_BANNED
+	}
+
+	private ConcurrentHashMap<String, ClientState> clients;
+	private long refillInterval;
+	private long burstTolerance;
+	private int maxActive;
+	private long banDuration;
+	private long idleTimeout;
+	private AtomicLong nextEviction;
+
+	/**
+	 * @param config
+	 *            The settings holding the burst, rate, ban and idle limits.
+	 */
+	public RateLimiter(ServerConfig config) {
+		this.clients = new ConcurrentHashMap<String, ClientState>();
+		this.refillInterval = TimeUnit.SECONDS.toNanos(1) / config.getRateLimitPerSecond();
+		this.burstTolerance = this.refillInterval * (config.getRateLimitBurst() - 1);
+		this.maxActive = config.getMaxActivePerClient();
+		this.banDuration = TimeUnit.MILLISECONDS.toNanos(config.getBanDuration());
+		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(config.getRateLimitIdleTimeout());
+		this.nextEviction = new AtomicLong(System.nanoTime() + this.idleTimeout);
+	}
+
+	/**
+	 * Takes a token from the client's bucket and counts the connection as one
+	 * of its open connections. Every admitted connection must be given back
+	 * with {@link #release(String)} once it closes.
+	 *
+	 * @param client
+	 *            The address of the client.
+	 * @return whether the connection may be served
+	 */
+	public Admission admit(String client) {
+		long now = System.nanoTime();
+		this.evictIdleClients(now);
+
+		while (true) {
+			ClientState state = this.clients.get(client);
+			if (state == null) {
+				ClientState created = new ClientState(now);
+				state = this.clients.putIfAbsent(client, created);
+				if (state == null) {
+					state = created;
+				}
+			}
+			state.lastSeen = now;
+
+			if (now - state.bannedUntil < 0) {
+				return Admission.BANNED;
+			}
+
+			int active = state.acquire();
+			if (active < 0) {
+				// Evicted between the lookup and now, look it up again
+				continue;
+			}
+			if (active > this.maxActive || !state.tryTake(now, this.refillInterval, this.burstTolerance)) {
+				state.release();
+				state.bannedUntil = now + this.banDuration;
+				return Admission.NEWLY_BANNED;
+			}
+			return Admission.ADMITTED;
+		}
+	}
+
+	/**
+	 * Gives back a connection counted by {@link #admit(String)}.
+	 *
+	 * @param client
+	 *            The address of the client.
+	 */
+	public void release(String client) {
+		// A client with open connections is never evicted, so this finds the
+		// state the connection was counted in
+		ClientState state = this.clients.get(client);
+		if (state != null) {
+			state.release();
+		}
+	}
+
+	/**
+	 * @param client
+	 *            The address of the client.
+	 * @return whether the client is banned right now
+	 */
+	public boolean isBanned(String client) {
+		ClientState state = this.clients.get(client);
+		return state != null && System.nanoTime() - state.bannedUntil < 0;
+	}
+
+	/**
+	 * @param client
+	 *            The address of the client.
+	 * @return the number of connections the client has open
+	 */
+	public int getActiveCount(String client) {
+		ClientState state = this.clients.get(client);
+		return state == null ? 0 : Math.max(0, state.active.get());
+	}
+
+	/**
+	 * @return the number of clients currently remembered
+	 */
+	public int getClientCount() {
+		return this.clients.size();
+	}
+
+	/**
+	 * Forgets clients with no open connections and no ban that have not
+	 * connected within the idle timeout. Runs at most once per idle timeout,
+	 * on whichever thread gets there first.
+	 */
+	private void evictIdleClients(long now) {
+		long next = this.nextEviction.get();
+		if (now - next < 0 || !this.nextEviction.compareAndSet(next, now + this.idleTimeout)) {
+			return;
+		}
+
+		Iterator<Map.Entry<String, ClientState>> entries = this.clients.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String, ClientState> entry = entries.next();
+			ClientState state = entry.getValue();
+			if (now - state.lastSeen > this.idleTimeout && now - state.bannedUntil >= 0
+					&& state.active.compareAndSet(0, ClientState.EVICTED)) {
+				this.clients.remove(entry.getKey(), state);
+			}
+		}
+	}
+
+	/**
+	 * The bucket and connection count of one client. The bucket is kept in
+	 * its "theoretical arrival time" form: a single timestamp that runs ahead
+	 * of the clock by one refill interval per token taken, so taking a token
+	 * is one compare-and-set.
+	 */
+	private static class ClientState {
+		private static final int EVICTED = -1;
+
+		private AtomicLong theoreticalArrival;
+		private AtomicInteger active;
+		private volatile long bannedUntil;
+		private volatile long lastSeen;
+
+		public ClientState(long now) {
+			this.theoreticalArrival = new AtomicLong(now);
+			this.active = new AtomicInteger();
+			this.bannedUntil = now;
+			this.lastSeen = now;
+		}
+
+		/**
+		 * @return whether a token was left in the bucket
+		 */
+		public boolean tryTake(long now, long refillInterval, long burstTolerance) {
+			while (true) {
+				long arrival = this.theoreticalArrival.get();
+				long base = now - arrival > 0 ? now : arrival;
+				if (base - now > burstTolerance) {
+					return false;
+				}
+				if (this.theoreticalArrival.compareAndSet(arrival, base + refillInterval)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * @return the number of open connections including this one, or
+		 *         {@link #EVICTED} if the state was evicted
+		 */
+		public int acquire() {
+			while (true) {
+				int active = this.active.get();
+				if (active == EVICTED) {
+					return EVICTED;
+				}
+				if (this.active.compareAndSet(active, active + 1)) {
+					return active + 1;
+				}
+			}
+		}
+
+		public void release() {
+			while (true) {
+				int active = this.active.get();
+				if (active <= 0 || this.active.compareAndSet(active, active - 1)) {
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package server;
+
+import java.net.InetAddress;
+
+import protocol.HttpHeader;
+import protocol.HttpRequest;
+import protocol.HttpResponse;
+import protocol.HttpResponseFactory;
+import protocol.Protocol;
+import protocol.ProtocolException;
+import protocol.plugin.AbstractPlugin;
+
+/**
+ * Routes a parsed {@link HttpRequest} to the plugin named in its URI. Both the
+ * blocking {@link ConnectionHandler} and the {@link NioTransport} go through
+ * this class, so a request gets the same response whichever transport read it.
+ */
+public class RequestDispatcher {
+	private Server server;
+
+	public RequestDispatcher(Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Finds the plugin for the request and lets it create a response.
+	 *
+	 * @param request
+	 *            The request to handle.
+	 * @param client
+	 *            The address of the client that sent the request.
+	 * @return The response to send back, never null.
+	 */
+	public HttpResponse dispatch(HttpRequest request, InetAddress client) {
+		HttpResponse response = null;
+		try {
+			// Fill in the code to create a response for version mismatch.
+			// You may want to use constants such as Protocol.VERSION,
+			// Protocol.NOT_SUPPORTED_CODE, and more.
+			// You can check if the version matches as follows
+			if (!request.getVersion().equalsIgnoreCase(Protocol.VERSION)) {
+				// Here you checked that the "Protocol.VERSION" string is not
+				// equal to the
+				// "request.version" string ignoring the case of the letters in
+				// both strings
+			} else {
+
+				if (request.getUri().contains("favicon") || request.getUri().equals("/")) {
+					response = HttpResponseFactory.create400BadRequest(Protocol.CLOSE);
+				} else {
+
+					AbstractPlugin plugin = getPluginFromUri(request.getPath());
+					if (plugin != null) {
+						response = plugin.handle(request);
+					} else {
+						response = HttpResponseFactory.create400BadRequest(Protocol.CLOSE);
+					}
+					System.out.println(request.getMethod() + " request to " + request.getUri() + " from " + client);
+					this.server.addToAuditTrail(request);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		// TODO: So far response could be null for protocol version mismatch.
+		// So this is a temporary patch for that problem and should be removed
+		// after a response object is created for protocol version mismatch.
+		if (response == null) {
+			response = HttpResponseFactory.create400BadRequest(Protocol.CLOSE);
+		}
+		return response;
+	}
+
+	/**
+	 * Whether the client is waiting to be told to send the body of this
+	 * request. Only HTTP/1.1 clients can send <tt>Expect</tt>, and only a
+	 * request with a body has anything to wait for.
+	 * 
+	 * @param request
+	 *            A request whose head has been read.
+	 * @return true if the request carries an expectation to answer
+	 */
+	public static boolean hasExpectation(HttpRequest request) {
+		return request.getContentLength() != 0 && request.getHeader(HttpHeader.EXPECT) != null
+				&& Protocol.VERSION.equalsIgnoreCase(request.getVersion());
+	}
+
+	/**
+	 * Answers the expectation of a request before its body is read. The
+	 * request is routed the way {@link #dispatch} would route it, so a body
+	 * that no plugin would get is never sent. Limits on the body size have
+	 * already been checked by the parser by the time the head is complete.
+	 * 
+	 * @param request
+	 *            A request for which {@link #hasExpectation} is true.
+	 * @return null if the client should be told to go on with
+	 *         {@link Protocol#CONTINUE_CODE}, or the final response to send
+	 *         instead of reading the body
+	 */
+	public HttpResponse checkExpectation(HttpRequest request) {
+		if (!Protocol.CONTINUE_EXPECTATION.equalsIgnoreCase(request.getHeader(HttpHeader.EXPECT).trim())) {
+			return HttpResponseFactory.create417ExpectationFailed(Protocol.CLOSE);
+		}
+		if (request.getUri().contains("favicon") || request.getUri().equals("/")) {
+			return HttpResponseFactory.create400BadRequest(Protocol.CLOSE);
+		}
+		AbstractPlugin plugin;
+		try {
+			plugin = getPluginFromUri(request.getPath());
+		} catch (RuntimeException e) {
+			// No plugin name in the URI
+			plugin = null;
+		}
+		if (plugin == null) {
+			return HttpResponseFactory.create400BadRequest(Protocol.CLOSE);
+		}
+		return null;
+	}
+
+	/**
+	 * Decides whether the connection stays open after this response and sets
+	 * the response's <tt>Connection</tt> header to match. The plugins always
+	 * ask for {@link Protocol#CLOSE}; this replaces their choice with the one
+	 * the client and the server's keep-alive limits allow. A streamed body
+	 * that only the connection closing can end always closes it.
+	 * 
+	 * @param request
+	 *            The request being answered, or null if it could not be
+	 *            parsed.
+	 * @param response
+	 *            The response about to be sent.
+	 * @param requestsServed
+	 *            How many requests the connection has made, including this
+	 *            one.
+	 * @return whether the connection should be kept open
+	 */
+	public boolean applyConnectionHeader(HttpRequest request, HttpResponse response, int requestsServed) {
+		ServerConfig config = this.server.getConfig();
+		boolean keepAlive = request != null && request.isKeepAlive()
+				&& requestsServed < config.getMaxKeepAliveRequests() && !this.server.isStopped()
+				&& !response.isCloseDelimited();
+
+		if (keepAlive) {
+			response.put(Protocol.CONNECTION, Protocol.OPEN);
+			response.put(Protocol.KEEP_ALIVE, "timeout=" + (config.getKeepAliveTimeout() / 1000) + ", max="
+					+ (config.getMaxKeepAliveRequests() - requestsServed));
+		} else {
+			response.put(Protocol.CONNECTION, Protocol.CLOSE);
+		}
+		return keepAlive;
+	}
+
+	/**
+	 * Whether a request with this method only reads state, and so may run at
+	 * the same time as other requests from the same client.
+	 * 
+	 * @param method
+	 *            The request method.
+	 * @return true for GET, HEAD and OPTIONS
+	 */
+	public static boolean isSafeMethod(String method) {
+		return Protocol.GET.equals(method) || Protocol.HEAD.equals(method) || Protocol.OPTIONS.equals(method);
+	}
+
+	/**
+	 * Creates the response for a request that could not be parsed.
+	 *
+	 * @param e
+	 *            The exception thrown while reading the request.
+	 * @return The error response.
+	 */
+	public static HttpResponse createErrorResponse(Exception e) {
+		if (e instanceof ProtocolException) {
+			// We have some sort of protocol exception. Get its status code and
+			// create response
+			// We know only two kind of exception is possible inside
+			// fromInputStream
+			// Protocol.BAD_REQUEST_CODE and Protocol.NOT_SUPPORTED_CODE
+			int status = ((ProtocolException) e).getStatus();
+			if (status == Protocol.BAD_REQUEST_CODE) {
+				return HttpResponseFactory.create400BadRequest(Protocol.CLOSE);
+			}
+			if (status == Protocol.REQUEST_TIMEOUT_CODE) {
+				return HttpResponseFactory.create408RequestTimeout(Protocol.CLOSE);
+			}
+			if (status == Protocol.URI_TOO_LONG_CODE) {
+				return HttpResponseFactory.create414UriTooLong(Protocol.CLOSE);
+			}
+			if (status == Protocol.HEADER_FIELDS_TOO_LARGE_CODE) {
+				return HttpResponseFactory.create431RequestHeaderFieldsTooLarge(Protocol.CLOSE);
+			}
+			if (status == Protocol.PAYLOAD_TOO_LARGE_CODE) {
+				return HttpResponseFactory.create413PayloadTooLarge(Protocol.CLOSE);
+			}
+			if (status == Protocol.NOT_IMPLEMENTED_CODE) {
+				return HttpResponseFactory.create501NotImplemented(Protocol.CLOSE);
+			}
+			// TODO: Handle version not supported code as well
+		} else {
+			e.printStackTrace();
+		}
+		// For any other error, we will create bad request response as well
+		return HttpResponseFactory.create400BadRequest(Protocol.CLOSE);
+	}
+
+	private AbstractPlugin getPluginFromUri(String uri) {
+		final String pluginString;
+		if (uri.contains("v1/")) {
+			pluginString = uri.substring(uri.indexOf("v1/") + 3, uri.indexOf("/", 4));
+		} else {
+			pluginString = uri.substring(1, uri.indexOf("/", 1));
+		}
+		return this.server.getPlugin(pluginString);
+	}
+}
@@ -21,21 +21,36 @@
 
 package server;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import gui.WebServer;
+import protocol.Compression;
+import protocol.EntityTagCache;
 import protocol.HttpRequest;
+import protocol.HttpResponse;
+import protocol.HttpResponseFactory;
+import protocol.Protocol;
+import protocol.ProtocolException;
+import protocol.RequestLimit;
 import protocol.plugin.AbstractPlugin;
 
 /**
@@ -48,8 +63,8 @@ public class Server implements Runnable {
 	private static final Logger LOGGER = LogManager.getLogger(Server.class);
 	private String rootDirectory;
 	private int port;
-	private boolean stop;
-	private ServerSocket welcomeSocket;
+	private volatile boolean stop;
+	private volatile Acceptor[] acceptors;
 
 	private long connections;
 	private long serviceTime;
@@ -57,26 +72,38 @@ public class Server implements Runnable {
 	private WebServer window;
 	private Map<String, AbstractPlugin> plugins;
 
+	private ServerConfig config;
+	private RequestDispatcher dispatcher;
+	private IWorkerStage workers;
+	private NioTransport nioTransport;
+
 	private static final int MAX_SIZE_OF_AUDIT_TRAIL = 100;
 	private List<HttpRequest> auditTrail;
 
-	private final Object waitingRequestsLock = new Object();
-	private List<Socket> waitingRequests;
-
-	private final Object bannedUsersLock = new Object();
-	private List<String> bannedUsers;
-	
-	private final Object hadATurnLock = new Object();
-	private List<String> hadATurn;
-
-	private final Object numActiveRequestsLock = new Object();
-	private Map<String, Integer> numActiveRequests;
-	
-	private final Object numProcessingRequestsLock = new Object();
-	private int numProcessingRequests;
-	
-	private static final int MAX_NUM_REQUESTS_BEFORE_BAN = 10;
-	private static final int MAX_PROCESSING_REQUESTS = 5;
+	// Guards the waiting connections and the processing count
+	// so the dispatcher can sleep until either of its conditions changes
+	private final ReentrantLock dispatchLock = new ReentrantLock();
+	private final Condition connectionWaiting = dispatchLock.newCondition();
+	private final Condition processingSlotFree = dispatchLock.newCondition();
+	private FairQueue<WaitingWork> waitingRequests;
+	private int maxWaitingRequests;
+	private byte[] serviceUnavailable;
+	private AtomicLong shedCount;
+	private AtomicLongArray limitCounts;
+	private LingeringCloser lingeringCloser;
+	private Thread lingeringCloserThread;
+	private KeepAliveParker keepAliveParker;
+	private Thread keepAliveParkerThread;
+	private LatencyHistogram dispatchLatency;
+	private Thread queueHandlerThread;
+
+	private RateLimiter rateLimiter;
+
+	private volatile int numProcessingRequests;
+	private ConcurrencyLimit concurrencyLimit;
+
+	private static final int LINGER_MILLIS = 2000;
+	private static final int PARKED_POLL_MILLIS = 10;
 
 	/**
 	 * @param rootDirectory
@@ -85,6 +112,18 @@ public class Server implements Runnable {
 	 */
 	public Server(String rootDirectory, int port, WebServer window)
 			throws IOException {
+		this(rootDirectory, port, window, ServerConfig.fromSystemProperties());
+	}
+
+	/**
+	 * @param rootDirectory
+	 * @param port
+	 * @param window
+	 * @param config
+	 * @throws IOException
+	 */
+	public Server(String rootDirectory, int port, WebServer window, ServerConfig config)
+			throws IOException {
 		this.rootDirectory = rootDirectory;
 		this.port = port;
 		this.stop = false;
@@ -92,17 +131,46 @@ public class Server implements Runnable {
 		this.serviceTime = 0;
 		this.window = window;
 		this.plugins = new HashMap<>();
+		this.config = config;
+		this.dispatcher = new RequestDispatcher(this);
+		if (config.getExecution() == ServerConfig.Execution.THREAD_PER_CONNECTION) {
+			// The semaphore inside the workers is the only cap in this mode
+			this.workers = new ThreadPerConnectionWorkers("Connection", config.getMaxConnections());
+			this.concurrencyLimit = new ConcurrencyLimit(config.getMaxConnections(), config.getMaxConnections(),
+					config.getMaxConnections());
+		} else {
+			this.workers = new WorkerPool("Worker", config.getWorkerCoreThreads(), config.getWorkerMaxThreads(),
+					config.getWorkerQueueSize(), config.getWorkerKeepAliveSeconds());
+			this.concurrencyLimit = new ConcurrencyLimit(config.getInitialConcurrencyLimit(),
+					config.getMinConcurrencyLimit(), config.getMaxConcurrencyLimit());
+		}
 
-		this.waitingRequests = new ArrayList<Socket>();
-		this.bannedUsers = new ArrayList<String>();
-		this.numActiveRequests = new HashMap<String, Integer>();
-		this.hadATurn = new ArrayList<String>();
+		this.waitingRequests = new FairQueue<WaitingWork>();
+		this.maxWaitingRequests = config.getAdmissionQueueSize();
+		this.serviceUnavailable = createServiceUnavailable(config.getRetryAfter());
+		this.shedCount = new AtomicLong();
+		this.limitCounts = new AtomicLongArray(RequestLimit.values().length);
+		this.lingeringCloser = new LingeringCloser(config.getAdmissionQueueSize(), LINGER_MILLIS);
+		this.keepAliveParker = new KeepAliveParker(this, PARKED_POLL_MILLIS);
+		this.dispatchLatency = new LatencyHistogram();
+		this.rateLimiter = new RateLimiter(config);
+		EntityTagCache.getShared().setCapacity(config.getEntityTagCacheSize());
+		Compression.getShared().setMinSize(config.getCompressionMinSize());
+		Compression.getShared().setMaxSize(config.getCompressionMaxSize());
+		Compression.getShared().setCacheSize(config.getCompressionCacheSize());
 		this.numProcessingRequests = 0;
 
 		this.auditTrail = new ArrayList<HttpRequest>();
 
 		PriorityQueueHandler queueHandler = new PriorityQueueHandler(this);
-		new Thread(queueHandler).start();
+		this.queueHandlerThread = new Thread(queueHandler, "Dispatcher");
+		this.queueHandlerThread.start();
+		this.lingeringCloserThread = new Thread(this.lingeringCloser, "LingeringCloser");
+		this.lingeringCloserThread.setDaemon(true);
+		this.lingeringCloserThread.start();
+		this.keepAliveParkerThread = new Thread(this.keepAliveParker, "KeepAliveParker");
+		this.keepAliveParkerThread.setDaemon(true);
+		this.keepAliveParkerThread.start();
 	}
 
 	/**
@@ -123,6 +191,100 @@ public class Server implements Runnable {
 		return port;
 	}
 
+	/**
+	 * Gets the settings this web server was started with.
+	 * 
+	 * @return the config
+	 */
+	public ServerConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Gets the dispatcher that routes requests to plugins.
+	 * 
+	 * @return the dispatcher
+	 */
+	public RequestDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * Gets the pool of threads that handle requests.
+	 * 
+	 * @return the workers
+	 */
+	public IWorkerStage getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * Gets how long accepted connections waited before a worker took them.
+	 * 
+	 * @return the dispatch latency histogram
+	 */
+	public LatencyHistogram getDispatchLatency() {
+		return dispatchLatency;
+	}
+
+	/**
+	 * Gets the adaptive limit on how many requests are processed at once.
+	 * 
+	 * @return the concurrency limit
+	 */
+	public ConcurrencyLimit getConcurrencyLimit() {
+		return concurrencyLimit;
+	}
+
+	/**
+	 * Reports how long a request took to the concurrency limit, and wakes the
+	 * dispatcher if that raised the limit.
+	 * 
+	 * @param nanos
+	 *            The time from when the request was ready to be processed
+	 *            until its response was written, or for the NIO transport
+	 *            handed to the selector loop.
+	 */
+	public void recordRequestLatency(long nanos) {
+		if (this.concurrencyLimit.onSample(nanos, this.numProcessingRequests)) {
+			this.dispatchLock.lock();
+			try {
+				this.processingSlotFree.signal();
+			} finally {
+				this.dispatchLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Gets the closer for connections that may still have unread request
+	 * bytes.
+	 * 
+	 * @return the lingering closer
+	 */
+	public LingeringCloser getLingeringCloser() {
+		return lingeringCloser;
+	}
+
+	/**
+	 * Gets the holder of idle keep-alive connections that gave up their
+	 * worker.
+	 * 
+	 * @return the keep-alive parker
+	 */
+	public KeepAliveParker getKeepAliveParker() {
+		return keepAliveParker;
+	}
+
+	/**
+	 * Gets the per-client limits applied to new connections.
+	 * 
+	 * @return the rate limiter
+	 */
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
 	/**
 	 * Returns connections serviced per second. Synchronized to be used in
 	 * threaded environment.
@@ -166,161 +328,387 @@ public class Server implements Runnable {
 	 * connection request and creates a {@link ConnectionHandler} for the
 	 * request.
 	 */
-	public synchronized void addWaitingRequest(Socket connection) {
-		synchronized (this.waitingRequestsLock) {
-			this.waitingRequests.add(connection);
-		}
+	public void addWaitingRequest(Socket connection) {
+		this.addWaitingRequest(new ConnectionHandler(this, connection));
 	}
-	
-	public synchronized Socket getNextConnection() {
-		synchronized (this.waitingRequestsLock) {
-			synchronized (this.hadATurnLock) {
-				if (waitingRequests.size() <= 0) {
-					return null;
-				}
-				
-				for (int i = 0; i < this.waitingRequests.size(); i++) {
-					Socket connection = this.waitingRequests.get(i);
-					if (this.hadATurn.contains(connection.getInetAddress().toString())) {
-						continue;
-					}
-					this.hadATurn.add(connection.getInetAddress().toString());
-					this.waitingRequests.remove(i);
-					return connection;
-				}
-				
-				this.hadATurn = new ArrayList<String>();
-				Socket connection = this.waitingRequests.get(0);
-				this.waitingRequests.remove(0);
-				return connection;
-			}
-		}
+
+	/**
+	 * Queues a connection for the dispatcher, either a new one or a parked
+	 * keep-alive connection whose next request has arrived. When the queue is
+	 * full the connection is answered with a 503 and closed.
+	 * 
+	 * @param handler
+	 *            The handler of the connection.
+	 */
+	public void addWaitingRequest(ConnectionHandler handler) {
+		this.addWaitingWork(new WaitingConnection(handler));
 	}
 
-	public synchronized void removeAllRequests(String inetAddress) {
-		synchronized (this.waitingRequestsLock) {
-			for (int i = 0; i < waitingRequests.size(); i++) {
-				if (this.waitingRequests.get(i).getInetAddress().toString()
-						.equals(inetAddress)) {
-					this.waitingRequests.remove(i);
-					i--;
-				}
+	/**
+	 * Queues work for the dispatcher, or sheds it at once with a 503 if the
+	 * queue is full.
+	 * 
+	 * @param waiting
+	 *            A connection or a request waiting to be processed.
+	 */
+	void addWaitingWork(WaitingWork waiting) {
+		boolean queued = false;
+		this.dispatchLock.lock();
+		try {
+			if (this.waitingRequests.size() < this.maxWaitingRequests) {
+				this.waitingRequests.offer(waiting.getInetAddress(), waiting);
+				this.connectionWaiting.signal();
+				queued = true;
 			}
+		} finally {
+			this.dispatchLock.unlock();
 		}
-	}
 
-	public synchronized void addBanneduser(String inetAddress) {
-		synchronized (this.bannedUsersLock) {
-			this.bannedUsers.add(inetAddress);
+		// Shed the work now rather than let it wait until the client gives up
+		// on it
+		if (!queued) {
+			this.shed(waiting);
 		}
 	}
 
-	public synchronized boolean userIsBanned(String inetAddress) {
-		synchronized (this.bannedUsersLock) {
-			return this.bannedUsers.contains(inetAddress);
+	/**
+	 * Gets the number of accepted connections and requests waiting for the
+	 * dispatcher.
+	 * 
+	 * @return the queue depth
+	 */
+	public int getQueueDepth() {
+		this.dispatchLock.lock();
+		try {
+			return this.waitingRequests.size();
+		} finally {
+			this.dispatchLock.unlock();
 		}
 	}
 
-	public synchronized int getNumActiveRequests(String inetAddress) {
-		synchronized (this.numActiveRequestsLock) {
-			if (this.numActiveRequests.containsKey(inetAddress)) {
-				return this.numActiveRequests.get(inetAddress);
-			}
-			return 0;
+	/**
+	 * Gets the number of connections and requests answered with a 503
+	 * because the admission queue or the workers were full.
+	 * 
+	 * @return the shed count
+	 */
+	public long getShedCount() {
+		return this.shedCount.get();
+	}
+
+	/**
+	 * Counts a request that was refused while being read, if it was refused
+	 * for breaking one of the {@link RequestLimit}s.
+	 * 
+	 * @param e
+	 *            Why reading the request failed.
+	 */
+	public void recordRejectedRequest(Exception e) {
+		if (e instanceof ProtocolException && ((ProtocolException) e).getLimit() != null) {
+			this.recordLimit(((ProtocolException) e).getLimit());
 		}
 	}
 
-	public synchronized void incrementNumActiveRequests(String inetAddress) {
-		synchronized (this.numActiveRequestsLock) {
-			if (this.numActiveRequests.containsKey(inetAddress)) {
-				int numActiveRequests = this.numActiveRequests.get(inetAddress);
-				this.numActiveRequests.put(inetAddress, numActiveRequests + 1);
-			} else {
-				this.numActiveRequests.put(inetAddress, 1);
+	/**
+	 * Counts a request that broke the given limit.
+	 * 
+	 * @param limit
+	 *            The limit that was broken.
+	 */
+	public void recordLimit(RequestLimit limit) {
+		this.limitCounts.incrementAndGet(limit.ordinal());
+	}
+
+	/**
+	 * Gets the number of requests refused for breaking the given limit.
+	 * 
+	 * @param limit
+	 *            The limit.
+	 * @return the count
+	 */
+	public long getLimitCount(RequestLimit limit) {
+		return this.limitCounts.get(limit.ordinal());
+	}
+
+	/**
+	 * Waits until work is queued and fewer than the maximum number of
+	 * requests are being processed, then counts the work as processing and
+	 * returns it. Wakes as soon as either condition changes instead of
+	 * polling.
+	 * 
+	 * @return the connection or request to serve
+	 * @throws InterruptedException
+	 *             if the server is stopped while waiting
+	 */
+	private WaitingWork takeNextConnection() throws InterruptedException {
+		this.dispatchLock.lockInterruptibly();
+		try {
+			while (this.numProcessingRequests >= this.concurrencyLimit.getLimit()) {
+				this.processingSlotFree.await();
+			}
+			WaitingWork waiting;
+			while ((waiting = this.waitingRequests.poll()) == null) {
+				this.connectionWaiting.await();
 			}
+			this.numProcessingRequests++;
+			this.dispatchLatency.record(System.nanoTime() - waiting.getEnqueuedAt());
+			return waiting;
+		} finally {
+			this.dispatchLock.unlock();
 		}
 	}
-	
-	public synchronized void decrementNumActiveRequests(String inetAddress) {
-		synchronized (this.numActiveRequestsLock) {
-			if (this.numActiveRequests.containsKey(inetAddress)) {
-				int numActiveRequests = this.numActiveRequests.get(inetAddress);
-				this.numActiveRequests.put(inetAddress, numActiveRequests - 1);
-			} else {
-				this.numActiveRequests.put(inetAddress, 1);
+
+	public void removeAllRequests(String inetAddress) {
+		this.dispatchLock.lock();
+		try {
+			for (WaitingWork waiting : this.waitingRequests.removeAll(inetAddress)) {
+				waiting.discard();
 			}
+		} finally {
+			this.dispatchLock.unlock();
 		}
 	}
-	
-	public synchronized void incrementNumProcessingRequests() {
-		synchronized (this.numProcessingRequestsLock) {
+
+	/**
+	 * Counts a request on an open connection as processing, unless that would
+	 * go over the concurrency limit or connections are already queued for a
+	 * slot, which go first.
+	 * 
+	 * @return whether the request may be processed now
+	 */
+	public boolean tryIncrementNumProcessingRequests() {
+		this.dispatchLock.lock();
+		try {
+			if (this.numProcessingRequests >= this.concurrencyLimit.getLimit() || this.waitingRequests.size() > 0) {
+				return false;
+			}
 			this.numProcessingRequests++;
+			return true;
+		} finally {
+			this.dispatchLock.unlock();
 		}
 	}
-	
-	public synchronized void decrementNumProcessingRequests() {
-		synchronized (this.numProcessingRequestsLock) {
+
+	/**
+	 * Whether connections are waiting for the dispatcher or tasks are waiting
+	 * for a worker thread, in which case an idle connection should give up
+	 * its thread.
+	 * 
+	 * @return true if other work is waiting
+	 */
+	public boolean hasWaitingWork() {
+		return this.getQueueDepth() > 0 || this.workers.getQueueSize() > 0;
+	}
+
+	public void decrementNumProcessingRequests() {
+		this.dispatchLock.lock();
+		try {
 			this.numProcessingRequests--;
+			this.processingSlotFree.signal();
+		} finally {
+			this.dispatchLock.unlock();
+		}
+	}
+
+	/**
+	 * Applies the rate limits to a newly accepted connection and, if the
+	 * client is allowed in, counts it as one of the client's open connections
+	 * until it is released through {@link #getRateLimiter()}.
+	 * 
+	 * @param inetAddress
+	 *            The address of the client.
+	 * @return whether the connection should be served
+	 */
+	public boolean admit(String inetAddress) {
+		switch (this.rateLimiter.admit(inetAddress)) {
+		case ADMITTED:
+			return true;
+		case NEWLY_BANNED:
+			System.out.println(inetAddress + " was banned for making too many requests.");
+			this.removeAllRequests(inetAddress);
+			return false;
+		default:
+			System.out.println(inetAddress + "'s request was ignored because the client is banned.");
+			return false;
 		}
 	}
 
 	public void run() {
+		if (this.config.getTransport() == ServerConfig.Transport.NIO) {
+			try {
+				this.nioTransport = new NioTransport(this, this.port, this.config.getIoThreads());
+				this.nioTransport.run();
+			} catch (Exception e) {
+				window.showSocketException(e);
+			}
+			return;
+		}
+
 		try {
-			this.welcomeSocket = new ServerSocket(port);
+			this.acceptors = this.openAcceptors();
+		} catch (Exception e) {
+			window.showSocketException(e);
+			return;
+		}
+		if (this.stop) {
+			this.closeAcceptors();
+			return;
+		}
 
-			// Now keep welcoming new connections until stop flag is set to true
-			while (true) {
-				// ////////////////////////////////////////////////////////////
-				// New Code
+		// The first acceptor runs on this thread, so run() still blocks until
+		// the server stops
+		for (int i = 1; i < this.acceptors.length; i++) {
+			new Thread(this.acceptors[i], "Acceptor-" + i).start();
+		}
+		this.acceptors[0].run();
+	}
 
-				// Listen for incoming socket connection
-				// This method block until somebody makes a request
-				Socket connectionSocket = this.welcomeSocket.accept();
+	/**
+	 * Creates the acceptors and their listening sockets. With
+	 * <tt>SO_REUSEPORT</tt> each acceptor binds its own socket and the kernel
+	 * spreads new connections between them; otherwise they all accept from
+	 * one shared socket.
+	 */
+	private Acceptor[] openAcceptors() throws IOException {
+		Acceptor[] acceptors = new Acceptor[this.config.getAcceptors()];
+		ServerSocket shared = null;
+		for (int i = 0; i < acceptors.length; i++) {
+			ServerSocket listener = shared;
+			if (listener == null) {
+				listener = new ServerSocket();
+				boolean sharded = acceptors.length > 1 && this.config.isReusePort() && setReusePort(listener);
+				listener.bind(new InetSocketAddress(this.port));
+				if (!sharded) {
+					shared = listener;
+				}
+			}
+			acceptors[i] = new Acceptor(listener);
+		}
+		return acceptors;
+	}
 
-				// Come out of the loop if the stop flag is set
-				if (this.stop)
-					break;
+	/**
+	 * Turns on <tt>SO_REUSEPORT</tt>, which the Java 7 API cannot name, so it
+	 * is looked up reflectively.
+	 * 
+	 * @return whether the option is now on
+	 */
+	private static boolean setReusePort(ServerSocket listener) {
+		try {
+			Object reusePort = StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+			Set<?> supported = (Set<?>) ServerSocket.class.getMethod("supportedOptions").invoke(listener);
+			if (!supported.contains(reusePort)) {
+				return false;
+			}
+			ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class).invoke(listener, reusePort,
+					Boolean.TRUE);
+			return true;
+		} catch (ReflectiveOperationException e) {
+			return false;
+		}
+	}
 
-				String inetAddress = connectionSocket.getInetAddress()
-						.toString();
+	private void closeAcceptors() {
+		for (Acceptor acceptor : this.acceptors) {
+			acceptor.close();
+		}
+	}
 
-				if (this.userIsBanned(inetAddress)) {
-					System.out.println(inetAddress + "'s request was ignored because he is banned.");
-					continue;
-				}
+	/**
+	 * Gets how many connections each acceptor has let through to the
+	 * dispatcher.
+	 * 
+	 * @return one count per acceptor, empty until the server is running
+	 */
+	public long[] getAcceptedCounts() {
+		Acceptor[] acceptors = this.acceptors;
+		if (acceptors == null) {
+			return new long[0];
+		}
+		long[] counts = new long[acceptors.length];
+		for (int i = 0; i < acceptors.length; i++) {
+			counts[i] = acceptors[i].accepted.get();
+		}
+		return counts;
+	}
+
+	/**
+	 * Gets how many connections per second each acceptor has let through to
+	 * the dispatcher since it started.
+	 * 
+	 * @return one rate per acceptor, empty until the server is running
+	 */
+	public double[] getAcceptRates() {
+		Acceptor[] acceptors = this.acceptors;
+		if (acceptors == null) {
+			return new double[0];
+		}
+		double[] rates = new double[acceptors.length];
+		for (int i = 0; i < acceptors.length; i++) {
+			rates[i] = acceptors[i].getAcceptRate();
+		}
+		return rates;
+	}
 
-				int numActiveRequests = this.getNumActiveRequests(inetAddress);
-				if (numActiveRequests > Server.MAX_NUM_REQUESTS_BEFORE_BAN) {
-					System.out.println(inetAddress + " was banned for making too many requests.");
-					this.addBanneduser(inetAddress);
-					this.removeAllRequests(inetAddress);
-					continue;
+	/**
+	 * Accepts connections from one listening socket, applies the rate limits
+	 * and queues the connection for the dispatcher.
+	 */
+	private class Acceptor implements Runnable {
+		private ServerSocket listener;
+		private AtomicLong accepted;
+		private long startedAt;
+
+		public Acceptor(ServerSocket listener) {
+			this.listener = listener;
+			this.accepted = new AtomicLong();
+			this.startedAt = System.nanoTime();
+		}
+
+		@Override
+		public void run() {
+			try {
+				// Now keep welcoming new connections until stop flag is set to
+				// true
+				while (!stop) {
+					// Listen for incoming socket connection
+					// This method block until somebody makes a request
+					Socket connectionSocket = this.listener.accept();
+
+					String inetAddress = connectionSocket.getInetAddress().toString();
+					if (!admit(inetAddress)) {
+						connectionSocket.close();
+						continue;
+					}
+
+					this.accepted.incrementAndGet();
+					addWaitingRequest(connectionSocket);
+				}
+			} catch (Exception e) {
+				// Closing the listener is how stop() wakes a blocked accept()
+				if (!stop) {
+					window.showSocketException(e);
 				}
+			} finally {
+				this.close();
+			}
+		}
 
-				this.incrementNumActiveRequests(inetAddress);
-				this.addWaitingRequest(connectionSocket);
-
-				// ///////////////////////////////////////////////////////////////
-				// Old Code
-				 // Listen for incoming socket connection
-				 // This method block until somebody makes a request
-				
-//				 Socket connectionSocket = this.welcomeSocket.accept();
-//				
-//				 // Come out of the loop if the stop flag is set
-//				 if (this.stop)
-//				 break;
-//				
-//				 // Create a handler for this incoming connection and start
-//				 // the handler in a new thread
-//				 ConnectionHandler handler = new ConnectionHandler(this,
-//				 connectionSocket);
-//				 new Thread(handler).start();
+		public double getAcceptRate() {
+			double seconds = (System.nanoTime() - this.startedAt) / 1e9;
+			return seconds > 0 ? this.accepted.get() / seconds : 0;
+		}
 
+		public boolean isClosed() {
+			return this.listener.isClosed();
+		}
+
+		public void close() {
+			try {
+				this.listener.close();
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
-			this.welcomeSocket.close();
-		} catch (Exception e) {
-			window.showSocketException(e);
 		}
 	}
 
@@ -339,44 +727,101 @@ public class Server implements Runnable {
 		 */
 		@Override
 		public void run() {
-			while (true) {				
-				if (server.numProcessingRequests >= Server.MAX_PROCESSING_REQUESTS) {
-					try {
-						System.out.println("Currently processing" + Server.MAX_PROCESSING_REQUESTS + " or more requests. Waiting for processes to finish before processing more.");
-						Thread.sleep(100);
-					} catch (InterruptedException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-					continue;
+			while (true) {
+				final WaitingWork waiting;
+				try {
+					waiting = server.takeNextConnection();
+				} catch (InterruptedException e) {
+					// The server was stopped
+					return;
 				}
-				
-				
-				final Socket connection = server.getNextConnection();
-				if (connection == null) {
-					try {
-						Thread.sleep(100);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-					continue;
+
+				// The work gives back its processing slot itself
+				waiting.dispatched();
+				if (!server.workers.execute(waiting)) {
+					server.shed(waiting);
+					server.decrementNumProcessingRequests();
 				}
-				
-				 final ConnectionHandler handler = new ConnectionHandler(this.server, connection);
-				 server.incrementNumProcessingRequests();
-				 new Thread(new Runnable() {
-					@Override
-					public void run() {
-						handler.run();
-						server.decrementNumActiveRequests(connection.getInetAddress().toString());
-						server.decrementNumProcessingRequests();
-					} 
-				 }).start();
 			}
 		}
 
 	}
 
+	/**
+	 * A connection of the blocking transport waiting for a worker. Its handler
+	 * gives back the processing slot and the rate limiter count itself.
+	 */
+	private class WaitingConnection extends WaitingWork {
+		private ConnectionHandler handler;
+
+		public WaitingConnection(ConnectionHandler handler) {
+			super(handler.getInetAddress());
+			this.handler = handler;
+		}
+
+		@Override
+		public void run() {
+			this.handler.run();
+		}
+
+		@Override
+		public void dispatched() {
+			this.handler.dispatched();
+		}
+
+		@Override
+		public void shed(byte[] serviceUnavailable) {
+			Socket connection = this.handler.getSocket();
+			try {
+				connection.getOutputStream().write(serviceUnavailable);
+			} catch (Exception e) {
+				// The client is gone already, nothing more to tell it
+			}
+			lingeringCloser.close(connection);
+			incrementConnections(1);
+			rateLimiter.release(this.getInetAddress());
+		}
+
+		@Override
+		public void discard() {
+			try {
+				this.handler.getSocket().close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			rateLimiter.release(this.getInetAddress());
+		}
+	}
+
+	/**
+	 * Serializes the 503 sent to shed connections once, so shedding costs no
+	 * more than a write and a close.
+	 */
+	private static byte[] createServiceUnavailable(int retryAfter) {
+		HttpResponse response = HttpResponseFactory.create503ServiceUnavailable(Protocol.CLOSE);
+		response.put(Protocol.RETRY_AFTER, Integer.toString(retryAfter));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			response.write(out);
+		} catch (Exception e) {
+			// Writing to memory does not fail
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Answers work that cannot be queued or that no worker can take with a
+	 * 503 and closes its connection.
+	 * 
+	 * @param waiting
+	 *            The rejected connection or request.
+	 */
+	private void shed(WaitingWork waiting) {
+		this.shedCount.incrementAndGet();
+		waiting.shed(this.serviceUnavailable);
+	}
+
 	/**
 	 * Stops the server from listening further.
 	 */
@@ -386,15 +831,18 @@ public class Server implements Runnable {
 
 		// Set the stop flag to be true
 		this.stop = true;
-		try {
-			// This will force welcomeSocket to come out of the blocked accept()
-			// method
-			// in the main loop of the start() method
-			Socket socket = new Socket(InetAddress.getLocalHost(), port);
-
-			// We do not have any other job for this socket so just close it
-			socket.close();
-		} catch (Exception e) {
+		this.workers.shutdown();
+		this.queueHandlerThread.interrupt();
+		this.lingeringCloserThread.interrupt();
+		this.keepAliveParkerThread.interrupt();
+		if (this.nioTransport != null) {
+			this.nioTransport.shutdown();
+			return;
+		}
+		if (this.acceptors != null) {
+			// Closing the listeners forces every acceptor out of its blocked
+			// accept()
+			this.closeAcceptors();
 		}
 	}
 
@@ -404,8 +852,10 @@ public class Server implements Runnable {
 	 * @return
 	 */
 	public boolean isStopped() {
-		if (this.welcomeSocket != null)
-			return this.welcomeSocket.isClosed();
+		if (this.nioTransport != null)
+			return this.nioTransport.isClosed();
+		if (this.acceptors != null)
+			return this.acceptors[0].isClosed();
 		return true;
 	}
 
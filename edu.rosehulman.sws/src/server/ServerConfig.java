@@ -0,0 +1,802 @@
+package server;
+
+import protocol.Compression;
+import protocol.EntityTagCache;
+
+/**
+ * Tunable settings for a {@link Server}. Every setting has a default that can
+ * be overridden with a <tt>-Dsws.*</tt> system property, so different
+ * configurations can be compared under the same load without rebuilding.
+ */
+public class ServerConfig {
+	/**
+	 * How connections are accepted and read.
+	 */
+	public enum Transport {
+		/**
+		 * A blocking accept loop, with one {@link ConnectionHandler} per
+		 * socket.
+		 */
+		BLOCKING,
+
+		/**
+		 * {@link java.nio.channels.Selector} driven I/O loops, see
+		 * {@link NioTransport}.
+		 */
+		NIO
+	}
+
+	/**
+	 * How accepted connections are run.
+	 */
+	public enum Execution {
+		/**
+		 * On a bounded {@link WorkerPool}, a few requests at a time.
+		 */
+		POOLED,
+
+		/**
+		 * Each on its own (virtual, where available) thread, see
+		 * {@link ThreadPerConnectionWorkers}.
+		 */
+		THREAD_PER_CONNECTION
+	}
+
+	public static final String TRANSPORT_PROPERTY = "sws.transport";
+	public static final String IO_THREADS_PROPERTY = "sws.nio.threads";
+	public static final String ACCEPTORS_PROPERTY = "sws.acceptors";
+	public static final String REUSE_PORT_PROPERTY = "sws.acceptors.reuseport";
+	public static final String EXECUTION_PROPERTY = "sws.execution";
+	public static final String MAX_CONNECTIONS_PROPERTY = "sws.connections.max";
+	public static final String KEEP_ALIVE_TIMEOUT_PROPERTY = "sws.keepalive.timeout";
+	public static final String KEEP_ALIVE_MAX_REQUESTS_PROPERTY = "sws.keepalive.max";
+	public static final String PIPELINE_DEPTH_PROPERTY = "sws.pipeline.depth";
+	public static final String PIPELINE_CONCURRENT_PROPERTY = "sws.pipeline.concurrent";
+	public static final String MAX_BODY_SIZE_PROPERTY = "sws.body.max";
+	public static final String MAX_CHUNK_SIZE_PROPERTY = "sws.body.maxchunk";
+	public static final String MAX_BUFFERED_BODY_SIZE_PROPERTY = "sws.nio.body.max";
+	public static final String HEADER_TIMEOUT_PROPERTY = "sws.request.headertimeout";
+	public static final String REQUEST_TIMEOUT_PROPERTY = "sws.request.timeout";
+	public static final String MAX_REQUEST_LINE_PROPERTY = "sws.request.maxline";
+	public static final String MAX_HEADER_COUNT_PROPERTY = "sws.request.maxheaders";
+	public static final String MAX_HEADER_SIZE_PROPERTY = "sws.request.maxheaderbytes";
+	public static final String LIMIT_INITIAL_PROPERTY = "sws.limit.initial";
+	public static final String LIMIT_MIN_PROPERTY = "sws.limit.min";
+	public static final String LIMIT_MAX_PROPERTY = "sws.limit.max";
+	public static final String ADMISSION_QUEUE_SIZE_PROPERTY = "sws.admission.queue";
+	public static final String RETRY_AFTER_PROPERTY = "sws.admission.retryafter";
+	public static final String RATE_LIMIT_BURST_PROPERTY = "sws.ratelimit.burst";
+	public static final String RATE_LIMIT_RATE_PROPERTY = "sws.ratelimit.rate";
+	public static final String RATE_LIMIT_ACTIVE_PROPERTY = "sws.ratelimit.active";
+	public static final String RATE_LIMIT_BAN_PROPERTY = "sws.ratelimit.ban";
+	public static final String RATE_LIMIT_IDLE_PROPERTY = "sws.ratelimit.idle";
+	public static final String WORKER_CORE_THREADS_PROPERTY = "sws.workers.core";
+	public static final String WORKER_MAX_THREADS_PROPERTY = "sws.workers.max";
+	public static final String WORKER_QUEUE_SIZE_PROPERTY = "sws.workers.queue";
+	public static final String WORKER_KEEP_ALIVE_PROPERTY = "sws.workers.keepalive";
+	public static final String ENTITY_TAG_CACHE_SIZE_PROPERTY = "sws.etag.cachesize";
+	public static final String COMPRESSION_MIN_SIZE_PROPERTY = "sws.compression.minsize";
+	public static final String COMPRESSION_MAX_SIZE_PROPERTY = "sws.compression.maxsize";
+	public static final String COMPRESSION_CACHE_SIZE_PROPERTY = "sws.compression.cachesize";
+
+	private Transport transport;
+	private int ioThreads;
+	private int acceptors;
+	private boolean reusePort;
+	private Execution execution;
+	private int maxConnections;
+	private int keepAliveTimeout;
+	private int maxKeepAliveRequests;
+	private int pipelineDepth;
+	private boolean pipelineConcurrent;
+	private long maxBodySize;
+	private long maxChunkSize;
+	private long maxBufferedBodySize;
+	private int headerTimeout;
+	private int requestTimeout;
+	private int maxRequestLine;
+	private int maxHeaderCount;
+	private int maxHeaderSize;
+	private int initialConcurrencyLimit;
+	private int minConcurrencyLimit;
+	private int maxConcurrencyLimit;
+	private int admissionQueueSize;
+	private int retryAfter;
+	private int rateLimitBurst;
+	private int rateLimitPerSecond;
+	private int maxActivePerClient;
+	private long banDuration;
+	private long rateLimitIdleTimeout;
+	private int workerCoreThreads;
+	private int workerMaxThreads;
+	private int workerQueueSize;
+	private long workerKeepAliveSeconds;
+	private int entityTagCacheSize;
+	private long compressionMinSize;
+	private long compressionMaxSize;
+	private long compressionCacheSize;
+
+	/**
+	 * Creates a configuration holding the built-in defaults.
+	 */
+	public ServerConfig() {
+		this.transport = Transport.BLOCKING;
+		this.ioThreads = Runtime.getRuntime().availableProcessors();
+		this.acceptors = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+		this.reusePort = true;
+		this.execution = Execution.POOLED;
+		this.maxConnections = 10000;
+		this.keepAliveTimeout = 5000;
+		this.maxKeepAliveRequests = 100;
+		this.pipelineDepth = 16;
+		this.pipelineConcurrent = true;
+		this.maxBodySize = 1L << 30;
+		this.maxChunkSize = 16L << 20;
+		this.maxBufferedBodySize = 8L << 20;
+		this.headerTimeout = 10000;
+		this.requestTimeout = 300000;
+		this.maxRequestLine = 8 * 1024;
+		this.maxHeaderCount = 100;
+		this.maxHeaderSize = 64 * 1024;
+		this.initialConcurrencyLimit = 20;
+		this.minConcurrencyLimit = 1;
+		this.maxConcurrencyLimit = 1000;
+		this.admissionQueueSize = 1024;
+		this.retryAfter = 1;
+		this.rateLimitBurst = 50;
+		this.rateLimitPerSecond = 20;
+		this.maxActivePerClient = 10;
+		this.banDuration = 60000;
+		this.rateLimitIdleTimeout = 60000;
+		this.workerCoreThreads = Runtime.getRuntime().availableProcessors();
+		this.workerMaxThreads = 4 * Runtime.getRuntime().availableProcessors();
+		this.workerQueueSize = 256;
+		this.workerKeepAliveSeconds = 60;
+		this.entityTagCacheSize = EntityTagCache.DEFAULT_CAPACITY;
+		this.compressionMinSize = Compression.DEFAULT_MIN_SIZE;
+		this.compressionMaxSize = Compression.DEFAULT_MAX_SIZE;
+		this.compressionCacheSize = Compression.DEFAULT_CACHE_SIZE;
+	}
+
+	/**
+	 * Creates a configuration from the defaults, overridden by any
+	 * <tt>sws.*</tt> system properties that are set.
+	 *
+	 * @return the configuration
+	 */
+	public static ServerConfig fromSystemProperties() {
+		ServerConfig config = new ServerConfig();
+
+		String transport = System.getProperty(TRANSPORT_PROPERTY);
+		if (transport != null) {
+			config.setTransport(Transport.valueOf(transport.trim().toUpperCase()));
+		}
+		config.setIoThreads(Integer.getInteger(IO_THREADS_PROPERTY, config.getIoThreads()));
+		config.setAcceptors(Integer.getInteger(ACCEPTORS_PROPERTY, config.getAcceptors()));
+		String reusePort = System.getProperty(REUSE_PORT_PROPERTY);
+		if (reusePort != null) {
+			config.setReusePort(Boolean.parseBoolean(reusePort.trim()));
+		}
+		String execution = System.getProperty(EXECUTION_PROPERTY);
+		if (execution != null) {
+			config.setExecution(Execution.valueOf(execution.trim().toUpperCase()));
+		}
+		config.setMaxConnections(Integer.getInteger(MAX_CONNECTIONS_PROPERTY, config.getMaxConnections()));
+		config.setKeepAliveTimeout(Integer.getInteger(KEEP_ALIVE_TIMEOUT_PROPERTY, config.getKeepAliveTimeout()));
+		config.setMaxKeepAliveRequests(
+				Integer.getInteger(KEEP_ALIVE_MAX_REQUESTS_PROPERTY, config.getMaxKeepAliveRequests()));
+		config.setPipelineDepth(Integer.getInteger(PIPELINE_DEPTH_PROPERTY, config.getPipelineDepth()));
+		String concurrent = System.getProperty(PIPELINE_CONCURRENT_PROPERTY);
+		if (concurrent != null) {
+			config.setPipelineConcurrent(Boolean.parseBoolean(concurrent.trim()));
+		}
+		config.setMaxBodySize(Long.getLong(MAX_BODY_SIZE_PROPERTY, config.getMaxBodySize()));
+		config.setMaxChunkSize(Long.getLong(MAX_CHUNK_SIZE_PROPERTY, config.getMaxChunkSize()));
+		config.setMaxBufferedBodySize(
+				Long.getLong(MAX_BUFFERED_BODY_SIZE_PROPERTY, config.getMaxBufferedBodySize()));
+		config.setHeaderTimeout(Integer.getInteger(HEADER_TIMEOUT_PROPERTY, config.getHeaderTimeout()));
+		config.setRequestTimeout(Integer.getInteger(REQUEST_TIMEOUT_PROPERTY, config.getRequestTimeout()));
+		config.setMaxRequestLine(Integer.getInteger(MAX_REQUEST_LINE_PROPERTY, config.getMaxRequestLine()));
+		config.setMaxHeaderCount(Integer.getInteger(MAX_HEADER_COUNT_PROPERTY, config.getMaxHeaderCount()));
+		config.setMaxHeaderSize(Integer.getInteger(MAX_HEADER_SIZE_PROPERTY, config.getMaxHeaderSize()));
+		config.setInitialConcurrencyLimit(
+				Integer.getInteger(LIMIT_INITIAL_PROPERTY, config.getInitialConcurrencyLimit()));
+		config.setMinConcurrencyLimit(Integer.getInteger(LIMIT_MIN_PROPERTY, config.getMinConcurrencyLimit()));
+		config.setMaxConcurrencyLimit(Integer.getInteger(LIMIT_MAX_PROPERTY, config.getMaxConcurrencyLimit()));
+		config.setAdmissionQueueSize(Integer.getInteger(ADMISSION_QUEUE_SIZE_PROPERTY, config.getAdmissionQueueSize()));
+		config.setRetryAfter(Integer.getInteger(RETRY_AFTER_PROPERTY, config.getRetryAfter()));
+		config.setRateLimitBurst(Integer.getInteger(RATE_LIMIT_BURST_PROPERTY, config.getRateLimitBurst()));
+		config.setRateLimitPerSecond(Integer.getInteger(RATE_LIMIT_RATE_PROPERTY, config.getRateLimitPerSecond()));
+		config.setMaxActivePerClient(Integer.getInteger(RATE_LIMIT_ACTIVE_PROPERTY, config.getMaxActivePerClient()));
+		config.setBanDuration(Long.getLong(RATE_LIMIT_BAN_PROPERTY, config.getBanDuration()));
+		config.setRateLimitIdleTimeout(Long.getLong(RATE_LIMIT_IDLE_PROPERTY, config.getRateLimitIdleTimeout()));
+		config.setWorkerCoreThreads(Integer.getInteger(WORKER_CORE_THREADS_PROPERTY, config.getWorkerCoreThreads()));
+		config.setWorkerMaxThreads(Integer.getInteger(WORKER_MAX_THREADS_PROPERTY, config.getWorkerMaxThreads()));
+		config.setWorkerQueueSize(Integer.getInteger(WORKER_QUEUE_SIZE_PROPERTY, config.getWorkerQueueSize()));
+		config.setWorkerKeepAliveSeconds(Long.getLong(WORKER_KEEP_ALIVE_PROPERTY, config.getWorkerKeepAliveSeconds()));
+		config.setEntityTagCacheSize(
+				Integer.getInteger(ENTITY_TAG_CACHE_SIZE_PROPERTY, config.getEntityTagCacheSize()));
+		config.setCompressionMinSize(Long.getLong(COMPRESSION_MIN_SIZE_PROPERTY, config.getCompressionMinSize()));
+		config.setCompressionMaxSize(Long.getLong(COMPRESSION_MAX_SIZE_PROPERTY, config.getCompressionMaxSize()));
+		config.setCompressionCacheSize(
+				Long.getLong(COMPRESSION_CACHE_SIZE_PROPERTY, config.getCompressionCacheSize()));
+
+		return config;
+	}
+
+	/**
+	 * @return the transport used to accept and read connections
+	 */
+	public Transport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * @param transport
+	 *            the transport used to accept and read connections
+	 */
+	public void setTransport(Transport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * @return the number of selector loops used by the {@link Transport#NIO}
+	 *         transport
+	 */
+	public int getIoThreads() {
+		return ioThreads;
+	}
+
+	/**
+	 * @param ioThreads
+	 *            the number of selector loops used by the
+	 *            {@link Transport#NIO} transport
+	 */
+	public void setIoThreads(int ioThreads) {
+		this.ioThreads = Math.max(1, ioThreads);
+	}
+
+	/**
+	 * @return the number of threads accepting connections for the
+	 *         {@link Transport#BLOCKING} transport
+	 */
+	public int getAcceptors() {
+		return acceptors;
+	}
+
+	/**
+	 * @param acceptors
+	 *            the number of threads accepting connections for the
+	 *            {@link Transport#BLOCKING} transport
+	 */
+	public void setAcceptors(int acceptors) {
+		this.acceptors = Math.max(1, acceptors);
+	}
+
+	/**
+	 * @return whether each acceptor gets its own listening socket through
+	 *         <tt>SO_REUSEPORT</tt> where the platform supports it
+	 */
+	public boolean isReusePort() {
+		return reusePort;
+	}
+
+	/**
+	 * @param reusePort
+	 *            whether each acceptor gets its own listening socket through
+	 *            <tt>SO_REUSEPORT</tt> where the platform supports it
+	 */
+	public void setReusePort(boolean reusePort) {
+		this.reusePort = reusePort;
+	}
+
+	/**
+	 * @return how accepted connections are run
+	 */
+	public Execution getExecution() {
+		return execution;
+	}
+
+	/**
+	 * @param execution
+	 *            how accepted connections are run
+	 */
+	public void setExecution(Execution execution) {
+		this.execution = execution;
+	}
+
+	/**
+	 * @return the most connections served at once in
+	 *         {@link Execution#THREAD_PER_CONNECTION} mode
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * @param maxConnections
+	 *            the most connections served at once in
+	 *            {@link Execution#THREAD_PER_CONNECTION} mode
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = Math.max(1, maxConnections);
+	}
+
+	/**
+	 * @return how many milliseconds a persistent connection may sit idle
+	 *         between requests before it is closed
+	 */
+	public int getKeepAliveTimeout() {
+		return keepAliveTimeout;
+	}
+
+	/**
+	 * @param keepAliveTimeout
+	 *            how many milliseconds a persistent connection may sit idle
+	 *            between requests before it is closed
+	 */
+	public void setKeepAliveTimeout(int keepAliveTimeout) {
+		this.keepAliveTimeout = Math.max(1, keepAliveTimeout);
+	}
+
+	/**
+	 * @return how many requests one connection may make before it is closed;
+	 *         1 turns persistent connections off
+	 */
+	public int getMaxKeepAliveRequests() {
+		return maxKeepAliveRequests;
+	}
+
+	/**
+	 * @param maxKeepAliveRequests
+	 *            how many requests one connection may make before it is
+	 *            closed; 1 turns persistent connections off
+	 */
+	public void setMaxKeepAliveRequests(int maxKeepAliveRequests) {
+		this.maxKeepAliveRequests = Math.max(1, maxKeepAliveRequests);
+	}
+
+	/**
+	 * @return the most pipelined requests read ahead on one connection
+	 */
+	public int getPipelineDepth() {
+		return pipelineDepth;
+	}
+
+	/**
+	 * @param pipelineDepth
+	 *            the most pipelined requests read ahead on one connection
+	 */
+	public void setPipelineDepth(int pipelineDepth) {
+		this.pipelineDepth = Math.max(1, pipelineDepth);
+	}
+
+	/**
+	 * @return whether pipelined GET, HEAD and OPTIONS requests are dispatched
+	 *         at the same time
+	 */
+	public boolean isPipelineConcurrent() {
+		return pipelineConcurrent;
+	}
+
+	/**
+	 * @param pipelineConcurrent
+	 *            whether pipelined GET, HEAD and OPTIONS requests are
+	 *            dispatched at the same time
+	 */
+	public void setPipelineConcurrent(boolean pipelineConcurrent) {
+		this.pipelineConcurrent = pipelineConcurrent;
+	}
+
+	/**
+	 * @return the largest request body accepted, in bytes
+	 */
+	public long getMaxBodySize() {
+		return maxBodySize;
+	}
+
+	/**
+	 * @param maxBodySize
+	 *            the largest request body accepted, in bytes
+	 */
+	public void setMaxBodySize(long maxBodySize) {
+		this.maxBodySize = Math.max(0, maxBodySize);
+	}
+
+	/**
+	 * @return the largest chunk accepted in a chunked request body, in bytes
+	 */
+	public long getMaxChunkSize() {
+		return maxChunkSize;
+	}
+
+	/**
+	 * @param maxChunkSize
+	 *            the largest chunk accepted in a chunked request body, in
+	 *            bytes
+	 */
+	public void setMaxChunkSize(long maxChunkSize) {
+		this.maxChunkSize = Math.max(1, maxChunkSize);
+	}
+
+	/**
+	 * @return the largest request body the non-blocking transport collects in
+	 *         memory before handing the request to a worker, in bytes
+	 */
+	public long getMaxBufferedBodySize() {
+		return maxBufferedBodySize;
+	}
+
+	/**
+	 * @param maxBufferedBodySize
+	 *            the largest request body the non-blocking transport collects
+	 *            in memory before handing the request to a worker, in bytes
+	 */
+	public void setMaxBufferedBodySize(long maxBufferedBodySize) {
+		this.maxBufferedBodySize = Math.max(0, maxBufferedBodySize);
+	}
+
+	/**
+	 * @return the milliseconds a client has to send the request line and
+	 *         header fields once a request has started, or 0 for no limit
+	 */
+	public int getHeaderTimeout() {
+		return headerTimeout;
+	}
+
+	/**
+	 * @param headerTimeout
+	 *            the milliseconds a client has to send the request line and
+	 *            header fields once a request has started, or 0 for no limit
+	 */
+	public void setHeaderTimeout(int headerTimeout) {
+		this.headerTimeout = Math.max(0, headerTimeout);
+	}
+
+	/**
+	 * @return the milliseconds a client has to send a whole request, body
+	 *         included, or 0 for no limit
+	 */
+	public int getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	/**
+	 * @param requestTimeout
+	 *            the milliseconds a client has to send a whole request, body
+	 *            included, or 0 for no limit
+	 */
+	public void setRequestTimeout(int requestTimeout) {
+		this.requestTimeout = Math.max(0, requestTimeout);
+	}
+
+	/**
+	 * @return the longest request line accepted, in bytes
+	 */
+	public int getMaxRequestLine() {
+		return maxRequestLine;
+	}
+
+	/**
+	 * @param maxRequestLine
+	 *            the longest request line accepted, in bytes
+	 */
+	public void setMaxRequestLine(int maxRequestLine) {
+		this.maxRequestLine = Math.max(16, maxRequestLine);
+	}
+
+	/**
+	 * @return the most header fields a request may have
+	 */
+	public int getMaxHeaderCount() {
+		return maxHeaderCount;
+	}
+
+	/**
+	 * @param maxHeaderCount
+	 *            the most header fields a request may have
+	 */
+	public void setMaxHeaderCount(int maxHeaderCount) {
+		this.maxHeaderCount = Math.max(1, maxHeaderCount);
+	}
+
+	/**
+	 * @return the most bytes the header fields of a request may take together
+	 */
+	public int getMaxHeaderSize() {
+		return maxHeaderSize;
+	}
+
+	/**
+	 * @param maxHeaderSize
+	 *            the most bytes the header fields of a request may take
+	 *            together
+	 */
+	public void setMaxHeaderSize(int maxHeaderSize) {
+		this.maxHeaderSize = Math.max(64, maxHeaderSize);
+	}
+
+	/**
+	 * @return the number of connections processed at once before the
+	 *         {@link ConcurrencyLimit} has adapted to the load
+	 */
+	public int getInitialConcurrencyLimit() {
+		return initialConcurrencyLimit;
+	}
+
+	/**
+	 * @param initialConcurrencyLimit
+	 *            the number of connections processed at once before the
+	 *            {@link ConcurrencyLimit} has adapted to the load
+	 */
+	public void setInitialConcurrencyLimit(int initialConcurrencyLimit) {
+		this.initialConcurrencyLimit = Math.max(1, initialConcurrencyLimit);
+	}
+
+	/**
+	 * @return the lowest the concurrency limit may fall
+	 */
+	public int getMinConcurrencyLimit() {
+		return minConcurrencyLimit;
+	}
+
+	/**
+	 * @param minConcurrencyLimit
+	 *            the lowest the concurrency limit may fall
+	 */
+	public void setMinConcurrencyLimit(int minConcurrencyLimit) {
+		this.minConcurrencyLimit = Math.max(1, minConcurrencyLimit);
+	}
+
+	/**
+	 * @return the highest the concurrency limit may rise
+	 */
+	public int getMaxConcurrencyLimit() {
+		return maxConcurrencyLimit;
+	}
+
+	/**
+	 * @param maxConcurrencyLimit
+	 *            the highest the concurrency limit may rise
+	 */
+	public void setMaxConcurrencyLimit(int maxConcurrencyLimit) {
+		this.maxConcurrencyLimit = Math.max(1, maxConcurrencyLimit);
+	}
+
+	/**
+	 * @return the number of accepted connections that may wait for the
+	 *         dispatcher before new ones are shed with a 503
+	 */
+	public int getAdmissionQueueSize() {
+		return admissionQueueSize;
+	}
+
+	/**
+	 * @param admissionQueueSize
+	 *            the number of accepted connections that may wait for the
+	 *            dispatcher before new ones are shed with a 503
+	 */
+	public void setAdmissionQueueSize(int admissionQueueSize) {
+		this.admissionQueueSize = Math.max(1, admissionQueueSize);
+	}
+
+	/**
+	 * @return the seconds a shed client is told to wait before retrying
+	 */
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * @param retryAfter
+	 *            the seconds a shed client is told to wait before retrying
+	 */
+	public void setRetryAfter(int retryAfter) {
+		this.retryAfter = Math.max(0, retryAfter);
+	}
+
+	/**
+	 * @return how many connections a client may open in a burst before the
+	 *         refill rate applies
+	 */
+	public int getRateLimitBurst() {
+		return rateLimitBurst;
+	}
+
+	/**
+	 * @param rateLimitBurst
+	 *            how many connections a client may open in a burst before
+	 *            the refill rate applies
+	 */
+	public void setRateLimitBurst(int rateLimitBurst) {
+		this.rateLimitBurst = Math.max(1, rateLimitBurst);
+	}
+
+	/**
+	 * @return how many connections per second a client may keep opening
+	 */
+	public int getRateLimitPerSecond() {
+		return rateLimitPerSecond;
+	}
+
+	/**
+	 * @param rateLimitPerSecond
+	 *            how many connections per second a client may keep opening
+	 */
+	public void setRateLimitPerSecond(int rateLimitPerSecond) {
+		this.rateLimitPerSecond = Math.max(1, rateLimitPerSecond);
+	}
+
+	/**
+	 * @return how many connections one client may have open at once
+	 */
+	public int getMaxActivePerClient() {
+		return maxActivePerClient;
+	}
+
+	/**
+	 * @param maxActivePerClient
+	 *            how many connections one client may have open at once
+	 */
+	public void setMaxActivePerClient(int maxActivePerClient) {
+		this.maxActivePerClient = Math.max(1, maxActivePerClient);
+	}
+
+	/**
+	 * @return how many milliseconds a client that broke a limit stays banned
+	 */
+	public long getBanDuration() {
+		return banDuration;
+	}
+
+	/**
+	 * @param banDuration
+	 *            how many milliseconds a client that broke a limit stays
+	 *            banned
+	 */
+	public void setBanDuration(long banDuration) {
+		this.banDuration = Math.max(0, banDuration);
+	}
+
+	/**
+	 * @return how many milliseconds an idle client is remembered by the rate
+	 *         limiter
+	 */
+	public long getRateLimitIdleTimeout() {
+		return rateLimitIdleTimeout;
+	}
+
+	/**
+	 * @param rateLimitIdleTimeout
+	 *            how many milliseconds an idle client is remembered by the
+	 *            rate limiter
+	 */
+	public void setRateLimitIdleTimeout(long rateLimitIdleTimeout) {
+		this.rateLimitIdleTimeout = Math.max(1, rateLimitIdleTimeout);
+	}
+
+	/**
+	 * @return the number of worker threads kept alive while idle
+	 */
+	public int getWorkerCoreThreads() {
+		return workerCoreThreads;
+	}
+
+	/**
+	 * @param workerCoreThreads
+	 *            the number of worker threads kept alive while idle
+	 */
+	public void setWorkerCoreThreads(int workerCoreThreads) {
+		this.workerCoreThreads = Math.max(1, workerCoreThreads);
+	}
+
+	/**
+	 * @return the most worker threads started when the worker queue is full
+	 */
+	public int getWorkerMaxThreads() {
+		return workerMaxThreads;
+	}
+
+	/**
+	 * @param workerMaxThreads
+	 *            the most worker threads started when the worker queue is
+	 *            full
+	 */
+	public void setWorkerMaxThreads(int workerMaxThreads) {
+		this.workerMaxThreads = Math.max(1, workerMaxThreads);
+	}
+
+	/**
+	 * @return the number of connections that may wait for a worker thread
+	 *         before new ones are answered with a 503
+	 */
+	public int getWorkerQueueSize() {
+		return workerQueueSize;
+	}
+
+	/**
+	 * @param workerQueueSize
+	 *            the number of connections that may wait for a worker thread
+	 *            before new ones are answered with a 503
+	 */
+	public void setWorkerQueueSize(int workerQueueSize) {
+		this.workerQueueSize = Math.max(1, workerQueueSize);
+	}
+
+	/**
+	 * @return how long worker threads above the core size may stay idle
+	 */
+	public long getWorkerKeepAliveSeconds() {
+		return workerKeepAliveSeconds;
+	}
+
+	/**
+	 * @param workerKeepAliveSeconds
+	 *            how long worker threads above the core size may stay idle
+	 */
+	public void setWorkerKeepAliveSeconds(long workerKeepAliveSeconds) {
+		this.workerKeepAliveSeconds = Math.max(0, workerKeepAliveSeconds);
+	}
+
+	/**
+	 * @return the number of files whose entity tags are remembered
+	 */
+	public int getEntityTagCacheSize() {
+		return entityTagCacheSize;
+	}
+
+	/**
+	 * @param entityTagCacheSize
+	 *            the number of files whose entity tags are remembered, 0 to
+	 *            hash every file served
+	 */
+	public void setEntityTagCacheSize(int entityTagCacheSize) {
+		this.entityTagCacheSize = Math.max(0, entityTagCacheSize);
+	}
+
+	/**
+	 * @return the smallest text file sent compressed
+	 */
+	public long getCompressionMinSize() {
+		return compressionMinSize;
+	}
+
+	/**
+	 * @param compressionMinSize
+	 *            the smallest text file sent compressed
+	 */
+	public void setCompressionMinSize(long compressionMinSize) {
+		this.compressionMinSize = Math.max(0, compressionMinSize);
+	}
+
+	/**
+	 * @return the largest text file sent compressed
+	 */
+	public long getCompressionMaxSize() {
+		return compressionMaxSize;
+	}
+
+	/**
+	 * @param compressionMaxSize
+	 *            the largest text file sent compressed, 0 to send every file
+	 *            as it is
+	 */
+	public void setCompressionMaxSize(long compressionMaxSize) {
+		this.compressionMaxSize = Math.max(0, compressionMaxSize);
+	}
+
+	/**
+	 * @return the most bytes of compressed files kept in memory
+	 */
+	public long getCompressionCacheSize() {
+		return compressionCacheSize;
+	}
+
+	/**
+	 * @param compressionCacheSize
+	 *            the most bytes of compressed files kept in memory
+	 */
+	public void setCompressionCacheSize(long compressionCacheSize) {
+		this.compressionCacheSize = Math.max(0, compressionCacheSize);
+	}
+}
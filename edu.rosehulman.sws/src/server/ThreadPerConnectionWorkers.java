@@ -0,0 +1,131 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A worker stage that gives every connection its own thread, so the blocking
+ * reads and writes in {@link ConnectionHandler} never wait for a free worker.
+ * On a JVM with virtual threads each task runs on a virtual thread; otherwise
+ * it falls back to a platform thread with a small stack. A {@link Semaphore}
+ * caps how many connections are served at once.
+ */
+public class ThreadPerConnectionWorkers implements IWorkerStage {
+	private static final long PLATFORM_THREAD_STACK_SIZE = 256 * 1024;
+	private static final Method START_VIRTUAL_THREAD = findStartVirtualThread();
+
+	private String name;
+	private int maxConnections;
+	private Semaphore permits;
+	private AtomicInteger count;
+	private AtomicLong rejected;
+	private volatile boolean stopped;
+
+	/**
+	 * @param name
+	 *            The prefix for the names of platform worker threads.
+	 * @param maxConnections
+	 *            The most connections served at the same time.
+	 */
+	public ThreadPerConnectionWorkers(String name, int maxConnections) {
+		this.name = name;
+		this.maxConnections = maxConnections;
+		this.permits = new Semaphore(maxConnections);
+		this.count = new AtomicInteger();
+		this.rejected = new AtomicLong();
+		this.stopped = false;
+	}
+
+	/**
+	 * @return whether tasks run on virtual threads
+	 */
+	public static boolean isVirtual() {
+		return START_VIRTUAL_THREAD != null;
+	}
+
+	/**
+	 * Starts a new thread for the task. Fails if the stage has been shut down
+	 * or <tt>maxConnections</tt> tasks are already running.
+	 */
+	@Override
+	public boolean execute(final Runnable task) {
+		if (this.stopped || !this.permits.tryAcquire()) {
+			this.rejected.incrementAndGet();
+			return false;
+		}
+
+		Runnable releasing = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					ThreadPerConnectionWorkers.this.permits.release();
+				}
+			}
+		};
+
+		try {
+			start(releasing);
+			return true;
+		} catch (RuntimeException | OutOfMemoryError e) {
+			// Could not create a thread, so the task never ran
+			this.permits.release();
+			this.rejected.incrementAndGet();
+			return false;
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		this.stopped = true;
+	}
+
+	@Override
+	public int getActiveCount() {
+		return this.maxConnections - this.permits.availablePermits();
+	}
+
+	/**
+	 * Always 0, since a task either gets a thread of its own at once or is
+	 * refused.
+	 */
+	@Override
+	public int getQueueSize() {
+		return 0;
+	}
+
+	@Override
+	public long getRejectedCount() {
+		return this.rejected.get();
+	}
+
+	private void start(Runnable task) {
+		if (START_VIRTUAL_THREAD != null) {
+			try {
+				START_VIRTUAL_THREAD.invoke(null, task);
+				return;
+			} catch (ReflectiveOperationException e) {
+				e.printStackTrace();
+			}
+		}
+		Thread thread = new Thread(null, task, this.name + "-" + this.count.incrementAndGet(),
+				PLATFORM_THREAD_STACK_SIZE);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Looks up <tt>Thread.startVirtualThread(Runnable)</tt>, which exists on
+	 * Java 21 and later.
+	 */
+	private static Method findStartVirtualThread() {
+		try {
+			return Thread.class.getMethod("startVirtualThread", Runnable.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
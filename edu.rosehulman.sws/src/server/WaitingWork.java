@@ -0,0 +1,58 @@
+package server;
+
+/**
+ * Work waiting in the {@link Server}'s admission queue for the dispatcher:
+ * a connection of the blocking transport, or a request the
+ * {@link NioTransport} has read. The dispatcher counts the work as processing
+ * and runs it on a worker thread; the work gives its processing slot back
+ * once it is done. Work that cannot be queued, or that no worker can take, is
+ * shed with a 503 instead.
+ */
+abstract class WaitingWork implements Runnable {
+	private String inetAddress;
+	private long enqueuedAt;
+
+	/**
+	 * @param inetAddress
+	 *            The address of the client the work is for.
+	 */
+	protected WaitingWork(String inetAddress) {
+		this.inetAddress = inetAddress;
+		this.enqueuedAt = System.nanoTime();
+	}
+
+	/**
+	 * @return the address of the client
+	 */
+	public String getInetAddress() {
+		return inetAddress;
+	}
+
+	/**
+	 * @return the {@link System#nanoTime()} the work was queued at
+	 */
+	public long getEnqueuedAt() {
+		return enqueuedAt;
+	}
+
+	/**
+	 * Called as the dispatcher hands the work to a worker, so time spent
+	 * waiting for a thread can count towards it.
+	 */
+	public void dispatched() {
+	}
+
+	/**
+	 * Answers the work with the prebuilt 503 and closes its connection.
+	 *
+	 * @param serviceUnavailable
+	 *            The serialized 503, with its <tt>Retry-After</tt>.
+	 */
+	public abstract void shed(byte[] serviceUnavailable);
+
+	/**
+	 * Drops the work without answering it, for a client that was banned while
+	 * it waited.
+	 */
+	public abstract void discard();
+}
@@ -0,0 +1,83 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The worker stage of the {@link Server}: a fixed set of reusable, named
+ * threads in front of a bounded queue. Work that does not fit is refused
+ * instead of piling up, and the caller answers it with a 503.
+ */
+public class WorkerPool implements IWorkerStage {
+	private ThreadPoolExecutor executor;
+	private AtomicLong rejected;
+
+	/**
+	 * @param name
+	 *            The prefix for the names of the worker threads.
+	 * @param coreThreads
+	 *            The number of threads kept alive while idle.
+	 * @param maxThreads
+	 *            The number of threads started when the queue is full.
+	 * @param queueSize
+	 *            The number of tasks that may wait for a thread.
+	 * @param keepAliveSeconds
+	 *            How long threads above the core size may stay idle.
+	 */
+	public WorkerPool(final String name, int coreThreads, int maxThreads, int queueSize, long keepAliveSeconds) {
+		this.rejected = new AtomicLong();
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + this.count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		this.executor = new ThreadPoolExecutor(coreThreads, Math.max(coreThreads, maxThreads), keepAliveSeconds,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), threadFactory,
+				new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Hands a task to a worker thread. Fails if every thread is busy and the
+	 * queue is full.
+	 */
+	@Override
+	public boolean execute(Runnable task) {
+		try {
+			this.executor.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			this.rejected.incrementAndGet();
+			return false;
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		this.executor.shutdown();
+	}
+
+	@Override
+	public int getActiveCount() {
+		return this.executor.getActiveCount();
+	}
+
+	@Override
+	public int getQueueSize() {
+		return this.executor.getQueue().size();
+	}
+
+	@Override
+	public long getRejectedCount() {
+		return this.rejected.get();
+	}
+}